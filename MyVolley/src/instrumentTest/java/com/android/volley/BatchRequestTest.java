@@ -0,0 +1,131 @@
+package com.android.volley;
+
+import com.android.volley.toolbox.NoCache;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+public class BatchRequestTest extends TestCase {
+
+    private static final String BASE_URL = "http://example.com/api/";
+
+    private static final String BATCH_URL = "http://example.com/batch";
+
+    private final CountDownLatch mBlockerStarted = new CountDownLatch(1);
+
+    private final CountDownLatch mReleaseBlocker = new CountDownLatch(1);
+
+    /**
+     * Parts of a batch that are all cancelled while the batch waits in the network queue must
+     * still be finished, or later requests for the same cache key are parked behind them.
+     */
+    public void testCancelledBatchReleasesItsCacheKeys() throws Exception {
+        // 只有一个网络线程,而且它在blocker里等着,batch只能在队列里等.
+        RequestQueue queue = new RequestQueue(new NoCache(), new BlockingNetwork(), 1,
+                new ExecutorDelivery(new Executor() {
+                    @Override
+                    public void execute(Runnable command) {
+                        command.run();
+                    }
+                }));
+        queue.setBatchCodec(new TwoPartCodec(), 60000);
+        queue.start();
+        try {
+            TestRequest first = new TestRequest(BASE_URL + "a");
+            TestRequest second = new TestRequest(BASE_URL + "b");
+            first.setBatchable(true);
+            second.setBatchable(true);
+            queue.add(first);
+            queue.add(second);
+            // The second part fills the batch, which is queued before the blocker is taken.
+            queue.add(new TestRequest("http://example.com/blocker"));
+            assertTrue(mBlockerStarted.await(5, TimeUnit.SECONDS));
+            first.cancel();
+            second.cancel();
+            mReleaseBlocker.countDown();
+
+            TestRequest again = new TestRequest(BASE_URL + "a");
+            queue.add(again);
+            assertTrue(again.mDelivered.await(5, TimeUnit.SECONDS));
+        } finally {
+            mReleaseBlocker.countDown();
+            queue.stop();
+        }
+    }
+
+    private class BlockingNetwork implements Network {
+        @Override
+        public NetworkResponse performRequest(Request<?> request) throws VolleyError {
+            if (request.getUrl().endsWith("blocker")) {
+                mBlockerStarted.countDown();
+                try {
+                    mReleaseBlocker.await();
+                } catch (InterruptedException e) {
+                    throw new NoConnectionError(e);
+                }
+            }
+            return new NetworkResponse(new byte[0]);
+        }
+    }
+
+    private static class TwoPartCodec implements BatchCodec {
+        @Override
+        public String getBatchUrl(Request<?> request) {
+            return request.getUrl().startsWith(BASE_URL) ? BATCH_URL : null;
+        }
+
+        @Override
+        public int getMaxBatchSize() {
+            return 2;
+        }
+
+        @Override
+        public Map<String, String> getHeaders(List<Request<?>> parts) {
+            return Collections.emptyMap();
+        }
+
+        @Override
+        public String getBodyContentType() {
+            return "application/octet-stream";
+        }
+
+        @Override
+        public byte[] encode(List<Request<?>> parts) {
+            return new byte[0];
+        }
+
+        @Override
+        public List<NetworkResponse> decode(NetworkResponse response, List<Request<?>> parts) {
+            List<NetworkResponse> responses = new ArrayList<>();
+            for (int i = 0; i < parts.size(); i++) {
+                responses.add(new NetworkResponse(new byte[0]));
+            }
+            return responses;
+        }
+    }
+
+    private static class TestRequest extends Request<Void> {
+        final CountDownLatch mDelivered = new CountDownLatch(1);
+
+        TestRequest(String url) {
+            super(Method.GET, url, null);
+        }
+
+        @Override
+        protected Response<Void> parseNetworkResponse(NetworkResponse response) {
+            return Response.success(null, null);
+        }
+
+        @Override
+        protected void deliverResponse(Void response) {
+            mDelivered.countDown();
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package com.android.volley;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Helpers for the benchmarks in this source set. They run as instrumentation tests on a device
+ * (<code>gradlew connectedInstrumentTest</code>) and report their numbers to logcat under
+ * {@link #TAG}; nothing is asserted about the numbers themselves.
+ * 跑在真机上,结果看logcat: adb logcat -s VolleyBenchmark
+ */
+public final class Benchmarks {
+
+    public static final String TAG = "VolleyBenchmark";
+
+    /**
+     * Thread counts the concurrent benchmarks are run with.
+     */
+    public static final int[] THREAD_COUNTS = {1, 2, 4, 8, 16};
+
+    /**
+     * One step of a benchmark, called with the index of the calling thread and of the step.
+     */
+    public interface Operation {
+        public void run(int thread, int iteration) throws Exception;
+    }
+
+    private Benchmarks() {
+    }
+
+    /**
+     * Runs <code>iterations</code> steps on each of <code>threads</code> threads, all started
+     * together, and returns the steps completed per second over all threads. A short untimed
+     * run on the same threads comes first so the code is warm.
+     */
+    public static double opsPerSecond(int threads, final int iterations, final Operation op)
+            throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            run(executor, threads, Math.max(1, iterations / 10), op);
+            long start = System.nanoTime();
+            run(executor, threads, iterations, op);
+            long elapsed = System.nanoTime() - start;
+            return (double) threads * iterations * 1000000000L / Math.max(1, elapsed);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static void run(ExecutorService executor, int threads, final int iterations,
+                            final Operation op) throws Exception {
+        final CountDownLatch startSignal = new CountDownLatch(1);
+        List<Future<Void>> futures = new ArrayList<>(threads);
+        for (int t = 0; t < threads; t++) {
+            final int thread = t;
+            futures.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    startSignal.await();
+                    for (int i = 0; i < iterations; i++) {
+                        op.run(thread, i);
+                    }
+                    return null;
+                }
+            }));
+        }
+        startSignal.countDown();
+        for (Future<Void> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                throw cause instanceof Exception ? (Exception) cause : e;
+            }
+        }
+    }
+
+    /**
+     * Reports one result line.
+     */
+    public static void report(String benchmark, String format, Object... args) {
+        Log.i(TAG, benchmark + ": " + String.format(format, args));
+    }
+}
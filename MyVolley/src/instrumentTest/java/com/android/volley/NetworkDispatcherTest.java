@@ -0,0 +1,88 @@
+package com.android.volley;
+
+import com.android.volley.toolbox.HttpHeaderParser;
+
+import junit.framework.TestCase;
+
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+public class NetworkDispatcherTest extends TestCase {
+
+    /**
+     * A cache that only implements {@link Cache}, not {@link MappedCache}, still gets the
+     * revalidated entry after a 304, written as a whole.
+     */
+    public void testNotModifiedIsPutIntoPlainCache() throws Exception {
+        final Cache.Entry expired = new Cache.Entry();
+        expired.data = new byte[]{1, 2, 3};
+        expired.etag = "tag";
+        final CountDownLatch put = new CountDownLatch(1);
+        Cache cache = new Cache() {
+            @Override
+            public Entry get(String key) {
+                return expired;
+            }
+
+            @Override
+            public void put(String key, Entry entry) {
+                assertEquals(3, entry.data.length);
+                put.countDown();
+            }
+
+            @Override
+            public void initialize() {
+            }
+
+            @Override
+            public void invalidate(String key, boolean fullExpire) {
+            }
+
+            @Override
+            public void remove(String key) {
+            }
+
+            @Override
+            public void clear() {
+            }
+        };
+        Network network = new Network() {
+            @Override
+            public NetworkResponse performRequest(Request<?> request) {
+                return new NetworkResponse(request.getCacheEntry(),
+                        Collections.singletonMap("Cache-Control", "max-age=60"), null);
+            }
+        };
+        RequestQueue queue = new RequestQueue(cache, network, 1, new ExecutorDelivery(
+                new Executor() {
+                    @Override
+                    public void execute(Runnable command) {
+                        command.run();
+                    }
+                }));
+        queue.start();
+        try {
+            queue.add(new CachedRequest());
+            assertTrue(put.await(5, TimeUnit.SECONDS));
+        } finally {
+            queue.stop();
+        }
+    }
+
+    private static class CachedRequest extends Request<Void> {
+        CachedRequest() {
+            super(Method.GET, "http://example.com/", null);
+        }
+
+        @Override
+        protected Response<Void> parseNetworkResponse(NetworkResponse response) {
+            return Response.success(null, HttpHeaderParser.parseCacheHeaders(response));
+        }
+
+        @Override
+        protected void deliverResponse(Void response) {
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package com.android.volley;
+
+import com.android.volley.toolbox.NoCache;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Throughput of {@link RequestQueue#add} and {@link RequestQueue#finish} with concurrent
+ * producers. Each step adds two requests for the same cache key, so the second is parked
+ * behind the first, then finishes both, which releases the parked one. Producers share the
+ * key space, so they also contend on the same keys.
+ */
+public class RequestQueueBenchmark extends TestCase {
+
+    private static final int ITERATIONS = 20000;
+
+    private static final int KEYS = 256;
+
+    public void testAddFinishThroughput() throws Exception {
+        for (int threads : Benchmarks.THREAD_COUNTS) {
+            // 不start,请求只进队列,不会被分发出去.
+            final RequestQueue queue = new RequestQueue(new NoCache(), new NullNetwork(), 1,
+                    new ExecutorDelivery(new Executor() {
+                        @Override
+                        public void execute(Runnable command) {
+                            command.run();
+                        }
+                    }));
+            double ops = Benchmarks.opsPerSecond(threads, ITERATIONS, new Benchmarks.Operation() {
+                @Override
+                public void run(int thread, int iteration) {
+                    String url = "http://example.com/" + ((thread * 31 + iteration) % KEYS);
+                    Request<?> first = queue.add(new NullRequest(url));
+                    Request<?> second = queue.add(new NullRequest(url));
+                    first.finish("done");
+                    second.finish("done");
+                }
+            });
+            // 每一步是两次add加两次finish.
+            Benchmarks.report("RequestQueue add+finish", "%2d threads: %,.0f ops/s",
+                    threads, ops * 4);
+        }
+    }
+
+    private static class NullNetwork implements Network {
+        @Override
+        public NetworkResponse performRequest(Request<?> request) throws VolleyError {
+            throw new NoConnectionError();
+        }
+    }
+
+    private static class NullRequest extends Request<Void> {
+        NullRequest(String url) {
+            super(Method.GET, url, null);
+        }
+
+        @Override
+        protected Response<Void> parseNetworkResponse(NetworkResponse response) {
+            return Response.success(null, null);
+        }
+
+        @Override
+        protected void deliverResponse(Void response) {
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package com.android.volley.toolbox;
+
+import com.android.volley.Cache;
+import com.android.volley.NetworkResponse;
+import com.android.volley.Request;
+import com.android.volley.Response;
+import com.android.volley.VolleyError;
+
+import junit.framework.TestCase;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.ProtocolVersion;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.message.BasicHttpResponse;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+public class BasicNetworkTest extends TestCase {
+
+    public void testStreamingResponseWithoutSinkFailsWithVolleyError() {
+        BasicNetwork network = new BasicNetwork(new FakeStack(HttpStatus.SC_OK));
+        Request<Void> request = new TestRequest() {
+            @Override
+            public boolean isStreamingResponse() {
+                return true;
+            }
+        };
+        try {
+            network.performRequest(request);
+            fail("A streaming request without a response stream must fail");
+        } catch (VolleyError expected) {
+        }
+    }
+
+    public void testNotModifiedKeepsMappedBodyMapped() throws VolleyError {
+        BasicNetwork network = new BasicNetwork(new FakeStack(HttpStatus.SC_NOT_MODIFIED));
+        Cache.Entry entry = new Cache.Entry();
+        entry.etag = "tag";
+        entry.mappedData = ByteBuffer.wrap(new byte[]{4, 5, 6});
+        Request<Void> request = new TestRequest();
+        request.setCacheEntry(entry);
+
+        NetworkResponse response = network.performRequest(request);
+        assertTrue(response.notModified);
+        assertNull(response.data);
+        assertSame(entry.mappedData, response.mappedData);
+        assertEquals(3, response.getDataLength());
+        assertNotNull(response.refreshedCacheEntry);
+    }
+
+    /**
+     * Returns a response with the given status code and a short body, whatever is asked.
+     */
+    static class FakeStack implements HttpStack {
+        private final int mStatusCode;
+
+        FakeStack(int statusCode) {
+            mStatusCode = statusCode;
+        }
+
+        @Override
+        public HttpResponse performRequest(Request<?> request,
+                                           Map<String, String> additionalHeaders) {
+            BasicHttpResponse response = new BasicHttpResponse(
+                    new ProtocolVersion("HTTP", 1, 1), mStatusCode, "");
+            response.setEntity(new ByteArrayEntity(new byte[]{1, 2, 3}));
+            return response;
+        }
+    }
+
+    static class TestRequest extends Request<Void> {
+        TestRequest() {
+            super(Method.GET, "http://example.com/", null);
+        }
+
+        @Override
+        protected Response<Void> parseNetworkResponse(NetworkResponse response) {
+            return Response.success(null, null);
+        }
+
+        @Override
+        protected void deliverResponse(Void response) {
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package com.android.volley.toolbox;
+
+import com.android.volley.Benchmarks;
+
+import junit.framework.TestCase;
+
+import java.util.Random;
+
+/**
+ * Concurrent get/return throughput of {@link ByteArrayPool} against the pool it replaced,
+ * {@link LegacyByteArrayPool}. Each step does what {@link BasicNetwork} does for a response:
+ * a 1KB copy buffer plus a body buffer of 256B-32KB, both returned afterwards.
+ */
+public class ByteArrayPoolBenchmark extends TestCase {
+
+    private static final int ITERATIONS = 50000;
+
+    private static final int POOL_SIZE = 64 * 1024;
+
+    /**
+     * Body sizes, the same sequence for both pools.
+     */
+    private static final int[] SIZES = new int[1024];
+
+    static {
+        Random random = new Random(42);
+        for (int i = 0; i < SIZES.length; i++) {
+            SIZES[i] = 256 + random.nextInt(32 * 1024 - 256);
+        }
+    }
+
+    public void testGetReturnThroughput() throws Exception {
+        for (int threads : Benchmarks.THREAD_COUNTS) {
+            final LegacyByteArrayPool legacy = new LegacyByteArrayPool(POOL_SIZE);
+            double legacyOps = Benchmarks.opsPerSecond(threads, ITERATIONS,
+                    new Benchmarks.Operation() {
+                        @Override
+                        public void run(int thread, int iteration) {
+                            byte[] copy = legacy.getBuf(1024);
+                            byte[] body = legacy.getBuf(SIZES[(thread + iteration) % SIZES.length]);
+                            legacy.returnBuf(body);
+                            legacy.returnBuf(copy);
+                        }
+                    });
+
+            final ByteArrayPool pool = new ByteArrayPool(POOL_SIZE);
+            double ops = Benchmarks.opsPerSecond(threads, ITERATIONS, new Benchmarks.Operation() {
+                @Override
+                public void run(int thread, int iteration) {
+                    byte[] copy = pool.getBuf(1024);
+                    byte[] body = pool.getBuf(SIZES[(thread + iteration) % SIZES.length]);
+                    pool.returnBuf(body);
+                    pool.returnBuf(copy);
+                }
+            });
+
+            long gets = pool.getHitCount() + pool.getMissCount();
+            Benchmarks.report("ByteArrayPool get/return",
+                    "%2d threads: legacy %,.0f ops/s, size classes %,.0f ops/s (x%.1f), "
+                            + "hit rate %.1f%%, retained %,d bytes",
+                    threads, legacyOps, ops, ops / legacyOps,
+                    100.0 * pool.getHitCount() / Math.max(1, gets), pool.getRetainedBytes());
+        }
+    }
+}
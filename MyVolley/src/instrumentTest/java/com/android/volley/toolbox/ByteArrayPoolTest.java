@@ -0,0 +1,29 @@
+package com.android.volley.toolbox;
+
+import junit.framework.TestCase;
+
+public class ByteArrayPoolTest extends TestCase {
+
+    public void testGetBufOfNoLength() {
+        ByteArrayPool pool = new ByteArrayPool(4096);
+        assertNotNull(pool.getBuf(0));
+        assertNotNull(pool.getBuf(-1));
+    }
+
+    public void testReturnedBufferIsReused() {
+        ByteArrayPool pool = new ByteArrayPool(64 * 1024);
+        byte[] buf = pool.getBuf(10000);
+        assertTrue(buf.length >= 10000);
+        pool.returnBuf(buf);
+        assertSame(buf, pool.getBuf(9000));
+        assertEquals(1, pool.getHitCount());
+    }
+
+    public void testBufferOverLimitIsNotPooled() {
+        ByteArrayPool pool = new ByteArrayPool(4096);
+        byte[] buf = pool.getBuf(8192);
+        assertEquals(8192, buf.length);
+        pool.returnBuf(buf);
+        assertEquals(0, pool.getRetainedBytes());
+    }
+}
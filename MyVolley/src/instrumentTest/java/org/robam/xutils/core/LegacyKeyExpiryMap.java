@@ -17,25 +17,29 @@ package org.robam.xutils.core;
 
 import java.util.concurrent.ConcurrentHashMap;
 
-public class KeyExpiryMap<K, V> extends ConcurrentHashMap<K, Long> {
+/**
+ * The KeyExpiryMap that {@link LegacyLruMemoryCache} used, changed only so that
+ * {@link #containsKey} does not recurse on OpenJDK-based runtimes.
+ */
+class LegacyKeyExpiryMap<K, V> extends ConcurrentHashMap<K, Long> {
 
     private static final long serialVersionUID = 1L;
 
     private static final int DEFAULT_CONCURRENCY_LEVEL = 16;
 
-    public KeyExpiryMap(int initialCapacity, float loadFactor, int concurrencyLevel) {
+    LegacyKeyExpiryMap(int initialCapacity, float loadFactor, int concurrencyLevel) {
         super(initialCapacity, loadFactor, concurrencyLevel);
     }
 
-    public KeyExpiryMap(int initialCapacity, float loadFactor) {
+    LegacyKeyExpiryMap(int initialCapacity, float loadFactor) {
         super(initialCapacity, loadFactor, DEFAULT_CONCURRENCY_LEVEL);
     }
 
-    public KeyExpiryMap(int initialCapacity) {
+    LegacyKeyExpiryMap(int initialCapacity) {
         super(initialCapacity);
     }
 
-    public KeyExpiryMap() {
+    LegacyKeyExpiryMap() {
         super();
     }
 
@@ -59,8 +63,10 @@ public class KeyExpiryMap<K, V> extends ConcurrentHashMap<K, Long> {
     @Override
     public synchronized boolean containsKey(Object key) {
         boolean result = false;
-        if (super.containsKey(key)) {
-            if (System.currentTimeMillis() < super.get(key)) {
+        // 原来是super.containsKey(key),OpenJDK的containsKey会调被覆盖的get,无限递归.
+        Long expiryTimestamp = super.get(key);
+        if (expiryTimestamp != null) {
+            if (System.currentTimeMillis() < expiryTimestamp) {
                 result = true;
             } else {
                 this.remove(key);
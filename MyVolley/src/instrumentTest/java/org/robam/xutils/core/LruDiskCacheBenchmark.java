@@ -0,0 +1,88 @@
+package org.robam.xutils.core;
+
+import com.android.volley.Benchmarks;
+
+import junit.framework.TestCase;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Time to open an {@link LruDiskCache} whose journal lists 10k, 50k and 100k entries, with the
+ * text journal and with the binary one. Only the journal is written; the entry files are never
+ * touched while opening.
+ */
+public class LruDiskCacheBenchmark extends TestCase {
+
+    private static final int[] ENTRY_COUNTS = {10000, 50000, 100000};
+
+    private static final int RUNS = 5;
+
+    private File directory;
+
+    @Override
+    protected void setUp() throws Exception {
+        directory = File.createTempFile("LruDiskCacheBenchmark", null);
+        directory.delete();
+        directory.mkdirs();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        LruDiskCache.open(directory, 1, 1, Long.MAX_VALUE).delete();
+    }
+
+    public void testOpenTime() throws IOException {
+        for (int entries : ENTRY_COUNTS) {
+            writeTextJournal(entries);
+            double textMs = bestOpenMs(false);
+            // 第一次用binary打开会把journal转成binary格式,不计时.
+            LruDiskCache.open(directory, 1, 1, Long.MAX_VALUE, true).close();
+            double binaryMs = bestOpenMs(true);
+            Benchmarks.report("LruDiskCache open", "%,d entries: text %.1f ms, binary %.1f ms",
+                    entries, textMs, binaryMs);
+        }
+    }
+
+    /**
+     * Writes a text journal with one CLEAN line per entry, keyed like the default file name
+     * generator's MD5 names, and a READ line for every tenth entry.
+     */
+    private void writeTextJournal(int entries) throws IOException {
+        Writer writer = new BufferedWriter(
+                new FileWriter(new File(directory, LruDiskCache.JOURNAL_FILE)), 64 * 1024);
+        try {
+            writer.write("libcore.io.DiskLruCache\n1\n1\n1\n\n");
+            for (int i = 0; i < entries; i++) {
+                writer.write("CLEAN " + key(i) + " t_" + Long.MAX_VALUE + " " + (1024 + i) + "\n");
+            }
+            for (int i = 0; i < entries; i += 10) {
+                writer.write("READ " + key(i) + "\n");
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    private static String key(int i) {
+        return String.format("%032x", i * 2654435761L);
+    }
+
+    /**
+     * Opens and closes the cache {@link #RUNS} times and returns the fastest open. The journal
+     * is already in the given format, so opening does not rewrite it.
+     */
+    private double bestOpenMs(boolean binaryJournal) throws IOException {
+        long best = Long.MAX_VALUE;
+        for (int run = 0; run < RUNS; run++) {
+            long start = System.nanoTime();
+            LruDiskCache cache = LruDiskCache.open(directory, 1, 1, Long.MAX_VALUE, binaryJournal);
+            best = Math.min(best, System.nanoTime() - start);
+            cache.close();
+        }
+        return best / 1000000.0;
+    }
+}
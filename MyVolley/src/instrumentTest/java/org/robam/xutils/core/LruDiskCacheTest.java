@@ -0,0 +1,66 @@
+package org.robam.xutils.core;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+public class LruDiskCacheTest extends TestCase {
+
+    private File directory;
+
+    @Override
+    protected void setUp() throws Exception {
+        directory = File.createTempFile("LruDiskCacheTest", null);
+        directory.delete();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        LruDiskCache.open(directory, 1, 1, Long.MAX_VALUE).delete();
+    }
+
+    public void testTruncatedBinaryRecordIsNotAppendedTo() throws IOException {
+        assertTruncatedRecordIsNotAppendedTo(true);
+    }
+
+    public void testTruncatedTextLineIsNotAppendedTo() throws IOException {
+        assertTruncatedRecordIsNotAppendedTo(false);
+    }
+
+    /**
+     * Cuts the last journal record short, as a crash in the middle of a write would, and checks
+     * that what is written after opening again can still be read.
+     */
+    private void assertTruncatedRecordIsNotAppendedTo(boolean binaryJournal) throws IOException {
+        LruDiskCache cache = LruDiskCache.open(directory, 1, 1, Long.MAX_VALUE, binaryJournal);
+        set(cache, "a", "A");
+        set(cache, "b", "B");
+        cache.close();
+
+        File journal = new File(directory, LruDiskCache.JOURNAL_FILE);
+        RandomAccessFile file = new RandomAccessFile(journal, "rw");
+        try {
+            file.setLength(file.length() - 3);
+        } finally {
+            file.close();
+        }
+
+        cache = LruDiskCache.open(directory, 1, 1, Long.MAX_VALUE, binaryJournal);
+        assertEquals("A", cache.get("a").getString(0));
+        set(cache, "c", "C");
+        cache.close();
+
+        cache = LruDiskCache.open(directory, 1, 1, Long.MAX_VALUE, binaryJournal);
+        assertEquals("A", cache.get("a").getString(0));
+        assertEquals("C", cache.get("c").getString(0));
+        cache.close();
+    }
+
+    private static void set(LruDiskCache cache, String key, String value) throws IOException {
+        LruDiskCache.Editor editor = cache.edit(key);
+        editor.set(0, value);
+        editor.commit();
+    }
+}
@@ -0,0 +1,123 @@
+package org.robam.xutils.core;
+
+import com.android.volley.Benchmarks;
+
+import junit.framework.TestCase;
+
+import java.util.Random;
+
+/**
+ * Compares {@link LruMemoryCache} with {@link LegacyLruMemoryCache}, the synchronized
+ * LinkedHashMap it replaced: hit throughput with concurrent readers, and the hit rate of plain
+ * LRU against frequency admission (W-TinyLFU) on a trace with one-off bursts.
+ */
+public class LruMemoryCacheBenchmark extends TestCase {
+
+    private static final int[] READER_THREADS = {1, 2, 4, 8};
+
+    private static final int ITERATIONS = 200000;
+
+    private static final int ENTRIES = 1000;
+
+    /**
+     * The hit-rate trace: keys of the hot set are drawn with a Zipf-like skew, and every
+     * {@link #FLING_INTERVAL} accesses a burst of {@link #FLING_LENGTH} keys that are never seen
+     * again goes through the cache, like a fling through a long list of thumbnails.
+     */
+    private static final int HOT_KEYS = 1000;
+
+    private static final int CACHE_ENTRIES = 200;
+
+    private static final int ACCESSES = 200000;
+
+    private static final int FLING_INTERVAL = 5000;
+
+    private static final int FLING_LENGTH = 1000;
+
+    public void testHitThroughput() throws Exception {
+        final LegacyLruMemoryCache<String, String> legacy =
+                new LegacyLruMemoryCache<String, String>(ENTRIES);
+        final LruMemoryCache<String, String> current = new LruMemoryCache<String, String>(ENTRIES);
+        final String[] keys = new String[ENTRIES];
+        for (int i = 0; i < ENTRIES; i++) {
+            keys[i] = "key" + i;
+            legacy.put(keys[i], keys[i]);
+            current.put(keys[i], keys[i]);
+        }
+        for (int threads : READER_THREADS) {
+            double legacyOps = Benchmarks.opsPerSecond(threads, ITERATIONS,
+                    new Benchmarks.Operation() {
+                        @Override
+                        public void run(int thread, int iteration) {
+                            legacy.get(keys[(thread * 31 + iteration) % ENTRIES]);
+                        }
+                    });
+            double currentOps = Benchmarks.opsPerSecond(threads, ITERATIONS,
+                    new Benchmarks.Operation() {
+                        @Override
+                        public void run(int thread, int iteration) {
+                            current.get(keys[(thread * 31 + iteration) % ENTRIES]);
+                        }
+                    });
+            Benchmarks.report("LruMemoryCache hit",
+                    "%d threads: legacy %,.0f ops/s, current %,.0f ops/s",
+                    threads, legacyOps, currentOps);
+        }
+    }
+
+    public void testHitRateWithFlings() {
+        String[] trace = flingTrace();
+        LruMemoryCache<String, String> lru =
+                new LruMemoryCache<String, String>(CACHE_ENTRIES, false);
+        LruMemoryCache<String, String> tinyLfu =
+                new LruMemoryCache<String, String>(CACHE_ENTRIES, true);
+        replay(lru, trace);
+        replay(tinyLfu, trace);
+        Benchmarks.report("LruMemoryCache hit rate", "LRU %.1f%%, W-TinyLFU %.1f%%",
+                hitRate(lru), hitRate(tinyLfu));
+    }
+
+    private static String[] flingTrace() {
+        // 固定种子,每次跑的访问序列一样.
+        Random random = new Random(42);
+        double[] cumulative = new double[HOT_KEYS];
+        double total = 0;
+        for (int i = 0; i < HOT_KEYS; i++) {
+            total += 1.0 / (i + 1);
+            cumulative[i] = total;
+        }
+        String[] trace = new String[ACCESSES];
+        int oneOff = 0;
+        for (int i = 0; i < ACCESSES; i++) {
+            if (i % FLING_INTERVAL >= FLING_INTERVAL - FLING_LENGTH) {
+                trace[i] = "once" + oneOff++;
+                continue;
+            }
+            double target = random.nextDouble() * total;
+            int low = 0;
+            int high = HOT_KEYS - 1;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (cumulative[mid] < target) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            trace[i] = "hot" + low;
+        }
+        return trace;
+    }
+
+    private static void replay(LruMemoryCache<String, String> cache, String[] trace) {
+        for (String key : trace) {
+            if (cache.get(key) == null) {
+                cache.put(key, key);
+            }
+        }
+    }
+
+    private static double hitRate(LruMemoryCache<?, ?> cache) {
+        return 100.0 * cache.hitCount() / Math.max(1, cache.hitCount() + cache.missCount());
+    }
+}
@@ -0,0 +1,79 @@
+package org.robam.xutils.core;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class LruMemoryCacheTest extends TestCase {
+
+    /**
+     * Sized like a bitmap cache: the value is the size of the entry, so the 1% admission window
+     * of a 1000 unit cache is smaller than any entry.
+     */
+    private static class SizedCache extends LruMemoryCache<String, String> {
+        final List<String> evicted = new ArrayList<String>();
+        final List<String> rejected = new ArrayList<String>();
+
+        SizedCache() {
+            super(1000, true);
+        }
+
+        @Override
+        protected int sizeOf(String key, String value) {
+            return Integer.parseInt(value);
+        }
+
+        @Override
+        protected void entryRemoved(boolean evicted, String key, String oldValue, String newValue) {
+            if (evicted) {
+                this.evicted.add(key);
+            }
+        }
+
+        @Override
+        protected void entryRejected(String key, String value) {
+            rejected.add(key);
+        }
+    }
+
+    public void testAdmissionKeepsTheEntryJustPut() {
+        SizedCache cache = new SizedCache();
+        for (int i = 0; i < 8; i++) {
+            cache.put("hot" + i, "100");
+        }
+        for (int round = 0; round < 5; round++) {
+            for (int i = 0; i < 8; i++) {
+                assertEquals("100", cache.get("hot" + i));
+            }
+        }
+        for (int i = 0; i < 50; i++) {
+            String key = "cold" + i;
+            cache.put(key, "100");
+            assertTrue(key, cache.containsKey(key));
+        }
+        for (int i = 0; i < 8; i++) {
+            assertTrue("hot" + i, cache.containsKey("hot" + i));
+        }
+        // 比别的都大的,淘汰一个还不够,窗口里就只剩它自己了.
+        cache.put("large", "300");
+        assertTrue(cache.containsKey("large"));
+        assertFalse(cache.evicted.contains("large"));
+        // 被拒绝的只走entryRejected,不当作普通的淘汰.
+        assertFalse(cache.rejected.isEmpty());
+        for (String key : cache.rejected) {
+            assertFalse(key, cache.evicted.contains(key));
+        }
+    }
+
+    public void testLruWithoutAdmission() {
+        LruMemoryCache<String, String> cache = new LruMemoryCache<String, String>(2);
+        cache.put("a", "1");
+        cache.put("b", "2");
+        cache.get("a");
+        cache.put("c", "3");
+        assertTrue(cache.containsKey("a"));
+        assertFalse(cache.containsKey("b"));
+        assertTrue(cache.containsKey("c"));
+    }
+}
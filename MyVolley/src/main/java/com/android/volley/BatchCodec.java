@@ -0,0 +1,56 @@
+package com.android.volley;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Combines several requests into one HTTP request to a batch endpoint and splits its response
+ * back up, for {@link RequestQueue#setBatchCodec}. The wire format is up to the backend; see
+ * {@link com.android.volley.toolbox.JsonBatchCodec} for a JSON one.
+ * 合并请求的格式跟后台约定,这里只管打包和拆包.
+ */
+public interface BatchCodec {
+
+    /**
+     * Returns the URL of the batch endpoint the request can be combined into, or null if it
+     * has to go on its own. Only requests with the same batch URL are combined.
+     */
+    public String getBatchUrl(Request<?> request);
+
+    /**
+     * Returns the maximum number of requests in one batch; a full batch is sent right away.
+     */
+    public int getMaxBatchSize();
+
+    /**
+     * Returns the headers of the batch request, e.g. the credentials the parts share.
+     *
+     * @param parts The requests in the batch
+     */
+    public Map<String, String> getHeaders(List<Request<?>> parts) throws AuthFailureError;
+
+    /**
+     * Returns the content type of the body {@link #encode} builds.
+     */
+    public String getBodyContentType();
+
+    /**
+     * Builds the body of the POST to the batch endpoint that carries the given requests.
+     *
+     * @param parts The requests in the batch, at least two
+     */
+    public byte[] encode(List<Request<?>> parts) throws AuthFailureError;
+
+    /**
+     * Splits the response of the batch endpoint into one response per request, in the order
+     * of <code>parts</code>. Each response is parsed and cached by its own request; one that
+     * is not a 2xx is delivered to it as a {@link ServerError}.
+     *
+     * @param response The response of the batch endpoint
+     * @param parts    The requests in the batch
+     * @throws VolleyError if the response cannot be split; every request is then sent again
+     *                     on its own
+     */
+    public List<NetworkResponse> decode(NetworkResponse response, List<Request<?>> parts)
+            throws VolleyError;
+}
@@ -0,0 +1,128 @@
+package com.android.volley;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * The one HTTP request that carries a batch of requests, built by {@link RequestBatcher}.
+ * {@link NetworkDispatcher} splits its response with the {@link BatchCodec} and hands each
+ * part to its own request to parse, cache and deliver; if the batch fails, every part goes
+ * back on the network queue on its own.
+ */
+@SuppressWarnings("rawtypes")
+class BatchRequest extends Request<Void> {
+
+    private final BatchCodec mCodec;
+
+    private final List<Request<?>> mParts;
+
+    /**
+     * @param batchUrl URL of the batch endpoint
+     * @param parts    The requests to carry, at least two
+     */
+    BatchRequest(BatchCodec codec, String batchUrl, List<Request<?>> parts) {
+        super(Method.POST, batchUrl, null);
+        mCodec = codec;
+        mParts = Collections.unmodifiableList(parts);
+        setShouldCache(false);
+    }
+
+    /**
+     * Returns the requests this batch carries.
+     */
+    List<Request<?>> getParts() {
+        return mParts;
+    }
+
+    /**
+     * Splits the response into one per part, see {@link BatchCodec#decode}.
+     */
+    List<NetworkResponse> decode(NetworkResponse response) throws VolleyError {
+        List<NetworkResponse> responses = mCodec.decode(response, mParts);
+        if (responses == null || responses.size() != mParts.size()) {
+            throw new ParseError(response);
+        }
+        return responses;
+    }
+
+    /**
+     * Puts every part that is still wanted back on the network queue, to go on its own.
+     */
+    void unbatch(BlockingQueue<Request> networkQueue) {
+        for (Request<?> part : mParts) {
+            part.markUnbatched();
+            if (part.isCanceled()) {
+                part.finish("network-discard-cancelled");
+                continue;
+            }
+            part.addMarker("batch-failed-unbatched");
+            networkQueue.add(part);
+        }
+    }
+
+    /**
+     * Finishes every part of a batch that is dropped because all of them were cancelled, so
+     * their cache keys are released for the requests waiting on them.
+     */
+    void discardCancelled() {
+        for (Request<?> part : mParts) {
+            part.finish("network-discard-cancelled");
+        }
+    }
+
+    /**
+     * A batch nobody waits for any more is dropped, see {@link #discardCancelled()}.
+     */
+    @Override
+    public boolean isCanceled() {
+        for (Request<?> part : mParts) {
+            if (!part.isCanceled()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The most urgent part decides.
+     */
+    @Override
+    public Priority getPriority() {
+        Priority priority = Priority.LOW;
+        for (Request<?> part : mParts) {
+            if (part.getPriority().ordinal() > priority.ordinal()) {
+                priority = part.getPriority();
+            }
+        }
+        return priority;
+    }
+
+    @Override
+    public Map<String, String> getHeaders() throws AuthFailureError {
+        return mCodec.getHeaders(mParts);
+    }
+
+    @Override
+    public String getBodyContentType() {
+        return mCodec.getBodyContentType();
+    }
+
+    @Override
+    public byte[] getBody() throws AuthFailureError {
+        return mCodec.encode(mParts);
+    }
+
+    /**
+     * Not used; {@link NetworkDispatcher} hands the parts of the response to the parts.
+     */
+    @Override
+    protected Response<Void> parseNetworkResponse(NetworkResponse response) {
+        return Response.success(null, null);
+    }
+
+    @Override
+    protected void deliverResponse(Void response) {
+    }
+}
@@ -0,0 +1,65 @@
+package com.android.volley;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads a {@link ByteBuffer}, e.g. a memory-mapped cache body, without copying it to the heap.
+ */
+class ByteBufferInputStream extends InputStream {
+
+    private final ByteBuffer mBuffer;
+
+    /**
+     * @param buffer Buffer to read from its position to its limit; it is not shared, so pass a
+     *               {@link ByteBuffer#duplicate()} if it is
+     */
+    ByteBufferInputStream(ByteBuffer buffer) {
+        mBuffer = buffer;
+    }
+
+    @Override
+    public int read() {
+        return mBuffer.hasRemaining() ? mBuffer.get() & 0xff : -1;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int count) {
+        if (count == 0) {
+            return 0;
+        }
+        if (!mBuffer.hasRemaining()) {
+            return -1;
+        }
+        count = Math.min(count, mBuffer.remaining());
+        mBuffer.get(buffer, offset, count);
+        return count;
+    }
+
+    @Override
+    public long skip(long count) {
+        count = Math.max(0, Math.min(count, mBuffer.remaining()));
+        mBuffer.position(mBuffer.position() + (int) count);
+        return count;
+    }
+
+    @Override
+    public int available() {
+        return mBuffer.remaining();
+    }
+
+    @Override
+    public boolean markSupported() {
+        return true;
+    }
+
+    @Override
+    public synchronized void mark(int readLimit) {
+        mBuffer.mark();
+    }
+
+    @Override
+    public synchronized void reset() {
+        mBuffer.reset();
+    }
+}
@@ -16,6 +16,9 @@
 
 package com.android.volley;
 
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.util.Collections;
 import java.util.Map;
 
@@ -74,6 +77,12 @@ public interface Cache {
          */
         public byte[] data;
 
+        /**
+         * The data mapped from disk when {@link #data} was left null, see
+         * {@link MappedCache#getMapped}; null otherwise. Do not move its position.
+         */
+        public ByteBuffer mappedData;
+
         /**
          * ETag for cache coherency.etag保证缓存的一致性.唯一性?
          */
@@ -95,10 +104,36 @@ public interface Cache {
         public long softTtl;
 
         /**
-         * Immutable response headers as received from server; must be non-null.
+         * Immutable response headers as received from server; must be non-null. A
+         * {@link Headers} when the entry came from the network or {@link Cache#get}, holding
+         * every value of repeated headers, see {@link Headers#of}.
          */
         public Map<String, String> responseHeaders = Collections.emptyMap();
 
+        /**
+         * Returns the data as a byte[], copying it out of {@link #mappedData} the first time if
+         * the entry was mapped.
+         */
+        public byte[] getData() {
+            if (data == null && mappedData != null) {
+                ByteBuffer buffer = mappedData.duplicate();
+                byte[] bytes = new byte[buffer.remaining()];
+                buffer.get(bytes);
+                data = bytes;
+            }
+            return data;
+        }
+
+        /**
+         * Opens the data for reading without copying a mapped body to the heap.
+         */
+        public InputStream openData() {
+            if (data == null && mappedData != null) {
+                return new ByteBufferInputStream(mappedData.duplicate());
+            }
+            return new ByteArrayInputStream(data);
+        }
+
         /**
          * True if the entry is expired.
          */
@@ -113,6 +148,34 @@ public interface Cache {
         public boolean refreshNeeded() {
             return this.softTtl < System.currentTimeMillis();
         }
+
+        /**
+         * True if this stale entry may be served in place of an error while it cannot be
+         * revalidated, per the <code>stale-if-error</code> Cache-Control extension (RFC 5861).
+         * 服务器出错的时候,在stale-if-error的时间内还可以用旧数据顶着.
+         */
+        public boolean isUsableOnError() {
+            String cacheControl = responseHeaders.get("Cache-Control");
+            if (cacheControl == null) {
+                return false;
+            }
+            long staleIfError = 0;
+            String[] tokens = cacheControl.split(",");
+            for (int i = 0; i < tokens.length; i++) {
+                String token = tokens[i].trim();
+                if (token.equals("must-revalidate") || token.equals("proxy-revalidate")) {
+                    return false;
+                } else if (token.startsWith("stale-if-error=")) {
+                    try {
+                        staleIfError = Long.parseLong(token.substring(15));
+                    } catch (NumberFormatException e) {
+                        return false;
+                    }
+                }
+            }
+            return staleIfError > 0
+                    && this.softTtl + staleIfError * 1000 >= System.currentTimeMillis();
+        }
     }
 
 }
@@ -19,6 +19,8 @@ package com.android.volley;
 import android.os.Process;
 
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * Provides a thread for performing cache triage on a queue of requests.
@@ -107,12 +109,20 @@ public class CacheDispatcher extends Thread {
                     request.finish("cache-discard-canceled");
                     continue;
                 }
+                request.reportQueueWait();
 
                 // Attempt to retrieve this item from cache.
-                Cache.Entry entry = mCache.get(request.getCacheKey());
+                long lookupStart = request.timingStart();
+                // 只有实现了MappedCache的缓存才能映射,其他的还是读到内存.
+                boolean mapped = request.acceptsMappedCacheData() && mCache instanceof MappedCache;
+                Cache.Entry entry = mapped
+                        ? ((MappedCache) mCache).getMapped(request.getCacheKey())
+                        : mCache.get(request.getCacheKey());
+                request.reportTiming(RequestTimingListener.Stage.CACHE_LOOKUP, lookupStart);
                 if (entry == null) {
                     request.addMarker("cache-miss");
                     // Cache miss; send off to the network dispatcher.
+                    request.markQueued();
                     mNetworkQueue.put(request);
                     continue;
                 }
@@ -121,41 +131,20 @@ public class CacheDispatcher extends Thread {
                 if (entry.isExpired()) {
                     request.addMarker("cache-hit-expired");
                     request.setCacheEntry(entry);
+                    request.markQueued();
                     mNetworkQueue.put(request);
                     continue;
                 }
 
                 // We have a cache hit; parse its data for delivery back to the request.
                 request.addMarker("cache-hit");
-                Response<?> response = request.parseNetworkResponse(
-                        new NetworkResponse(entry.data, entry.responseHeaders));
-                request.addMarker("cache-hit-parsed");
-
-                if (!entry.refreshNeeded()) {
-                    // Completely unexpired cache hit. Just deliver the response.
-                    mDelivery.postResponse(request, response);
+                Executor parseExecutor = request.getParseExecutor();
+                if (parseExecutor != null) {
+                    // 解析交给别的线程,缓存线程接着处理下一个请求.
+                    request.addMarker("cache-parse-handoff");
+                    parseOn(parseExecutor, request, entry);
                 } else {
-                    // Soft-expired cache hit. We can deliver the cached response,
-                    // but we need to also send the request to the network for
-                    // refreshing.
-                    request.addMarker("cache-hit-refresh-needed");
-                    request.setCacheEntry(entry);
-
-                    // Mark the response as intermediate.
-                    response.intermediate = true;
-
-                    // Post the intermediate response back to the user and have
-                    // the delivery then forward the request along to the network.
-                    mDelivery.postResponse(request, response, new Runnable() {
-                        @Override
-                        public void run() {
-                            try {
-                                mNetworkQueue.put(request);
-                            } catch (InterruptedException e) {
-                                // Not much we can do about this.
-                            }
-                        }
-                    });
+                    deliverCacheHit(request, entry);
                 }
 
             } catch (InterruptedException e) {
@@ -167,4 +156,66 @@ public class CacheDispatcher extends Thread {
             }
         }
     }
+
+    /**
+     * Runs {@link #deliverCacheHit} on the given executor, or right here if it rejects the task.
+     */
+    private void parseOn(Executor executor, final Request request, final Cache.Entry entry) {
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        deliverCacheHit(request, entry);
+                    } catch (Exception e) {
+                        VolleyLog.e(e, "Unhandled exception %s", e.toString());
+                        mDelivery.postError(request, new VolleyError(e));
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            deliverCacheHit(request, entry);
+        }
+    }
+
+    /**
+     * Parses a cache hit and posts it back, sending it on to the network as well if it needs
+     * a refresh.
+     */
+    private void deliverCacheHit(final Request request, Cache.Entry entry) {
+        long parseStart = request.timingStart();
+        Response<?> response = request.parseNetworkResponse(new NetworkResponse(entry));
+        request.reportTiming(RequestTimingListener.Stage.PARSE, parseStart);
+        request.addMarker("cache-hit-parsed");
+
+        if (!entry.refreshNeeded()) {
+            // Completely unexpired cache hit. Just deliver the response.
+            mDelivery.postResponse(request, response);
+        } else {
+            // Soft-expired cache hit. We can deliver the cached response,
+            // but we need to also send the request to the network for
+            // refreshing.
+            // stale-while-revalidate: 旧数据先给出去,刷新在后台低优先级进行.
+            request.addMarker("cache-hit-refresh-needed");
+            request.setCacheEntry(entry);
+
+            // Mark the response as intermediate.
+            response.intermediate = true;
+
+            // Post the intermediate response back to the user and have
+            // the delivery then forward the request along to the network.
+            mDelivery.postResponse(request, response, new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        request.markBackgroundRefresh();
+                        request.markQueued();
+                        mNetworkQueue.put(request);
+                    } catch (InterruptedException e) {
+                        // Not much we can do about this.
+                    }
+                }
+            });
+        }
+    }
 }
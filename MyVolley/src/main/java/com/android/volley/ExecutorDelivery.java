@@ -63,12 +63,14 @@ public class ExecutorDelivery implements ResponseDelivery {
     public void postResponse(Request<?> request, Response<?> response, Runnable runnable) {
         request.markDelivered();
         request.addMarker("post-response");
+        request.markPosted();
         mResponsePoster.execute(new ResponseDeliveryRunnable(request, response, runnable));
     }
 
     @Override
     public void postError(Request<?> request, VolleyError error) {
         request.addMarker("post-error");
+        request.markPosted();
         Response<?> response = Response.error(error);
         mResponsePoster.execute(new ResponseDeliveryRunnable(request, response, null));
     }
@@ -104,6 +106,7 @@ public class ExecutorDelivery implements ResponseDelivery {
             } else {
                 mRequest.deliverError(mResponse.error);
             }
+            mRequest.reportDelivery();
 
             // If this is an intermediate response, add a marker, otherwise we're done
             // and the request can be finished.
@@ -0,0 +1,298 @@
+package com.android.volley;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * HTTP headers kept as parallel arrays of names and values, in the order they were received.
+ * 响应头用两个数组存:同名的头(Set-Cookie, Vary, Link)不会丢,每个响应也不用为每个头创建对象.
+ * <p/>
+ * As a {@link Map} it looks names up regardless of case and shows the first value of each
+ * name, so code written against the old single-valued maps keeps working; {@link #getAll}
+ * returns every value. {@link #put} replaces all values of a name, and {@link #putAll} with
+ * another Headers replaces the names it has with all of their values. Not thread safe; treat
+ * it as immutable once it has been handed to a response or a cache entry.
+ */
+public class Headers extends AbstractMap<String, String> {
+
+    private String[] mNames;
+
+    private String[] mValues;
+
+    private int mCount = 0;
+
+    public Headers() {
+        this(16);
+    }
+
+    /**
+     * @param capacity The number of name/value pairs to make room for
+     */
+    public Headers(int capacity) {
+        mNames = new String[Math.max(capacity, 4)];
+        mValues = new String[mNames.length];
+    }
+
+    /**
+     * Returns the given headers as Headers: the same instance if they already are, otherwise a
+     * copy. Null gives empty headers.
+     */
+    public static Headers of(Map<String, String> headers) {
+        if (headers instanceof Headers) {
+            return (Headers) headers;
+        }
+        return copyOf(headers);
+    }
+
+    /**
+     * Returns a copy of the given headers that can be changed without affecting them, with all
+     * values of repeated names if they are Headers. Null gives empty headers.
+     */
+    public static Headers copyOf(Map<String, String> headers) {
+        if (headers instanceof Headers) {
+            Headers other = (Headers) headers;
+            Headers result = new Headers(other.mCount + 4);
+            System.arraycopy(other.mNames, 0, result.mNames, 0, other.mCount);
+            System.arraycopy(other.mValues, 0, result.mValues, 0, other.mCount);
+            result.mCount = other.mCount;
+            return result;
+        }
+        Headers result = new Headers(headers == null ? 0 : headers.size() + 4);
+        if (headers != null) {
+            for (Map.Entry<String, String> header : headers.entrySet()) {
+                result.add(header.getKey(), header.getValue());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Adds a value, keeping the values the name already has.
+     */
+    public void add(String name, String value) {
+        if (name == null) {
+            throw new NullPointerException("name == null");
+        }
+        if (mCount == mNames.length) {
+            mNames = Arrays.copyOf(mNames, mCount * 2);
+            mValues = Arrays.copyOf(mValues, mCount * 2);
+        }
+        mNames[mCount] = name;
+        mValues[mCount] = value;
+        mCount++;
+    }
+
+    /**
+     * Returns the number of name/value pairs, counting every value of a repeated name.
+     */
+    public int getCount() {
+        return mCount;
+    }
+
+    /**
+     * Returns the name of the pair at the given index, as received.
+     */
+    public String getName(int index) {
+        if (index >= mCount) {
+            throw new IndexOutOfBoundsException(index + " >= " + mCount);
+        }
+        return mNames[index];
+    }
+
+    /**
+     * Returns the value of the pair at the given index.
+     */
+    public String getValue(int index) {
+        if (index >= mCount) {
+            throw new IndexOutOfBoundsException(index + " >= " + mCount);
+        }
+        return mValues[index];
+    }
+
+    /**
+     * Returns all values of the given name in the order received, or an empty list.
+     */
+    public List<String> getAll(String name) {
+        List<String> result = null;
+        for (int i = 0; i < mCount; i++) {
+            if (mNames[i].equalsIgnoreCase(name)) {
+                if (result == null) {
+                    result = new ArrayList<>(2);
+                }
+                result.add(mValues[i]);
+            }
+        }
+        return result != null ? result : Collections.<String>emptyList();
+    }
+
+    @Override
+    public String get(Object name) {
+        int index = indexOf(name);
+        return index >= 0 ? mValues[index] : null;
+    }
+
+    @Override
+    public boolean containsKey(Object name) {
+        return indexOf(name) >= 0;
+    }
+
+    @Override
+    public String put(String name, String value) {
+        String old = remove(name);
+        add(name, value);
+        return old;
+    }
+
+    /**
+     * Removes all values of the name.
+     *
+     * @return The first value removed, or null
+     */
+    @Override
+    public String remove(Object name) {
+        String first = null;
+        boolean found = false;
+        int kept = 0;
+        for (int i = 0; i < mCount; i++) {
+            if (name instanceof String && mNames[i].equalsIgnoreCase((String) name)) {
+                if (!found) {
+                    found = true;
+                    first = mValues[i];
+                }
+            } else {
+                mNames[kept] = mNames[i];
+                mValues[kept] = mValues[i];
+                kept++;
+            }
+        }
+        Arrays.fill(mNames, kept, mCount, null);
+        Arrays.fill(mValues, kept, mCount, null);
+        mCount = kept;
+        return first;
+    }
+
+    @Override
+    public void putAll(Map<? extends String, ? extends String> map) {
+        if (!(map instanceof Headers)) {
+            super.putAll(map);
+            return;
+        }
+        Headers other = (Headers) map;
+        if (other == this) {
+            return;
+        }
+        for (int i = 0; i < other.mCount; i++) {
+            remove(other.mNames[i]);
+        }
+        for (int i = 0; i < other.mCount; i++) {
+            add(other.mNames[i], other.mValues[i]);
+        }
+    }
+
+    @Override
+    public void clear() {
+        Arrays.fill(mNames, 0, mCount, null);
+        Arrays.fill(mValues, 0, mCount, null);
+        mCount = 0;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return mCount == 0;
+    }
+
+    /**
+     * Returns the number of distinct names.
+     */
+    @Override
+    public int size() {
+        int size = 0;
+        for (int i = 0; i < mCount; i++) {
+            if (isFirst(i)) {
+                size++;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Returns the first value of each distinct name; see {@link #getName} and
+     * {@link #getValue} for all pairs.
+     */
+    @Override
+    public Set<Map.Entry<String, String>> entrySet() {
+        return new AbstractSet<Map.Entry<String, String>>() {
+            @Override
+            public Iterator<Map.Entry<String, String>> iterator() {
+                return new Iterator<Map.Entry<String, String>>() {
+                    private int mNext = nextFirst(0);
+
+                    @Override
+                    public boolean hasNext() {
+                        return mNext < mCount;
+                    }
+
+                    @Override
+                    public Map.Entry<String, String> next() {
+                        if (mNext >= mCount) {
+                            throw new NoSuchElementException();
+                        }
+                        Map.Entry<String, String> entry =
+                                new SimpleImmutableEntry<>(mNames[mNext], mValues[mNext]);
+                        mNext = nextFirst(mNext + 1);
+                        return entry;
+                    }
+
+                    @Override
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return Headers.this.size();
+            }
+        };
+    }
+
+    private int indexOf(Object name) {
+        if (!(name instanceof String)) {
+            return -1;
+        }
+        for (int i = 0; i < mCount; i++) {
+            if (mNames[i].equalsIgnoreCase((String) name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns true if no earlier pair has the same name as the pair at the given index.
+     */
+    private boolean isFirst(int index) {
+        return indexOf(mNames[index]) == index;
+    }
+
+    /**
+     * Returns the index of the first pair from the given one on whose name has not been seen
+     * before it, or mCount.
+     */
+    private int nextFirst(int from) {
+        int i = from;
+        while (i < mCount && !isFirst(i)) {
+            i++;
+        }
+        return i;
+    }
+}
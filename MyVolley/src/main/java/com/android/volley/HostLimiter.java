@@ -0,0 +1,96 @@
+package com.android.volley;
+
+import android.net.Uri;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Caps the number of requests in flight per host (URL authority) across all
+ * {@link NetworkDispatcher}s, so one slow host cannot occupy every dispatcher.
+ * 一个很慢的CDN不能占用所有的网络线程,其他的Host还要用呢.
+ * <p/>
+ * A dispatcher that takes a request for a host that is already at its limit parks the
+ * request here and moves on. When a request for that host completes, the highest priority
+ * parked request goes back onto the network queue.
+ */
+@SuppressWarnings("rawtypes")
+class HostLimiter {
+
+    /**
+     * Per-host bookkeeping.
+     */
+    private static class HostState {
+        int active;
+        final PriorityQueue<Request> deferred = new PriorityQueue<>();
+    }
+
+    private final int mMaxRequestsPerHost;
+
+    private final BlockingQueue<Request> mNetworkQueue;
+
+    /**
+     * Hosts with requests in flight or parked; guarded by itself.
+     */
+    private final Map<String, HostState> mHosts = new HashMap<>();
+
+    /**
+     * @param maxRequestsPerHost Maximum number of requests in flight per host
+     * @param networkQueue       Queue that parked requests are returned to
+     */
+    HostLimiter(int maxRequestsPerHost, BlockingQueue<Request> networkQueue) {
+        mMaxRequestsPerHost = maxRequestsPerHost;
+        mNetworkQueue = networkQueue;
+    }
+
+    /**
+     * Takes a slot for the request's host. If the host is at its limit the request is parked
+     * and false is returned; the caller must then drop it without calling {@link #release}.
+     */
+    boolean tryAcquire(Request request) {
+        String host = getHost(request);
+        synchronized (mHosts) {
+            HostState state = mHosts.get(host);
+            if (state == null) {
+                state = new HostState();
+                mHosts.put(host, state);
+            }
+            if (state.active < mMaxRequestsPerHost) {
+                state.active++;
+                return true;
+            }
+            state.deferred.add(request);
+            return false;
+        }
+    }
+
+    /**
+     * Frees the slot taken by {@link #tryAcquire} and requeues one parked request for the host.
+     */
+    void release(Request request) {
+        String host = getHost(request);
+        Request next;
+        synchronized (mHosts) {
+            HostState state = mHosts.get(host);
+            if (state == null) {
+                return;
+            }
+            state.active--;
+            next = state.deferred.poll();
+            if (state.active == 0 && next == null) {
+                mHosts.remove(host);
+            }
+        }
+        if (next != null) {
+            mNetworkQueue.add(next);
+        }
+    }
+
+    private static String getHost(Request request) {
+        String url = request.getUrl();
+        String host = url == null ? null : Uri.parse(url).getAuthority();
+        return host == null ? "" : host;
+    }
+}
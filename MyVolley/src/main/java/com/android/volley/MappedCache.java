@@ -0,0 +1,32 @@
+package com.android.volley;
+
+/**
+ * A {@link Cache} that keeps bodies in files, so it can serve a hit without copying a large
+ * body to the heap and refresh an entry without rewriting its body. Optional: the dispatchers
+ * use it only if the cache implements it, and fall back to {@link Cache#get} and
+ * {@link Cache#put} otherwise.
+ * 可选的接口,老的Cache实现不用改.
+ */
+public interface MappedCache extends Cache {
+    /**
+     * Retrieves an entry from the cache like {@link #get}, except that a large body may be left
+     * on disk and memory-mapped into {@link Entry#mappedData} with {@link Entry#data} null,
+     * so a cache hit does not need a full heap copy. Read such a body with
+     * {@link Entry#openData()}, or {@link Entry#getData()} where a byte[] is really needed.
+     * 大的缓存数据不读到内存里,直接映射文件.
+     *
+     * @param key Cache key
+     * @return An {@link com.android.volley.Cache.Entry} or null in the event of a cache miss
+     */
+    public Entry getMapped(String key);
+
+    /**
+     * Refreshes the metadata (TTLs, ETag, server date and headers) of an existing entry without
+     * rewriting its data, e.g. after a 304. Does nothing if the key is not cached.
+     * 304的时候数据没变,只更新元数据,大数据不用整个重写.
+     *
+     * @param key   Cache key
+     * @param entry The new metadata; its data is ignored
+     */
+    public void updateMetadata(String key, Entry entry);
+}
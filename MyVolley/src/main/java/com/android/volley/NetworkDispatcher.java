@@ -20,7 +20,11 @@ import android.net.TrafficStats;
 import android.os.Build;
 import android.os.Process;
 
+import java.util.List;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Provides a thread for performing network dispatch from a queue of requests.
@@ -49,6 +53,22 @@ public class NetworkDispatcher extends Thread {
      * For posting responses and errors.在哪里传过来的?就是从RequestQueue
      */
     private final ResponseDelivery mDelivery;
+    /**
+     * The queue that owns this dispatcher in elastic mode, or null.
+     */
+    private final RequestQueue mPool;
+    /**
+     * Per-host concurrency limiter, or null for no limit.
+     */
+    private final HostLimiter mHostLimiter;
+    /**
+     * How long to wait for a request before offering to retire; 0 to wait forever.
+     */
+    private final long mKeepAliveMs;
+    /**
+     * Whether this dispatcher is currently reported idle to {@link #mPool}.
+     */
+    private boolean mIdle = false;
     /**
      * Used for telling us to die.
      */
@@ -66,10 +86,33 @@ public class NetworkDispatcher extends Thread {
     public NetworkDispatcher(BlockingQueue<Request> queue,
                              Network network, Cache cache,
                              ResponseDelivery delivery) {
+        this(queue, network, cache, delivery, null, null, 0);
+    }
+
+    /**
+     * Creates a dispatcher managed by a {@link RequestQueue} pool.
+     *
+     * @param pool        Queue to report idle state to and to ask before retiring
+     * @param hostLimiter Per-host concurrency limiter, or null
+     * @param keepAliveMs Idle time after which to offer to retire; 0 to never retire
+     */
+    NetworkDispatcher(BlockingQueue<Request> queue, Network network, Cache cache,
+                      ResponseDelivery delivery, RequestQueue pool, HostLimiter hostLimiter,
+                      long keepAliveMs) {
         mQueue = queue;
         mNetwork = network;
         mCache = cache;
         mDelivery = delivery;
+        mPool = pool;
+        mHostLimiter = hostLimiter;
+        mKeepAliveMs = keepAliveMs;
+    }
+
+    private void setIdle(boolean idle) {
+        if (mPool != null && mIdle != idle) {
+            mIdle = idle;
+            mPool.onDispatcherIdleChanged(idle);
+        }
     }
 
     /**
@@ -87,29 +130,67 @@ public class NetworkDispatcher extends Thread {
         Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
         Request request;
         while (true) {
+            setIdle(true);
             try {
                 // Take a request from the queue.
                 // TODO:是不是当前队列中没有任务,就会阻塞在这里呢?
-                request = mQueue.take();
+                if (mKeepAliveMs > 0) {
+                    request = mQueue.poll(mKeepAliveMs, TimeUnit.MILLISECONDS);
+                } else {
+                    request = mQueue.take();
+                }
             } catch (InterruptedException e) {
                 // We may have been interrupted because it was time to quit.
                 // TODO:这为什么不用同步锁?
                 if (mQuit) {
+                    setIdle(false);
                     return;
                 }
                 continue;
             }
+            setIdle(false);
 
-            try {
-                request.addMarker("network-queue-take");
+            if (request == null) {
+                // Idle for a whole keep-alive period; shrink the pool if it is above its minimum.
+                if (mQuit || mPool.retireNetworkDispatcher(this)) {
+                    return;
+                }
+                continue;
+            }
 
-                // If the request was cancelled already, do not perform the
-                // network request.
-                if (request.isCanceled()) {
-                    request.finish("network-discard-cancelled");
-                    continue;
+            request.addMarker("network-queue-take");
+
+            // If the request was cancelled already, do not perform the
+            // network request.
+            if (request.isCanceled()) {
+                if (request instanceof BatchRequest) {
+                    ((BatchRequest) request).discardCancelled();
                 }
+                request.finish("network-discard-cancelled");
+                continue;
+            }
+
+            // Nobody is waiting for the response any more; don't spend a dispatcher on it.
+            if (request.isPastDeadline()) {
+                request.addMarker("network-discard-deadline");
+                mDelivery.postError(request, new TimeoutError());
+                continue;
+            }
+
+            // 能合并的请求先攒一会儿,跟同一个后台的其他请求一起发.
+            RequestBatcher batcher = mPool != null ? mPool.getBatcher() : null;
+            if (batcher != null && batcher.offer(request)) {
+                continue;
+            }
+
+            // The host is already at its limit; the limiter will requeue the request later.
+            if (mHostLimiter != null && !mHostLimiter.tryAcquire(request)) {
+                request.addMarker("network-host-deferred");
+                continue;
+            }
+            request.reportQueueWait();
 
+            try {
                 // Tag the request (if API >= 14)
                 // 原来这是流量统计啊.系统提供了一个流量统计的功能,以后可以用咯
                 if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH) {
@@ -117,45 +198,193 @@ public class NetworkDispatcher extends Thread {
                 }
 
                 // Perform the network request.发起网络请求
-                NetworkResponse networkResponse = mNetwork.performRequest(request);
+                NetworkResponse networkResponse;
+                long networkStart = request.timingStart();
+                try {
+                    networkResponse = mNetwork.performRequest(request);
+                } finally {
+                    request.reportTiming(RequestTimingListener.Stage.NETWORK, networkStart);
+                }
                 request.addMarker("network-http-complete");
 
-                // If the server returned 304 AND we delivered a response already,
-                // we're done -- don't deliver a second identical response.
-                if (networkResponse.notModified && request.hasHadResponseDelivered()) {
-                    request.finish("not-modified");
+                if (request instanceof BatchRequest) {
+                    deliverBatch((BatchRequest) request, networkResponse);
                     continue;
                 }
 
-                // 解析数据,调用的是Request中的方法,这个方法开放自定义的.所以才能解析N中数据.
-                Response<?> response = request.parseNetworkResponse(networkResponse);
-                request.addMarker("network-parse-complete");
-
-                // Write to cache if applicable.
-                // TODO: Only update cache metadata instead of entire record for 304s.
-                // TODO:尼玛的,翻译读了十遍才明白什么意思:对于304等entire数据没有变化的,只更新缓存的metadata而不是整个记录.
-                if (request.shouldCache() && response.cacheEntry != null) {
-                    // 这里的CacheData就是需要缓存的数据啊.是从自定义的Request.parseNetworkResponse中传递过来的.
-                    // 所以这就给了一个很大的空间,需要缓存的就写入,不需要就传null
-                    mCache.put(request.getCacheKey(), response.cacheEntry);
-                    request.addMarker("network-cache-written");
+                if (networkResponse.notModified) {
+                    // 304: 数据没变,只刷新缓存的元数据(TTL, ETag, 响应头),不重新解析数据.
+                    // 没有实现MappedCache的缓存,解析以后还是整个写回去.
+                    if (request.shouldCache() && networkResponse.refreshedCacheEntry != null
+                            && mCache instanceof MappedCache) {
+                        ((MappedCache) mCache).updateMetadata(request.getCacheKey(),
+                                networkResponse.refreshedCacheEntry);
+                        request.addMarker("network-cache-refreshed");
+                    }
+
+                    // If the server returned 304 AND we delivered a response already,
+                    // we're done -- don't deliver a second identical response.
+                    if (request.hasHadResponseDelivered()) {
+                        request.finish("not-modified");
+                        continue;
+                    }
                 }
 
-                // Post the response back.
-                request.markDelivered();
-                // Post响应数据,估计是调用Listener的方法了.
-                mDelivery.postResponse(request, response);
+                // 解析交给别的线程(比如图片解码),网络线程回去接着做I/O.
+                Executor parseExecutor = request.getParseExecutor();
+                if (parseExecutor != null) {
+                    request.addMarker("network-parse-handoff");
+                    parseOn(parseExecutor, request, networkResponse);
+                } else {
+                    parseAndDeliver(request, networkResponse);
+                }
             } catch (VolleyError volleyError) {
-                parseAndDeliverNetworkError(request, volleyError);
+                if (request instanceof BatchRequest) {
+                    unbatch((BatchRequest) request);
+                } else {
+                    parseAndDeliverNetworkError(request, volleyError);
+                }
             } catch (Exception e) {
                 VolleyLog.e(e, "Unhandled exception %s", e.toString());
-                mDelivery.postError(request, new VolleyError(e));
+                if (request instanceof BatchRequest) {
+                    unbatch((BatchRequest) request);
+                } else {
+                    mDelivery.postError(request, new VolleyError(e));
+                }
+            } finally {
+                if (mHostLimiter != null) {
+                    mHostLimiter.release(request);
+                }
+            }
+        }
+    }
+
+    /**
+     * Hands each part of a batch response to its own request, as if it had been sent alone.
+     * A part that is not a 2xx is delivered as a {@link ServerError}.
+     */
+    private void deliverBatch(BatchRequest batch, NetworkResponse networkResponse) {
+        List<NetworkResponse> responses;
+        try {
+            responses = batch.decode(networkResponse);
+        } catch (VolleyError e) {
+            VolleyLog.e(e, "Cannot split batch response for %s", batch.getUrl());
+            unbatch(batch);
+            return;
+        }
+        batch.finish("batch-done");
+        List<Request<?>> parts = batch.getParts();
+        for (int i = 0; i < parts.size(); i++) {
+            Request<?> part = parts.get(i);
+            NetworkResponse response = responses.get(i);
+            part.addMarker("batch-http-complete");
+            if (part.isCanceled()) {
+                part.finish("network-discard-cancelled");
+                continue;
+            }
+            if (response.statusCode < 200 || response.statusCode > 299) {
+                parseAndDeliverNetworkError(part, new ServerError(response));
+                continue;
+            }
+            Executor parseExecutor = part.getParseExecutor();
+            if (parseExecutor != null) {
+                part.addMarker("network-parse-handoff");
+                parseOn(parseExecutor, part, response);
+            } else {
+                parseAndDeliver(part, response);
+            }
+        }
+    }
+
+    /**
+     * The batch failed as a whole; its parts are sent again one by one.
+     */
+    private void unbatch(BatchRequest batch) {
+        batch.unbatch(mQueue);
+        batch.finish("batch-unbatched");
+    }
+
+    /**
+     * Runs {@link #parseAndDeliver} on the given executor, or right here if it rejects the task.
+     */
+    private void parseOn(Executor executor, final Request<?> request,
+                         final NetworkResponse networkResponse) {
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    parseAndDeliver(request, networkResponse);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            parseAndDeliver(request, networkResponse);
+        }
+    }
+
+    /**
+     * Parses a network response, writes it to the cache if applicable and posts it back.
+     */
+    private void parseAndDeliver(Request<?> request, NetworkResponse networkResponse) {
+        try {
+            // 解析数据,调用的是Request中的方法,这个方法开放自定义的.所以才能解析N中数据.
+            long parseStart = request.timingStart();
+            Response<?> response = request.parseNetworkResponse(networkResponse);
+            request.reportTiming(RequestTimingListener.Stage.PARSE, parseStart);
+            request.addMarker("network-parse-complete");
+
+            // Write to cache if applicable. A 304 has refreshed the metadata above already if
+            // the cache is a MappedCache.
+            // 对于304等entire数据没有变化的,只更新缓存的metadata而不是整个记录.
+            if (request.shouldCache() && response.cacheEntry != null
+                    && (!networkResponse.notModified || !(mCache instanceof MappedCache))) {
+                // 这里的CacheData就是需要缓存的数据啊.是从自定义的Request.parseNetworkResponse中传递过来的.
+                // 所以这就给了一个很大的空间,需要缓存的就写入,不需要就传null
+                mCache.put(request.getCacheKey(), response.cacheEntry);
+                request.addMarker("network-cache-written");
             }
+
+            // Post the response back.
+            request.markDelivered();
+            // Post响应数据,估计是调用Listener的方法了.
+            mDelivery.postResponse(request, response);
+        } catch (Exception e) {
+            VolleyLog.e(e, "Unhandled exception %s", e.toString());
+            mDelivery.postError(request, new VolleyError(e));
         }
     }
 
     private void parseAndDeliverNetworkError(Request<?> request, VolleyError error) {
+        if (deliverStaleOnError(request)) {
+            return;
+        }
         error = request.parseNetworkError(error);
         mDelivery.postError(request, error);
     }
+
+    /**
+     * Handles a failed revalidation without surfacing the error where the cached response can
+     * stand in for it: a background refresh whose stale response was already delivered, or an
+     * expired entry still inside its <code>stale-if-error</code> window.
+     *
+     * @return true if the request has been dealt with
+     */
+    private boolean deliverStaleOnError(Request<?> request) {
+        if (request.isBackgroundRefresh() && request.hasHadResponseDelivered()) {
+            // 旧数据已经给出去了,后台刷新失败就算了,下次再刷新.
+            request.finish("network-refresh-failed");
+            return true;
+        }
+        Cache.Entry entry = request.getCacheEntry();
+        if (entry == null || !entry.isUsableOnError()) {
+            return false;
+        }
+        Response<?> response = request.parseNetworkResponse(new NetworkResponse(entry));
+        if (!response.isSuccess()) {
+            return false;
+        }
+        request.addMarker("network-error-stale-delivered");
+        request.markDelivered();
+        mDelivery.postResponse(request, response);
+        return true;
+    }
 }
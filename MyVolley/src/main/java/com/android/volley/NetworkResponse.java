@@ -18,6 +18,9 @@ package com.android.volley;
 
 import org.apache.http.HttpStatus;
 
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.util.Collections;
 import java.util.Map;
 
@@ -34,10 +37,72 @@ public class NetworkResponse {
      */
     public NetworkResponse(int statusCode, byte[] data, Map<String, String> headers,
             boolean notModified) {
+        this(statusCode, data, headers, notModified, null);
+    }
+
+    /**
+     * Creates a new network response.
+     * @param statusCode the HTTP status code
+     * @param data Response body
+     * @param headers Headers returned with this response, or null for none
+     * @param notModified True if the server returned a 304 and the data was already in cache
+     * @param refreshedCacheEntry For a 304, the cache entry with refreshed metadata, or null
+     */
+    public NetworkResponse(int statusCode, byte[] data, Map<String, String> headers,
+            boolean notModified, Cache.Entry refreshedCacheEntry) {
+        this(statusCode, data, null, headers, notModified, refreshedCacheEntry, null, null);
+    }
+
+    /**
+     * Creates a response whose body arrived content-encoded and is kept in that form for the
+     * cache as well as decoded.
+     * @param statusCode the HTTP status code
+     * @param data Decoded response body
+     * @param headers Headers returned with this response, without Content-Encoding
+     * @param encodedData The body as received
+     * @param contentEncoding The coding of <code>encodedData</code>, e.g. "gzip"
+     */
+    public NetworkResponse(int statusCode, byte[] data, Map<String, String> headers,
+            byte[] encodedData, String contentEncoding) {
+        this(statusCode, data, null, headers, false, null, encodedData, contentEncoding);
+    }
+
+    /**
+     * Creates a response for a cache hit. The body stays memory-mapped if the entry came from
+     * {@link MappedCache#getMapped}, in which case {@link #data} is null.
+     * @param entry The cache entry to serve
+     */
+    public NetworkResponse(Cache.Entry entry) {
+        this(HttpStatus.SC_OK, entry.data, entry.data == null ? entry.mappedData : null,
+                entry.responseHeaders, false, null, null, null);
+    }
+
+    /**
+     * Creates the response for a 304, serving the body of the cache entry that was revalidated.
+     * The body stays memory-mapped if the entry was, in which case {@link #data} is null.
+     * @param entry The cache entry that was revalidated
+     * @param headers The headers of the entry updated with those of the 304
+     * @param refreshedCacheEntry The cache entry with refreshed metadata, or null
+     */
+    public NetworkResponse(Cache.Entry entry, Map<String, String> headers,
+            Cache.Entry refreshedCacheEntry) {
+        this(HttpStatus.SC_NOT_MODIFIED, entry.data,
+                entry.data == null ? entry.mappedData : null, headers, true, refreshedCacheEntry,
+                null, null);
+    }
+
+    private NetworkResponse(int statusCode, byte[] data, ByteBuffer mappedData,
+            Map<String, String> headers, boolean notModified, Cache.Entry refreshedCacheEntry,
+            byte[] encodedData, String contentEncoding) {
         this.statusCode = statusCode;
         this.data = data;
-        this.headers = headers;
+        this.mappedData = mappedData;
+        this.allHeaders = Headers.of(headers);
+        this.headers = allHeaders;
         this.notModified = notModified;
+        this.refreshedCacheEntry = refreshedCacheEntry;
+        this.encodedData = encodedData;
+        this.contentEncoding = contentEncoding;
     }
 
     public NetworkResponse(byte[] data) {
@@ -54,9 +119,56 @@ public class NetworkResponse {
     /** Raw data from this response. */
     public final byte[] data;
 
-    /** Response headers. */
+    /**
+     * The memory-mapped body of a cache hit when {@link #data} is null, see
+     * {@link Request#acceptsMappedCacheData()}; null otherwise. Do not move its position.
+     */
+    public final ByteBuffer mappedData;
+
+    /**
+     * Opens the body for reading, without copying a mapped body to the heap.
+     */
+    public InputStream openData() {
+        if (data == null && mappedData != null) {
+            return new ByteBufferInputStream(mappedData.duplicate());
+        }
+        return new ByteArrayInputStream(data);
+    }
+
+    /**
+     * Returns the length of the body, whether it is in {@link #data} or {@link #mappedData}.
+     */
+    public int getDataLength() {
+        if (data != null) {
+            return data.length;
+        }
+        return mappedData != null ? mappedData.remaining() : 0;
+    }
+
+    /**
+     * Response headers, looked up regardless of case; a repeated header shows its first value
+     * here and all of them in {@link #allHeaders}.
+     */
     public final Map<String, String> headers;
 
+    /** The same headers as {@link #headers}, with every value of repeated names. */
+    public final Headers allHeaders;
+
     /** True if the server returned a 304 (Not Modified). */
     public final boolean notModified;
+
+    /**
+     * For a 304, the cached entry with its TTLs, ETag and headers refreshed from this response
+     * and its data unchanged, so the cache can be updated without re-parsing; null otherwise.
+     */
+    public final Cache.Entry refreshedCacheEntry;
+
+    /**
+     * The body as received, still content-encoded, when the network keeps that form for the
+     * cache; null otherwise. {@link #data} is always decoded.
+     */
+    public final byte[] encodedData;
+
+    /** The content coding of {@link #encodedData}, or null. */
+    public final String contentEncoding;
 }
\ No newline at end of file
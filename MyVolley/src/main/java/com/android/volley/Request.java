@@ -24,10 +24,13 @@ import android.text.TextUtils;
 
 import com.android.volley.VolleyLog.MarkerLog;
 
+import java.io.IOException;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
 import java.util.Collections;
 import java.util.Map;
+import java.util.concurrent.Executor;
 
 /**
  * Base class for all network requests.
@@ -92,6 +95,28 @@ public abstract class Request<T> implements Comparable<Request<T>> {
      */
     private Integer mSequence;
 
+    /**
+     * Priority aging step of the queue this request was added to; 0 if aging is disabled.
+     * The same for every request of a queue, see {@link RequestQueue#setPriorityAgingMs}.
+     */
+    private long mAgingMs = 0;
+
+    /**
+     * Scheduling key used when priority aging is enabled: the enqueue time, moved earlier by
+     * one aging step per priority level. Smaller keys are served first.
+     */
+    private long mAgedKey = 0;
+
+    /**
+     * {@link SystemClock#elapsedRealtime()} after which the response is no longer wanted, or 0.
+     */
+    private long mDeadline = 0;
+
+    /**
+     * Whether this request is revalidating a stale cache hit that has already been delivered.
+     */
+    private boolean mBackgroundRefresh = false;
+
     /**
      * The request queue this request is associated with.
      */
@@ -103,6 +128,16 @@ public abstract class Request<T> implements Comparable<Request<T>> {
      */
     private boolean mShouldCache = true;
 
+    /**
+     * Whether this request may be combined with others into one HTTP request.
+     */
+    private boolean mBatchable = false;
+
+    /**
+     * Whether this request now goes on its own: its batch failed or it was left alone in it.
+     */
+    private boolean mUnbatched = false;
+
     /**
      * Whether or not this request has been canceled.
      */
@@ -116,6 +151,17 @@ public abstract class Request<T> implements Comparable<Request<T>> {
     // A cheap variant of request tracing used to dump slow requests.
     private long mRequestBirthTime = 0;
 
+    /**
+     * {@link System#nanoTime()} when this request was last put on a dispatch queue, or 0 when
+     * no {@link RequestTimingListener} is installed.
+     */
+    private long mQueuedNanos = 0;
+
+    /**
+     * {@link System#nanoTime()} when a response or error was posted for delivery, or 0.
+     */
+    private long mPostedNanos = 0;
+
     /**
      * Threshold at which we should log the request (even when debug logging is not enabled).
      */
@@ -257,6 +303,58 @@ public abstract class Request<T> implements Comparable<Request<T>> {
         }
     }
 
+    /**
+     * Returns {@link System#nanoTime()} if this request's queue collects timings, otherwise 0
+     * so that untimed requests skip the clock read. Pass the result to {@link #reportTiming}.
+     */
+    long timingStart() {
+        RequestQueue queue = mRequestQueue;
+        return queue != null && queue.getRequestTimingListener() != null ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Reports a stage that started at <code>startNanos</code>, as returned by {@link #timingStart}.
+     */
+    void reportTiming(RequestTimingListener.Stage stage, long startNanos) {
+        if (startNanos == 0) {
+            return;
+        }
+        RequestTimingListener listener = mRequestQueue.getRequestTimingListener();
+        if (listener != null) {
+            listener.onStageTimed(this, stage, System.nanoTime() - startNanos);
+        }
+    }
+
+    /**
+     * Marks that this request is being put on a dispatch queue.
+     */
+    void markQueued() {
+        mQueuedNanos = timingStart();
+    }
+
+    /**
+     * Reports the time since {@link #markQueued}; called when a dispatcher starts on the request.
+     */
+    void reportQueueWait() {
+        reportTiming(RequestTimingListener.Stage.QUEUE_WAIT, mQueuedNanos);
+        mQueuedNanos = 0;
+    }
+
+    /**
+     * Marks that a response or error is being posted for delivery.
+     */
+    void markPosted() {
+        mPostedNanos = timingStart();
+    }
+
+    /**
+     * Reports the time since {@link #markPosted}; called once the listener has returned.
+     */
+    void reportDelivery() {
+        reportTiming(RequestTimingListener.Stage.DELIVERY, mPostedNanos);
+        mPostedNanos = 0;
+    }
+
     /**
      * Associates this request with the given queue. The request queue will be notified when this
      * request has finished.
@@ -282,6 +380,78 @@ public abstract class Request<T> implements Comparable<Request<T>> {
         return mSequence;
     }
 
+    /**
+     * Applies the priority aging of the queue this request is being added to. Called once by
+     * {@link RequestQueue#add(Request)}; the key is kept when the request is requeued.
+     * 等待越久,有效优先级越高,LOW的请求不会一直饿死.
+     */
+    void setPriorityAging(long agingMs) {
+        mAgingMs = agingMs;
+        if (agingMs > 0) {
+            mAgedKey = SystemClock.elapsedRealtime() - getPriority().ordinal() * agingMs;
+        }
+    }
+
+    /**
+     * Marks this request as a background revalidation of a stale response that has already been
+     * delivered. It is then scheduled at {@link Priority#LOW} behind requests that someone is
+     * waiting for. Used by {@link CacheDispatcher}.
+     */
+    void markBackgroundRefresh() {
+        mBackgroundRefresh = true;
+        if (mAgingMs > 0) {
+            mAgedKey = SystemClock.elapsedRealtime();
+        }
+    }
+
+    /**
+     * Returns true if this request is a background revalidation, see {@link #markBackgroundRefresh}.
+     */
+    public boolean isBackgroundRefresh() {
+        return mBackgroundRefresh;
+    }
+
+    /**
+     * The priority this request is queued with: {@link #getPriority()}, or {@link Priority#LOW}
+     * for a background refresh.
+     */
+    private Priority getSchedulingPriority() {
+        return mBackgroundRefresh ? Priority.LOW : getPriority();
+    }
+
+    /**
+     * Sets the time after which the response is no longer wanted. A request still queued
+     * past its deadline is dropped before it reaches the network and a {@link TimeoutError}
+     * is delivered instead. Cache hits are still delivered.
+     *
+     * @param deadline A {@link SystemClock#elapsedRealtime()} timestamp, or 0 for none
+     */
+    public void setDeadline(long deadline) {
+        mDeadline = deadline;
+    }
+
+    /**
+     * Sets the deadline relative to now. See {@link #setDeadline(long)}.
+     * 超过这个时间还没开始网络请求,就不要请求了.
+     */
+    public void setTimeToLive(long timeToLiveMs) {
+        setDeadline(SystemClock.elapsedRealtime() + timeToLiveMs);
+    }
+
+    /**
+     * Returns the deadline of this request, or 0 if it has none.
+     */
+    public long getDeadline() {
+        return mDeadline;
+    }
+
+    /**
+     * Returns true if this request has a deadline and it has passed.
+     */
+    public boolean isPastDeadline() {
+        return mDeadline > 0 && SystemClock.elapsedRealtime() > mDeadline;
+    }
+
     /**
      * Returns the URL of this request.
      */
@@ -300,6 +470,53 @@ public abstract class Request<T> implements Comparable<Request<T>> {
         return mProgressListener;
     }
 
+    /**
+     * Returns true if the response body should be written to
+     * {@link #openResponseStream(int, java.util.Map)} in chunks on the network thread
+     * instead of being buffered in memory. {@link NetworkResponse#data} is null for such
+     * responses. False by default; a request that returns true must also override
+     * {@link #openResponseStream}.
+     * 大文件下载时返回true,数据直接写到磁盘,不占用内存.
+     */
+    public boolean isStreamingResponse() {
+        return false;
+    }
+
+    /**
+     * Returns the executor that {@link #parseNetworkResponse} should run on, so that an
+     * expensive parse does not hold up a dispatcher thread; or null (the default) to parse on
+     * the dispatcher thread.
+     * 耗时的解析(比如图片解码)交给别的线程,网络线程回去接着做I/O.
+     */
+    public Executor getParseExecutor() {
+        return null;
+    }
+
+    /**
+     * Returns true if {@link #parseNetworkResponse} can read a cache hit from
+     * {@link NetworkResponse#openData()}, so that a large cached body can be served
+     * memory-mapped (with {@link NetworkResponse#data} null) instead of being copied to the
+     * heap first. False by default.
+     */
+    public boolean acceptsMappedCacheData() {
+        return false;
+    }
+
+    /**
+     * Opens the sink that a successful response body will be copied into when
+     * {@link #isStreamingResponse()} returns true. The caller closes the stream.
+     *
+     * @param statusCode the HTTP status code of the response
+     * @param headers    the response headers
+     * @return the sink, or null (the default) if there is none, which fails the request with
+     * a {@link VolleyError}
+     * @throws IOException if the sink cannot be opened
+     */
+    public OutputStream openResponseStream(int statusCode, Map<String, String> headers)
+            throws IOException {
+        return null;
+    }
+
     /**
      * Annotates this request with an entry retrieved for it from cache.
      * Used for cache coherency support.
@@ -445,6 +662,49 @@ public abstract class Request<T> implements Comparable<Request<T>> {
         return null;
     }
 
+    /**
+     * Returns true if the POST or PUT body should be written by {@link #writeBody} in chunks
+     * on the network thread instead of being built in memory by {@link #getBody()}. False by
+     * default.
+     * 大的上传(日志、统计数据)边生成边写,不用整个放在内存里.
+     */
+    public boolean isStreamingBody() {
+        return false;
+    }
+
+    /**
+     * Returns the length in bytes of the body that {@link #writeBody} writes, or -1 if it is
+     * not known in advance, in which case the body is sent chunked.
+     */
+    public long getBodyLength() {
+        return -1;
+    }
+
+    /**
+     * Writes the body when {@link #isStreamingBody()} returns true. Called again for every
+     * retry, so it must be able to produce the body more than once. Do not close the stream.
+     * By default writes {@link #getBody()}, so override it together with
+     * {@link #isStreamingBody()} to actually stream.
+     *
+     * @param out the stream the body goes to; it compresses it if {@link #shouldGzipBody()}
+     * @throws IOException if the body cannot be written
+     */
+    public void writeBody(OutputStream out) throws IOException, AuthFailureError {
+        byte[] body = getBody();
+        if (body != null) {
+            out.write(body);
+        }
+    }
+
+    /**
+     * Returns true if the body should be gzip compressed on the wire, with a
+     * "Content-Encoding: gzip" request header. Only servers that accept compressed request
+     * bodies can read it, so this is false by default.
+     */
+    public boolean shouldGzipBody() {
+        return false;
+    }
+
     /**
      * Converts <code>params</code> into an application/x-www-form-urlencoded encoded string.
      */
@@ -477,6 +737,29 @@ public abstract class Request<T> implements Comparable<Request<T>> {
         return mShouldCache;
     }
 
+    /**
+     * Set whether this request may be combined with other small requests to the same backend
+     * into one HTTP request, see {@link RequestQueue#setBatchCodec}. False by default.
+     * 打开页面时的一堆小请求合并成一次请求发出去.
+     */
+    public final void setBatchable(boolean batchable) {
+        mBatchable = batchable;
+    }
+
+    /**
+     * Returns true if this request may be batched, see {@link #setBatchable}.
+     */
+    public final boolean isBatchable() {
+        return mBatchable && !mUnbatched;
+    }
+
+    /**
+     * Sends this request on its own from now on, see {@link RequestBatcher}.
+     */
+    void markUnbatched() {
+        mUnbatched = true;
+    }
+
     /**
      * Priority values.  Requests will be processed from higher priorities to
      * lower priorities, in FIFO order.
@@ -574,11 +857,21 @@ public abstract class Request<T> implements Comparable<Request<T>> {
     /**
      * Our comparator sorts from high to low priority, and secondarily by
      * sequence number to provide FIFO ordering.
+     * <p/>
+     * With priority aging enabled on the queue, requests are instead ordered by their aged
+     * key: each priority level is worth one aging step of waiting time, so a request that has
+     * waited longer than that overtakes newer requests of the next higher priority. The keys
+     * are fixed at enqueue time, which keeps the queue ordering stable. All requests of a queue
+     * share its aging step, so they are all compared by the same rule.
      */
     @Override
     public int compareTo(Request<T> other) {
-        Priority left = this.getPriority();
-        Priority right = other.getPriority();
+        if (this.mAgingMs > 0 && this.mAgedKey != other.mAgedKey) {
+            return this.mAgedKey < other.mAgedKey ? -1 : 1;
+        }
+
+        Priority left = this.getSchedulingPriority();
+        Priority right = other.getSchedulingPriority();
 
         // High-priority requests are "lesser" so they are sorted to the front.
         // Equal priorities are sorted by sequence number to provide FIFO ordering.
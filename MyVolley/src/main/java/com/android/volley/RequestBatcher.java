@@ -0,0 +1,134 @@
+package com.android.volley;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects batchable requests taken by the {@link NetworkDispatcher}s for a short window and
+ * sends the ones for the same batch endpoint as one {@link BatchRequest}.
+ * 一屏几十个小的JSON请求,合成一次往返,而不是每个都占一个网络线程和一次RTT.
+ * <p/>
+ * A batch is sent when its window ends or as soon as it is full. A batch with only one request
+ * left goes back on the network queue as a plain request.
+ */
+@SuppressWarnings("rawtypes")
+class RequestBatcher {
+
+    private final BatchCodec mCodec;
+
+    private final long mWindowMs;
+
+    private final RequestQueue mQueue;
+
+    private final BlockingQueue<Request> mNetworkQueue;
+
+    /**
+     * Requests waiting for their batch to be sent, by batch URL; guarded by itself.
+     */
+    private final Map<String, List<Request<?>>> mPending = new HashMap<>();
+
+    /**
+     * Ends the windows; its thread goes away while nothing is pending.
+     */
+    private final ScheduledThreadPoolExecutor mTimer;
+
+    /**
+     * @param codec        Decides what can be combined and how
+     * @param windowMs     How long to wait for more requests after the first one of a batch
+     * @param queue        Queue the batch requests are added to
+     * @param networkQueue Queue that requests which end up alone are returned to
+     */
+    RequestBatcher(BatchCodec codec, long windowMs, RequestQueue queue,
+                   BlockingQueue<Request> networkQueue) {
+        mCodec = codec;
+        mWindowMs = windowMs;
+        mQueue = queue;
+        mNetworkQueue = networkQueue;
+        mTimer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "Volley-Batcher");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        mTimer.setKeepAliveTime(mWindowMs + 1000, TimeUnit.MILLISECONDS);
+        mTimer.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Takes the request into a batch if it can be combined. If false is returned, the caller
+     * sends it on its own as usual.
+     */
+    boolean offer(Request request) {
+        if (!request.isBatchable() || request instanceof BatchRequest) {
+            return false;
+        }
+        final String batchUrl = mCodec.getBatchUrl(request);
+        if (batchUrl == null) {
+            return false;
+        }
+        List<Request<?>> full = null;
+        synchronized (mPending) {
+            List<Request<?>> parts = mPending.get(batchUrl);
+            if (parts == null) {
+                parts = new ArrayList<>();
+                mPending.put(batchUrl, parts);
+                mTimer.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        flush(batchUrl);
+                    }
+                }, mWindowMs, TimeUnit.MILLISECONDS);
+            }
+            parts.add(request);
+            request.addMarker("batch-pending");
+            // 满了就马上发,不等窗口结束.窗口结束时发现已经没有了就什么也不做.
+            if (parts.size() >= mCodec.getMaxBatchSize()) {
+                full = mPending.remove(batchUrl);
+            }
+        }
+        if (full != null) {
+            send(batchUrl, full);
+        }
+        return true;
+    }
+
+    private void flush(String batchUrl) {
+        List<Request<?>> parts;
+        synchronized (mPending) {
+            parts = mPending.remove(batchUrl);
+        }
+        if (parts != null) {
+            send(batchUrl, parts);
+        }
+    }
+
+    private void send(String batchUrl, List<Request<?>> parts) {
+        for (Iterator<Request<?>> it = parts.iterator(); it.hasNext(); ) {
+            Request<?> part = it.next();
+            if (part.isCanceled()) {
+                part.finish("network-discard-cancelled");
+                it.remove();
+            }
+        }
+        if (parts.isEmpty()) {
+            return;
+        }
+        if (parts.size() == 1) {
+            Request<?> part = parts.get(0);
+            part.markUnbatched();
+            part.addMarker("batch-single");
+            mNetworkQueue.add(part);
+            return;
+        }
+        mQueue.add(new BatchRequest(mCodec, batchUrl, parts));
+    }
+}
@@ -19,12 +19,14 @@ package com.android.volley;
 import android.os.Handler;
 import android.os.Looper;
 
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.LinkedList;
-import java.util.Map;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -57,12 +59,13 @@ public class RequestQueue {
      * <ul>
      * <li>containsKey(cacheKey) indicates that there is a request in flight for the given cache
      * key.</li>
-     * <li>get(cacheKey) returns waiting requests for the given cache key. The in flight request
-     * is <em>not</em> contained in that list. Is null if no requests are staged.</li>
+     * <li>get(cacheKey) returns the stage of waiting requests for the given cache key. The in
+     * flight request is <em>not</em> contained in that stage.</li>
      * </ul>
+     * Concurrent map plus one monitor per stage, so there is no global lock on add/finish.
      */
-    private final Map<String, Queue<Request>> mWaitingRequests =
-            new HashMap<>();
+    private final ConcurrentMap<String, WaitingRequests> mWaitingRequests =
+            new ConcurrentHashMap<>();
 
     /**
      * 等待和正在处理的请求都在此队列
@@ -70,7 +73,8 @@ public class RequestQueue {
      * will be in this set if it is waiting in any queue or currently being processed by
      * any dispatcher.
      */
-    private final Set<Request> mCurrentRequests = new HashSet<>();
+    private final Set<Request> mCurrentRequests =
+            Collections.newSetFromMap(new ConcurrentHashMap<Request, Boolean>());
 
     /**
      * The cache triage queue.
@@ -81,14 +85,18 @@ public class RequestQueue {
     /**
      * The queue of requests that are actually going out to the network.
      */
-    private final PriorityBlockingQueue<Request> mNetworkQueue =
-            new PriorityBlockingQueue<>();
+    private final PriorityBlockingQueue<Request> mNetworkQueue = new NetworkQueue();
 
     /**
      * Number of network request dispatcher threads to start.
      */
     public static final int DEFAULT_NETWORK_THREAD_POOL_SIZE = 4;
 
+    /**
+     * How long a network dispatcher above the minimum pool size stays idle before exiting.
+     */
+    public static final int DEFAULT_DISPATCHER_KEEP_ALIVE_MS = 30 * 1000;
+
     /**
      * Cache interface for retrieving and storing respones.
      */
@@ -105,9 +113,60 @@ public class RequestQueue {
     private final ResponseDelivery mDelivery;
 
     /**
-     * The network dispatchers.进行网络处理
+     * The network dispatchers.进行网络处理.弹性模式下数量在 min 和 max 之间变化.
+     * Guarded by itself.
+     */
+    private final List<NetworkDispatcher> mDispatchers = new ArrayList<>();
+
+    /**
+     * Number of network dispatchers always kept running.
+     */
+    private final int mMinNetworkThreads;
+
+    /**
+     * Upper bound the network dispatcher pool may grow to when the network queue backs up.
+     */
+    private final int mMaxNetworkThreads;
+
+    /**
+     * Per-host concurrency limiter, or null if hosts are not limited.
+     */
+    private final HostLimiter mHostLimiter;
+
+    /**
+     * Number of network dispatchers currently waiting for a request.
+     */
+    private final AtomicInteger mIdleDispatchers = new AtomicInteger();
+
+    /**
+     * Number of network dispatchers currently running; read without holding the lock.
      */
-    private NetworkDispatcher[] mDispatchers;
+    private volatile int mDispatcherCount = 0;
+
+    /**
+     * Whether {@link #start()} has been called and {@link #stop()} has not.
+     */
+    private boolean mStarted = false;
+
+    /**
+     * Priority aging step in milliseconds, or 0 for strict priority ordering.
+     */
+    private volatile long mPriorityAgingMs = 0;
+
+    /**
+     * Whether a request has been added; the priority aging is fixed from then on.
+     */
+    private volatile boolean mRequestAdded = false;
+
+    /**
+     * Receives per-stage request timings, or null.
+     */
+    private volatile RequestTimingListener mTimingListener;
+
+    /**
+     * Combines batchable requests, or null while batching is off.
+     */
+    private volatile RequestBatcher mBatcher;
 
     /**
      * The cache dispatcher.缓存处理
@@ -124,12 +183,52 @@ public class RequestQueue {
      */
     public RequestQueue(Cache cache, Network network, int threadPoolSize,
                         ResponseDelivery delivery) {
+        this(cache, network, threadPoolSize, threadPoolSize, 0, delivery);
+    }
+
+    /**
+     * Creates an elastic worker pool. Processing will not begin until {@link #start()} is called.
+     * <p/>
+     * 弹性线程池:队列里等待的请求比空闲的线程多时增加线程,直到 maxThreads;
+     * 多出来的线程空闲 {@link #DEFAULT_DISPATCHER_KEEP_ALIVE_MS} 后退出.
+     * 同时限制每个Host同时进行的请求数,一个慢的Host不会占满所有线程.
+     *
+     * @param cache              A Cache to use for persisting responses to disk
+     * @param network            A Network interface for performing HTTP requests
+     * @param minThreads         Number of network dispatcher threads always kept running
+     * @param maxThreads         Maximum number of network dispatcher threads
+     * @param maxRequestsPerHost Maximum requests in flight per host, or 0 for no limit
+     * @param delivery           A ResponseDelivery interface for posting responses and errors
+     */
+    public RequestQueue(Cache cache, Network network, int minThreads, int maxThreads,
+                        int maxRequestsPerHost, ResponseDelivery delivery) {
+        if (minThreads < 1 || maxThreads < minThreads) {
+            throw new IllegalArgumentException("Invalid pool size: " + minThreads + ".." + maxThreads);
+        }
         mCache = cache;
         mNetwork = network;
-        mDispatchers = new NetworkDispatcher[threadPoolSize];
+        mMinNetworkThreads = minThreads;
+        mMaxNetworkThreads = maxThreads;
+        mHostLimiter = maxRequestsPerHost > 0
+                ? new HostLimiter(maxRequestsPerHost, mNetworkQueue) : null;
         mDelivery = delivery;
     }
 
+    /**
+     * Creates an elastic worker pool. Processing will not begin until {@link #start()} is called.
+     *
+     * @param cache              A Cache to use for persisting responses to disk
+     * @param network            A Network interface for performing HTTP requests
+     * @param minThreads         Number of network dispatcher threads always kept running
+     * @param maxThreads         Maximum number of network dispatcher threads
+     * @param maxRequestsPerHost Maximum requests in flight per host, or 0 for no limit
+     */
+    public RequestQueue(Cache cache, Network network, int minThreads, int maxThreads,
+                        int maxRequestsPerHost) {
+        this(cache, network, minThreads, maxThreads, maxRequestsPerHost,
+                new ExecutorDelivery(new Handler(Looper.getMainLooper())));
+    }
+
     /**
      * Creates the worker pool. Processing will not begin until {@link #start()} is called.
      *
@@ -162,12 +261,69 @@ public class RequestQueue {
         mCacheDispatcher.start();
 
         // Create network dispatchers (and corresponding threads) up to the pool size.
-        for (int i = 0; i < mDispatchers.length; i++) {
-            NetworkDispatcher networkDispatcher = new NetworkDispatcher(mNetworkQueue, mNetwork,
-                    mCache, mDelivery);
-            mDispatchers[i] = networkDispatcher;
-            // 让网络处理器开始工作.它会不断地循环获取队列中的任务.
-            networkDispatcher.start();
+        synchronized (mDispatchers) {
+            mStarted = true;
+            for (int i = 0; i < mMinNetworkThreads; i++) {
+                startNetworkDispatcher();
+            }
+        }
+    }
+
+    /**
+     * Starts one more network dispatcher. Must hold the lock on {@link #mDispatchers}.
+     */
+    private void startNetworkDispatcher() {
+        // 只有弹性模式的线程才会空闲退出.
+        long keepAliveMs = mMaxNetworkThreads > mMinNetworkThreads
+                ? DEFAULT_DISPATCHER_KEEP_ALIVE_MS : 0;
+        NetworkDispatcher networkDispatcher = new NetworkDispatcher(mNetworkQueue, mNetwork,
+                mCache, mDelivery, this, mHostLimiter, keepAliveMs);
+        mDispatchers.add(networkDispatcher);
+        mDispatcherCount = mDispatchers.size();
+        // 让网络处理器开始工作.它会不断地循环获取队列中的任务.
+        networkDispatcher.start();
+    }
+
+    /**
+     * Grows the pool by one dispatcher if requests are waiting with no idle dispatcher to
+     * take them.
+     */
+    private void maybeGrowNetworkDispatchers() {
+        if (mDispatcherCount >= mMaxNetworkThreads
+                || mNetworkQueue.size() <= mIdleDispatchers.get()) {
+            return;
+        }
+        synchronized (mDispatchers) {
+            if (mStarted && mDispatchers.size() < mMaxNetworkThreads) {
+                startNetworkDispatcher();
+            }
+        }
+    }
+
+    /**
+     * Called by a {@link NetworkDispatcher} when it starts or stops waiting for a request.
+     */
+    void onDispatcherIdleChanged(boolean idle) {
+        if (idle) {
+            mIdleDispatchers.incrementAndGet();
+        } else {
+            mIdleDispatchers.decrementAndGet();
+        }
+    }
+
+    /**
+     * Called by a {@link NetworkDispatcher} that has been idle for its keep-alive period.
+     *
+     * @return true if the dispatcher should exit
+     */
+    boolean retireNetworkDispatcher(NetworkDispatcher dispatcher) {
+        synchronized (mDispatchers) {
+            if (mDispatchers.size() > mMinNetworkThreads && mNetworkQueue.isEmpty()) {
+                mDispatchers.remove(dispatcher);
+                mDispatcherCount = mDispatchers.size();
+                return true;
+            }
+            return false;
         }
     }
 
@@ -179,13 +335,71 @@ public class RequestQueue {
         if (mCacheDispatcher != null) {
             mCacheDispatcher.quit();
         }
-        for (int i = 0; i < mDispatchers.length; i++) {
-            if (mDispatchers[i] != null) {
-                mDispatchers[i].quit();
+        synchronized (mDispatchers) {
+            mStarted = false;
+            for (NetworkDispatcher dispatcher : mDispatchers) {
+                dispatcher.quit();
             }
+            mDispatchers.clear();
+            mDispatcherCount = 0;
         }
     }
 
+    /**
+     * Enables priority aging: every <code>agingMs</code> a request waits counts as one
+     * {@link Request.Priority} level, so LOW requests cannot starve under sustained load.
+     * 0 (the default) keeps strict priority ordering.
+     * <p/>
+     * All requests of a queue have to be ordered by the same rule, so this can only be set
+     * before the first request is added.
+     *
+     * @throws IllegalStateException if a request has been added already
+     */
+    public void setPriorityAgingMs(long agingMs) {
+        if (mRequestAdded) {
+            throw new IllegalStateException("setPriorityAgingMs called after add");
+        }
+        mPriorityAgingMs = agingMs;
+    }
+
+    /**
+     * Installs a listener for per-stage timings of every request in this queue (queue wait,
+     * cache lookup, network, parse and delivery), or null to stop collecting them. Requests
+     * are not timed at all while no listener is installed.
+     * 线上统计p50/p99可以用 {@link com.android.volley.toolbox.RequestTimingHistogram}.
+     */
+    public void setRequestTimingListener(RequestTimingListener listener) {
+        mTimingListener = listener;
+    }
+
+    /**
+     * Returns the installed {@link RequestTimingListener}, or null.
+     */
+    public RequestTimingListener getRequestTimingListener() {
+        return mTimingListener;
+    }
+
+    /**
+     * Turns on batching: requests marked with {@link Request#setBatchable} that the codec can
+     * combine are held for up to <code>windowMs</code> after the first of them reaches the
+     * network and then sent as one HTTP request, or earlier once
+     * {@link BatchCodec#getMaxBatchSize()} of them are waiting. Every request still parses,
+     * caches and delivers its own response; if the batch fails they are sent one by one.
+     * Like {@link com.android.volley.toolbox.ImageLoader#setBatchedResponseDelay}, this trades
+     * a little latency for fewer round trips.
+     * Null turns batching off again for requests taken from now on.
+     */
+    public void setBatchCodec(BatchCodec codec, long windowMs) {
+        mBatcher = codec == null ? null : new RequestBatcher(codec, windowMs, this, mNetworkQueue);
+    }
+
+    /**
+     * Returns the batcher, or null while batching is off.
+     */
+    RequestBatcher getBatcher() {
+        return mBatcher;
+    }
+
     /**
      * Gets a sequence number.
      */
@@ -214,11 +428,9 @@ public class RequestQueue {
      * @param filter The filtering function to use
      */
     public void cancelAll(RequestFilter filter) {
-        synchronized (mCurrentRequests) {
-            for (Request<?> request : mCurrentRequests) {
-                if (filter.apply(request)) {
-                    request.cancel();
-                }
+        for (Request<?> request : mCurrentRequests) {
+            if (filter.apply(request)) {
+                request.cancel();
             }
         }
     }
@@ -246,16 +458,17 @@ public class RequestQueue {
      * @return The passed-in request
      */
     public Request add(Request request) {
+        mRequestAdded = true;
         // Tag the request as belonging to this queue and add it to the set of current requests.
         request.setRequestQueue(this);
         // 只要进行请求的,都放到当前的队列中
-        synchronized (mCurrentRequests) {
-            mCurrentRequests.add(request);
-        }
+        mCurrentRequests.add(request);
 
         // Process requests in the order they are added.
         request.setSequence(getSequenceNumber());
+        request.setPriorityAging(mPriorityAgingMs);
         request.addMarker("add-to-queue");
+        request.markQueued();
 
         // 如果不支持缓存,直接进入网络队列
         // If the request is uncacheable, skip the cache queue and go straight to the network.
@@ -265,27 +478,25 @@ public class RequestQueue {
         }
 
         // Insert request into stage if there's already a request with the same cache key in flight.
-        synchronized (mWaitingRequests) {
-            String cacheKey = request.getCacheKey();
-            if (mWaitingRequests.containsKey(cacheKey)) {
-                // There is already a request in flight. Queue up.
-                Queue<Request> stagedRequests = mWaitingRequests.get(cacheKey);
-                if (stagedRequests == null) {
-                    stagedRequests = new LinkedList<>();
+        // 每个cacheKey有自己的锁,不同的cacheKey之间不会互相阻塞.
+        String cacheKey = request.getCacheKey();
+        while (true) {
+            WaitingRequests stagedRequests = mWaitingRequests.get(cacheKey);
+            if (stagedRequests == null) {
+                // Register an empty stage for this cacheKey, indicating there is now a request
+                // in flight.
+                if (mWaitingRequests.putIfAbsent(cacheKey, new WaitingRequests()) == null) {
+                    mCacheQueue.add(request);
+                    return request;
                 }
-                stagedRequests.add(request);
-                mWaitingRequests.put(cacheKey, stagedRequests);
+            } else if (stagedRequests.offer(request)) {
+                // There is already a request in flight. Queue up.
                 if (VolleyLog.DEBUG) {
                     VolleyLog.v("Request for cacheKey=%s is in flight, putting on hold.", cacheKey);
                 }
-            } else {
-                // Insert 'null' queue for this cacheKey, indicating there is now a request in
-                // flight.
-                mWaitingRequests.put(cacheKey, null);
-                // TODO:这个是什么意思?
-                mCacheQueue.add(request);
+                return request;
             }
-            return request;
+            // The in-flight request finished while we were looking; try again.
         }
     }
 
@@ -300,14 +511,13 @@ public class RequestQueue {
      */
     void finish(Request request) {
         // Remove from the set of requests currently being processed.
-        synchronized (mCurrentRequests) {
-            mCurrentRequests.remove(request);
-        }
+        mCurrentRequests.remove(request);
 
         if (request.shouldCache()) {
-            synchronized (mWaitingRequests) {
-                String cacheKey = request.getCacheKey();
-                Queue<Request> waitingRequests = mWaitingRequests.remove(cacheKey);
+            String cacheKey = request.getCacheKey();
+            WaitingRequests stagedRequests = mWaitingRequests.remove(cacheKey);
+            if (stagedRequests != null) {
+                Queue<Request> waitingRequests = stagedRequests.release();
                 if (waitingRequests != null) {
                     if (VolleyLog.DEBUG) {
                         VolleyLog.v("Releasing %d waiting requests for cacheKey=%s.",
@@ -321,4 +531,53 @@ public class RequestQueue {
             }
         }
     }
+
+    /**
+     * The network queue; grows the dispatcher pool whenever a request is queued and every
+     * dispatcher is busy. All producers (add, the cache dispatcher, the host limiter) go
+     * through {@link #offer(Request)}.
+     */
+    private class NetworkQueue extends PriorityBlockingQueue<Request> {
+        @Override
+        public boolean offer(Request request) {
+            boolean added = super.offer(request);
+            if (mMaxNetworkThreads > mMinNetworkThreads) {
+                maybeGrowNetworkDispatchers();
+            }
+            return added;
+        }
+    }
+
+    /**
+     * Requests staged behind an in-flight request with the same cache key. Each stage has its
+     * own monitor, so adding and releasing requests for different cache keys never contend.
+     * Once released a stage accepts no more requests; {@link #add(Request)} then retries
+     * against a fresh stage.
+     */
+    private static class WaitingRequests {
+        private Queue<Request> mRequests;
+        private boolean mReleased = false;
+
+        /**
+         * Adds a request to this stage; returns false if the stage has already been released.
+         */
+        synchronized boolean offer(Request request) {
+            if (mReleased) {
+                return false;
+            }
+            if (mRequests == null) {
+                mRequests = new ArrayDeque<>();
+            }
+            mRequests.add(request);
+            return true;
+        }
+
+        /**
+         * Closes this stage and returns the staged requests, or null if there are none.
+         */
+        synchronized Queue<Request> release() {
+            mReleased = true;
+            return mRequests;
+        }
+    }
 }
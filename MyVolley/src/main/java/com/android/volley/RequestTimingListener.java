@@ -0,0 +1,48 @@
+package com.android.volley;
+
+/**
+ * Receives per-stage timings of requests, see {@link RequestQueue#setRequestTimingListener}.
+ * 线上统计用的:MarkerLog只有DEBUG才有,这个一直有,没有设置Listener的时候几乎没有开销.
+ * <p/>
+ * Called from the cache and network dispatcher threads and from the delivery thread, so
+ * implementations must be thread safe and return quickly.
+ */
+public interface RequestTimingListener {
+
+    /**
+     * The stages of a request's lifecycle that are timed.
+     */
+    public enum Stage {
+        /**
+         * From being added to (or handed on to) a dispatch queue until a dispatcher starts on
+         * it, including time parked behind an identical in-flight request or a busy host.
+         * Reported once for the cache queue and once for the network queue.
+         */
+        QUEUE_WAIT,
+        /**
+         * {@link Cache#get} for the request's cache key.
+         */
+        CACHE_LOOKUP,
+        /**
+         * {@link Network#performRequest}, including retries; reported for failures too.
+         */
+        NETWORK,
+        /**
+         * {@link Request#parseNetworkResponse}, for cache hits and network responses.
+         */
+        PARSE,
+        /**
+         * From posting the response or error until the request's listener has returned.
+         */
+        DELIVERY
+    }
+
+    /**
+     * Called when a stage of a request completes.
+     *
+     * @param request       The request
+     * @param stage         The stage that completed
+     * @param durationNanos How long the stage took, in nanoseconds
+     */
+    public void onStageTimed(Request<?> request, Stage stage, long durationNanos);
+}
@@ -20,6 +20,7 @@ import android.os.SystemClock;
 
 import com.android.volley.AuthFailureError;
 import com.android.volley.Cache;
+import com.android.volley.Headers;
 import com.android.volley.Network;
 import com.android.volley.NetworkError;
 import com.android.volley.NetworkResponse;
@@ -42,6 +43,8 @@ import org.apache.http.impl.cookie.DateUtils;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.net.MalformedURLException;
 import java.net.SocketTimeoutException;
 import java.util.Date;
@@ -66,6 +69,11 @@ public class BasicNetwork implements Network {
 
     protected final ByteArrayPool mPool;
 
+    /**
+     * Whether content-encoded bodies are cached as received, see {@link #setCacheEncodedBodies}.
+     */
+    private volatile boolean mCacheEncodedBodies = false;
+
     /**
      * @param httpStack HTTP stack to be used
      */
@@ -84,6 +92,18 @@ public class BasicNetwork implements Network {
         mPool = pool;
     }
 
+    /**
+     * Chooses the form in which responses that arrive gzip or deflate encoded are cached. By
+     * default the body is decoded while it is read and cached decoded. When enabled, the body
+     * is also kept as received and cached in that form, which usually takes several times less
+     * disk space, at the cost of decoding it again on every cache hit. The {@link Cache} must
+     * then decode entries that carry a Content-Encoding header, as {@link DiskBasedCache} does.
+     * 压缩存储省磁盘空间,但每次读缓存都要再解压一次.
+     */
+    public void setCacheEncodedBodies(boolean cacheEncodedBodies) {
+        mCacheEncodedBodies = cacheEncodedBodies;
+    }
+
     /**
      * 执行网络请求,最重要的获取数据线程.xUtils的请求思路有点像
      * performRequest返回的是Volley定义的NetworkResponse.
@@ -103,11 +123,17 @@ public class BasicNetwork implements Network {
         while (true) {
             HttpResponse httpResponse = null;
             byte[] responseContents = null;
-            Map<String, String> responseHeaders = new HashMap<>();
+            boolean streaming = false;
+            Headers responseHeaders = new Headers(0);
             try {
                 // Gather headers.
                 Map<String, String> headers = new HashMap<>();
                 addCacheHeaders(headers, request.getCacheEntry());
+                // 要求服务器压缩响应,下面边读边解压.直接写磁盘的大文件不要,断点续传的偏移是按原始数据算的.
+                if (!request.isStreamingResponse()
+                        && !ContentEncoding.hasAcceptEncoding(request.getHeaders())) {
+                    headers.put(ContentEncoding.HEADER_ACCEPT_ENCODING, ContentEncoding.ACCEPTED);
+                }
                 // 尼玛,网络请求就一句话啊.难道是因为用了两种网络请求的方法才需要一个stack接口吗? 可能是吧
                 httpResponse = mHttpStack.performRequest(request, headers);
 
@@ -116,14 +142,52 @@ public class BasicNetwork implements Network {
                 StatusLine statusLine = httpResponse.getStatusLine();
                 int statusCode = statusLine.getStatusCode();
 
-                responseHeaders = convertHeaders(httpResponse.getAllHeaders());
+                responseHeaders = convertHeaders(httpResponse);
                 // Handle cache validation.只是数据使用旧的,响应头和状态码都是新的.但是,一定能确定有缓存吗?
                 if (statusCode == HttpStatus.SC_NOT_MODIFIED) {
-                    return new NetworkResponse(HttpStatus.SC_NOT_MODIFIED,
-                            request.getCacheEntry().data, responseHeaders, true);
+                    return notModifiedResponse(request.getCacheEntry(), responseHeaders);
+                }
+
+                // 大文件直接写到磁盘,不经过内存.只有成功的响应才写,错误信息还是读到内存.
+                if (request.isStreamingResponse() && (statusCode == HttpStatus.SC_OK
+                        || statusCode == HttpStatus.SC_PARTIAL_CONTENT)) {
+                    streaming = true;
+                    // 断点续传时,进度从已有的位置开始算.
+                    long offset = 0;
+                    long total = -1;
+                    long[] range = statusCode == HttpStatus.SC_PARTIAL_CONTENT
+                            ? HttpHeaderParser.parseContentRange(responseHeaders) : null;
+                    if (range != null) {
+                        offset = range[0];
+                        total = range[2];
+                    }
+                    OutputStream out = request.openResponseStream(statusCode, responseHeaders);
+                    if (out == null) {
+                        // isStreamingResponse()返回true,却没有覆盖openResponseStream.重试也没用.
+                        throw new VolleyError("No response stream for " + request);
+                    }
+                    long written = entityToStream(httpResponse.getEntity(), request, out, offset, total);
+                    long requestLifetime = SystemClock.elapsedRealtime() - requestStart;
+                    if (DEBUG || requestLifetime > SLOW_REQUEST_THRESHOLD_MS) {
+                        VolleyLog.d("HTTP response for request=<%s> [lifetime=%d], [streamed=%d], " +
+                                "[rc=%d]", request, requestLifetime, written, statusCode);
+                    }
+                    return new NetworkResponse(statusCode, null, responseHeaders, false);
                 }
 
-                responseContents = entityToBytes(httpResponse.getEntity(), request.getProgressListener());
+                String coding = ContentEncoding.get(responseHeaders);
+                byte[] encodedContents = null;
+                if (coding != null) {
+                    responseHeaders = ContentEncoding.stripEncodingHeaders(responseHeaders);
+                }
+                if (coding != null && mCacheEncodedBodies && statusCode == HttpStatus.SC_OK
+                        && request.shouldCache()) {
+                    // 压缩的原始数据留给缓存.
+                    encodedContents = entityToBytes(httpResponse.getEntity(), request, null);
+                    responseContents = ContentEncoding.decode(encodedContents, coding);
+                } else {
+                    responseContents = entityToBytes(httpResponse.getEntity(), request, coding);
+                }
 
                 // if the request is slow, log it.
                 long requestLifetime = SystemClock.elapsedRealtime() - requestStart;
@@ -133,6 +197,10 @@ public class BasicNetwork implements Network {
                 if (statusCode != HttpStatus.SC_OK && statusCode != HttpStatus.SC_NO_CONTENT) {
                     throw new IOException();
                 }
+                if (encodedContents != null) {
+                    return new NetworkResponse(statusCode, responseContents, responseHeaders,
+                            encodedContents, coding);
+                }
                 return new NetworkResponse(statusCode, responseContents, responseHeaders, false);
             } catch (SocketTimeoutException e) {
                 attemptRetryOnException("socket", request, new TimeoutError());
@@ -148,6 +216,11 @@ public class BasicNetwork implements Network {
                 } else {
                     throw new NoConnectionError(e);
                 }
+                if (streaming && !request.isCanceled()) {
+                    // 写到一半断开了.请求会从已经写入的位置继续,不用从头开始.
+                    attemptRetryOnException("stream", request, new NetworkError(e));
+                    continue;
+                }
                 VolleyLog.e("Unexpected response code %d for %s", statusCode, request.getUrl());
                 if (responseContents != null) {
                     networkResponse = new NetworkResponse(statusCode, responseContents,
@@ -230,36 +303,88 @@ public class BasicNetwork implements Network {
     /**
      * Reads the contents of HttpEntity into a byte[].如果Entity太大,会不会导致OOM? byte[]是OOM的罪魁祸首
      * 这才是获取数据真正的地方!!!经过测试,在这里才获取数据.
-     * 但是,有一个很大的问题,它在下载的时候是在内存缓存区开辟空间接收数据的,内存一下子就占了和下载文件的大小.
-     * 所以这种做法很不适合下载大文件.只适合小文件而已.注意内存的占用.看来还是得参照xutils另外写
+     * 它在下载的时候是在内存缓存区开辟空间接收数据的,内存一下子就占了和下载文件的大小.
+     * 所以大文件请使用 {@link com.android.volley.Request#isStreamingResponse()},通过 {@link #entityToStream} 直接写到磁盘.
+     *
+     * @param coding the content coding to decode while reading, see {@link ContentEncoding},
+     *               or null to read the body as is
      */
-    private byte[] entityToBytes(HttpEntity entity, Response.ProgressListener progressListener) throws IOException, ServerError {
+    private byte[] entityToBytes(HttpEntity entity, Request<?> request, String coding)
+            throws IOException, ServerError {
         PoolingByteArrayOutputStream bytes = new PoolingByteArrayOutputStream(mPool, (int) entity.getContentLength());
+        try {
+            copyEntity(entity, request, bytes, 0, -1, coding);
+            return bytes.toByteArray();
+        } finally {
+            bytes.close();
+        }
+    }
+
+    /**
+     * Copies the contents of HttpEntity into the given stream in pooled chunks, so memory use
+     * stays bounded no matter how large the body is. The stream is closed when done.
+     *
+     * @param offset the position of the first byte within the whole resource, for progress
+     * @param total  the length of the whole resource, or -1 if only the entity length is known
+     * @return the number of bytes written
+     */
+    private long entityToStream(HttpEntity entity, Request<?> request, OutputStream out,
+                                long offset, long total) throws IOException, ServerError {
+        try {
+            return copyEntity(entity, request, out, offset, total, null);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Copies the entity content into <code>out</code>, reporting progress to the request's
+     * {@link Response.ProgressListener} and aborting once the request is canceled.
+     *
+     * @param coding the content coding to decode while copying, or null
+     */
+    private long copyEntity(HttpEntity entity, Request<?> request, OutputStream out,
+                            long offset, long total, String coding) throws IOException, ServerError {
+        Response.ProgressListener progressListener = request.getProgressListener();
 
         // 以下是控制进度的.
         boolean updateProgress = (progressListener != null);
-        long current = 0;
+        long current = offset;
         long lastUpdateTime = 0;
         long currentUpdateTime = 0;
-        long total = 0;
         long UPDATE_RATE = 1000;
         //public init
         if (updateProgress) {
-            total = entity.getContentLength();
+            if (total < 0) {
+                // 解压后的长度事先不知道.
+                long length = coding != null ? -1 : entity.getContentLength();
+                total = length < 0 ? length : offset + length;
+            }
             progressListener.onProgressing(current, total);
             lastUpdateTime = System.currentTimeMillis();
         }
 
         byte[] buffer = null;
+        InputStream decoder = null;
         try {
             InputStream in = entity.getContent();
             if (in == null) {
                 throw new ServerError();
             }
+            if (coding != null) {
+                in = decoder = ContentEncoding.decode(in, coding);
+            }
             buffer = mPool.getBuf(1024);
             int count;
+            long written = 0;
             while ((count = in.read(buffer)) != -1) {
-                bytes.write(buffer, 0, count);
+                // 取消了就不要再读了,大文件可以省下很多流量.
+                if (request.isCanceled()) {
+                    request.addMarker("network-copy-cancelled");
+                    throw new InterruptedIOException("Request canceled");
+                }
+                out.write(buffer, 0, count);
+                written += count;
                 if (updateProgress) {
                     current += count;
                     currentUpdateTime = System.currentTimeMillis();
@@ -269,8 +394,17 @@ public class BasicNetwork implements Network {
                     }
                 }
             }
-            return bytes.toByteArray();
+            if (updateProgress) {
+                progressListener.onProgressing(current, total);
+            }
+            return written;
         } finally {
+            if (decoder != null) {
+                try {
+                    decoder.close();
+                } catch (IOException ignored) {
+                }
+            }
             try {
                 // Close the InputStream and release the resources by "consuming the content".
                 entity.consumeContent();
@@ -280,17 +414,39 @@ public class BasicNetwork implements Network {
                 VolleyLog.v("Error occured when calling consumingContent");
             }
             mPool.returnBuf(buffer);
-            bytes.close();
         }
     }
 
     /**
-     * Converts Headers[] to Map<String, String>.
+     * Builds the response for a 304. A 304 carries only the headers that changed, so they are
+     * merged over the cached ones, and the entry's metadata is refreshed from them here so the
+     * dispatcher does not need to re-parse the cached body just to update TTLs.
      */
-    private static Map<String, String> convertHeaders(Header[] headers) {
-        Map<String, String> result = new HashMap<>();
+    private static NetworkResponse notModifiedResponse(Cache.Entry entry, Headers responseHeaders) {
+        // 304里有的头替换掉缓存里同名的所有值.
+        Headers headers = Headers.copyOf(entry.responseHeaders);
+        headers.putAll(responseHeaders);
+        // 映射的数据不拷贝到内存,解析的时候通过openData()读.
+        NetworkResponse response = new NetworkResponse(entry, headers, null);
+        Cache.Entry refreshed = HttpHeaderParser.parseCacheHeaders(response);
+        if (refreshed == null) {
+            return response;
+        }
+        return new NetworkResponse(entry, headers, refreshed);
+    }
+
+    /**
+     * Returns the response headers, with every value of repeated ones. Used as they are if the
+     * stack already keeps them as {@link Headers}, see {@link HeadersHttpResponse}.
+     */
+    private static Headers convertHeaders(HttpResponse httpResponse) {
+        if (httpResponse instanceof HeadersHttpResponse) {
+            return ((HeadersHttpResponse) httpResponse).getHeaders();
+        }
+        Header[] headers = httpResponse.getAllHeaders();
+        Headers result = new Headers(headers.length);
         for (int i = 0; i < headers.length; i++) {
-            result.put(headers[i].getName(), headers[i].getValue());
+            result.add(headers[i].getName(), headers[i].getValue());
         }
         return result;
     }
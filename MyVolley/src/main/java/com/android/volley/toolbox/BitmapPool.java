@@ -0,0 +1,252 @@
+package com.android.volley.toolbox;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A pool of bitmaps that are no longer displayed, handed to the decoder as
+ * {@link BitmapFactory.Options#inBitmap} so that decoding reuses their memory instead of
+ * allocating a new bitmap every time. Shared by {@link ImageRequest} and the xUtils
+ * BitmapDecoder; the latter only uses it when BitmapGlobalConfig's bitmap reuse is enabled,
+ * since pooled decodes cannot be purgeable.
+ * 滑动长列表的时候,每解码一张图都分配一个新的Bitmap,GC很频繁.不再显示的Bitmap放到这里,解码的时候直接复用.
+ * <p/>
+ * Only bitmaps that are certainly not on screen any more may be put here, e.g. ones evicted
+ * from a memory cache that is larger than what is visible, or intermediate bitmaps. Reuse
+ * needs API 11; before API 19 a bitmap can only be reused for an image of exactly the same
+ * size decoded without sampling, from API 19 any bitmap that is large enough will do.
+ */
+public class BitmapPool {
+
+    /**
+     * From API 19, a bitmap is only reused for an image that needs at least 1/MAX_SIZE_MULTIPLE
+     * of its memory, so small images do not pin large bitmaps.
+     */
+    private static final int MAX_SIZE_MULTIPLE = 2;
+
+    private static BitmapPool sDefault;
+
+    /**
+     * Pooled bitmaps by allocation size.
+     */
+    private final TreeMap<Integer, ArrayDeque<Bitmap>> mBitmapsBySize = new TreeMap<>();
+
+    /**
+     * Pooled bitmaps from least to most recently added, for trimming.
+     */
+    private final LinkedHashMap<Bitmap, Integer> mBitmapsByAge = new LinkedHashMap<>();
+
+    private int mMaxSize;
+
+    private int mCurrentSize = 0;
+
+    private int mHitCount = 0;
+
+    private int mMissCount = 0;
+
+    /**
+     * Returns the shared pool, holding up to a sixteenth of the heap.
+     */
+    public static synchronized BitmapPool getDefault() {
+        if (sDefault == null) {
+            sDefault = new BitmapPool((int) Math.min(Integer.MAX_VALUE,
+                    Runtime.getRuntime().maxMemory() / 16));
+        }
+        return sDefault;
+    }
+
+    /**
+     * @param maxSize Maximum total size of the pooled bitmaps in bytes; 0 disables the pool
+     */
+    public BitmapPool(int maxSize) {
+        mMaxSize = maxSize;
+    }
+
+    /**
+     * Returns true if decoders should use this pool: on API 11 and up, with a size above 0.
+     */
+    public boolean isEnabled() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB && mMaxSize > 0;
+    }
+
+    /**
+     * Changes the maximum total size of the pooled bitmaps, dropping bitmaps if needed.
+     */
+    public synchronized void setMaxSize(int maxSize) {
+        mMaxSize = maxSize;
+        trimToSize(maxSize);
+    }
+
+    /**
+     * Adds a bitmap that is no longer displayed. Immutable and recycled bitmaps are ignored.
+     */
+    public void put(Bitmap bitmap) {
+        if (bitmap == null || !isEnabled() || bitmap.isRecycled() || !bitmap.isMutable()) {
+            return;
+        }
+        int size = getAllocationSize(bitmap);
+        synchronized (this) {
+            if (size > mMaxSize || mBitmapsByAge.containsKey(bitmap)) {
+                return;
+            }
+            ArrayDeque<Bitmap> bitmaps = mBitmapsBySize.get(size);
+            if (bitmaps == null) {
+                bitmaps = new ArrayDeque<>();
+                mBitmapsBySize.put(size, bitmaps);
+            }
+            bitmaps.offerFirst(bitmap);
+            mBitmapsByAge.put(bitmap, size);
+            mCurrentSize += size;
+            trimToSize(mMaxSize);
+        }
+    }
+
+    /**
+     * Prepares decode options for decoding into a pooled bitmap: makes the result mutable and
+     * not purgeable, so it can be pooled later, and sets {@link BitmapFactory.Options#inBitmap} if a pooled
+     * bitmap fits. Call after the bounds pass, with inSampleSize and inPreferredConfig set.
+     * If the decode then fails with an IllegalArgumentException, decode again after
+     * {@link #clearInBitmap}.
+     */
+    public void addInBitmapOptions(BitmapFactory.Options options) {
+        if (!isEnabled()) {
+            return;
+        }
+        // Purgeable bitmaps can neither be mutable nor be decoded into.
+        options.inPurgeable = false;
+        options.inInputShareable = false;
+        options.inMutable = true;
+        Bitmap.Config config = options.inPreferredConfig != null
+                ? options.inPreferredConfig : Bitmap.Config.ARGB_8888;
+        int sampleSize = Math.max(1, options.inSampleSize);
+        options.inBitmap = get((options.outWidth + sampleSize - 1) / sampleSize,
+                (options.outHeight + sampleSize - 1) / sampleSize, config, sampleSize);
+    }
+
+    /**
+     * Removes the pooled bitmap that a decode refused from the options.
+     */
+    public void clearInBitmap(BitmapFactory.Options options) {
+        if (isEnabled()) {
+            options.inBitmap = null;
+        }
+    }
+
+    /**
+     * Takes a bitmap the decoder can reuse for an image of the given size, or returns null.
+     */
+    public synchronized Bitmap get(int width, int height, Bitmap.Config config, int sampleSize) {
+        if (width <= 0 || height <= 0) {
+            return null;
+        }
+        int size = width * height * getBytesPerPixel(config);
+        Bitmap result = null;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            // 4.4以后只要内存够大就能复用.
+            Map.Entry<Integer, ArrayDeque<Bitmap>> entry = mBitmapsBySize.ceilingEntry(size);
+            if (entry != null && entry.getKey() <= size * MAX_SIZE_MULTIPLE) {
+                result = entry.getValue().pollFirst();
+            }
+        } else if (sampleSize == 1) {
+            // 4.4以前必须尺寸和格式完全一样,而且不能缩放.
+            ArrayDeque<Bitmap> bitmaps = mBitmapsBySize.get(size);
+            if (bitmaps != null) {
+                Iterator<Bitmap> iterator = bitmaps.iterator();
+                while (iterator.hasNext()) {
+                    Bitmap bitmap = iterator.next();
+                    if (bitmap.getWidth() == width && bitmap.getHeight() == height
+                            && bitmap.getConfig() == config) {
+                        iterator.remove();
+                        result = bitmap;
+                        break;
+                    }
+                }
+            }
+        }
+        if (result == null) {
+            mMissCount++;
+            return null;
+        }
+        removeFromIndex(result);
+        mHitCount++;
+        return result;
+    }
+
+    /**
+     * Drops all pooled bitmaps.
+     */
+    public synchronized void clear() {
+        trimToSize(0);
+    }
+
+    /**
+     * Returns the number of {@link #get} calls that found a bitmap.
+     */
+    public synchronized int getHitCount() {
+        return mHitCount;
+    }
+
+    /**
+     * Returns the number of {@link #get} calls that found none.
+     */
+    public synchronized int getMissCount() {
+        return mMissCount;
+    }
+
+    /**
+     * Returns the total size of the pooled bitmaps in bytes.
+     */
+    public synchronized int getSize() {
+        return mCurrentSize;
+    }
+
+    /**
+     * Removes a bitmap already taken out of its size bucket from the other bookkeeping.
+     */
+    private void removeFromIndex(Bitmap bitmap) {
+        Integer size = mBitmapsByAge.remove(bitmap);
+        ArrayDeque<Bitmap> bitmaps = mBitmapsBySize.get(size);
+        if (bitmaps != null && bitmaps.isEmpty()) {
+            mBitmapsBySize.remove(size);
+        }
+        mCurrentSize -= size;
+    }
+
+    private void trimToSize(int maxSize) {
+        Iterator<Map.Entry<Bitmap, Integer>> iterator = mBitmapsByAge.entrySet().iterator();
+        while (mCurrentSize > maxSize && iterator.hasNext()) {
+            Map.Entry<Bitmap, Integer> eldest = iterator.next();
+            iterator.remove();
+            ArrayDeque<Bitmap> bitmaps = mBitmapsBySize.get(eldest.getValue());
+            bitmaps.remove(eldest.getKey());
+            if (bitmaps.isEmpty()) {
+                mBitmapsBySize.remove(eldest.getValue());
+            }
+            mCurrentSize -= eldest.getValue();
+            // 不recycle,可能还有地方在用,交给GC.
+        }
+    }
+
+    private static int getAllocationSize(Bitmap bitmap) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            return bitmap.getAllocationByteCount();
+        }
+        return bitmap.getRowBytes() * bitmap.getHeight();
+    }
+
+    private static int getBytesPerPixel(Bitmap.Config config) {
+        if (config == Bitmap.Config.ALPHA_8) {
+            return 1;
+        } else if (config == Bitmap.Config.RGB_565 || config == Bitmap.Config.ARGB_4444) {
+            return 2;
+        }
+        return 4;
+    }
+}
@@ -16,11 +16,10 @@
 
 package com.android.volley.toolbox;
 
-import java.util.ArrayList;
-import java.util.Collections;
+import java.util.ArrayDeque;
 import java.util.Comparator;
-import java.util.LinkedList;
-import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * ByteArrayPool is a source and repository of <code>byte[]</code> objects. Its purpose is to
@@ -47,17 +46,44 @@ import java.util.List;
  * it is not harmful to return to this pool a buffer that was allocated elsewhere, provided there
  * are no other lingering references to it.
  * <p>
- * This class ensures that the total size of the buffers in its recycling pool never exceeds a
- * certain byte limit. When a buffer is returned that would cause the pool to exceed the limit,
- * least-recently-used buffers are disposed.
+ * Buffers are kept in power-of-two size classes, so getting and returning a buffer is O(1).
+ * Small size classes are also cached per thread, one buffer per class, so a dispatcher thread
+ * that keeps reusing the same buffer sizes never touches a lock. Everything else goes to a
+ * shared tier with one lock per size class.
+ * 按2的幂分级,每一级一个锁;小的buffer每个线程还有一份自己的,不用抢锁.
+ * <p>
+ * This class ensures that the total size of the buffers in its shared tier never exceeds a
+ * certain byte limit; each thread may hold at most one more buffer per small size class. When a
+ * buffer is returned that would cause the pool to exceed the limit, the oldest buffers of the
+ * largest size classes are disposed.
  */
 public class ByteArrayPool {
-    /** The buffer pool, arranged both by last use and by buffer size */
-    private List<byte[]> mBuffersByLastUse = new LinkedList<byte[]>();
-    private List<byte[]> mBuffersBySize = new ArrayList<byte[]>(64);
+    /** The smallest size class is 2^MIN_SIZE_CLASS bytes; smaller buffers are not pooled. */
+    private static final int MIN_SIZE_CLASS = 7;
+
+    /** One size class per power of two that fits in an int. */
+    private static final int SIZE_CLASS_COUNT = 32;
+
+    /** Size classes up to 2^MAX_THREAD_SIZE_CLASS bytes (8KB) are also cached per thread. */
+    private static final int MAX_THREAD_SIZE_CLASS = 13;
+
+    /** The shared tier: one deque per size class, most recently returned first. */
+    private final ArrayDeque<byte[]>[] mBuffersBySizeClass;
+
+    /** One buffer per small size class for each thread. */
+    private final ThreadLocal<byte[][]> mThreadBuffers = new ThreadLocal<byte[][]>() {
+        @Override
+        protected byte[][] initialValue() {
+            return new byte[MAX_THREAD_SIZE_CLASS + 1][];
+        }
+    };
+
+    /** The total size of the buffers in the shared tier */
+    private final AtomicInteger mCurrentSize = new AtomicInteger();
 
-    /** The total size of the buffers in the pool */
-    private int mCurrentSize = 0;
+    private final AtomicLong mHitCount = new AtomicLong();
+
+    private final AtomicLong mMissCount = new AtomicLong();
 
     /**
      * The maximum aggregate size of the buffers in the pool. Old buffers are discarded to stay
@@ -76,8 +102,13 @@ public class ByteArrayPool {
     /**
      * @param sizeLimit the maximum size of the pool, in bytes
      */
+    @SuppressWarnings("unchecked")
     public ByteArrayPool(int sizeLimit) {
         mSizeLimit = sizeLimit;
+        mBuffersBySizeClass = new ArrayDeque[SIZE_CLASS_COUNT];
+        for (int i = 0; i < SIZE_CLASS_COUNT; i++) {
+            mBuffersBySizeClass[i] = new ArrayDeque<byte[]>();
+        }
     }
 
     /**
@@ -88,17 +119,38 @@ public class ByteArrayPool {
      *        larger.
      * @return a byte[] buffer is always returned.
      */
-    public synchronized byte[] getBuf(int len) {
-        for (int i = 0; i < mBuffersBySize.size(); i++) {
-            byte[] buf = mBuffersBySize.get(i);
-            if (buf.length >= len) {
-                mCurrentSize -= buf.length;
-                mBuffersBySize.remove(i);
-                mBuffersByLastUse.remove(buf);
+    public byte[] getBuf(int len) {
+        if (len > mSizeLimit) {
+            mMissCount.incrementAndGet();
+            return new byte[len];
+        }
+        // len <= 0 也走最小的一级,否则 numberOfLeadingZeros(len - 1) 算出来是32,越界.
+        int sizeClass = len <= 1 << MIN_SIZE_CLASS
+                ? MIN_SIZE_CLASS : 32 - Integer.numberOfLeadingZeros(len - 1);
+
+        byte[] buf;
+        if (sizeClass <= MAX_THREAD_SIZE_CLASS) {
+            byte[][] threadBuffers = mThreadBuffers.get();
+            buf = threadBuffers[sizeClass];
+            if (buf != null) {
+                threadBuffers[sizeClass] = null;
+                mHitCount.incrementAndGet();
                 return buf;
             }
         }
-        return new byte[len];
+
+        ArrayDeque<byte[]> buffers = mBuffersBySizeClass[sizeClass];
+        synchronized (buffers) {
+            buf = buffers.pollFirst();
+        }
+        if (buf != null) {
+            mCurrentSize.addAndGet(-buf.length);
+            mHitCount.incrementAndGet();
+            return buf;
+        }
+        mMissCount.incrementAndGet();
+        // 按级别的大小分配,还回来以后能满足这一级的所有请求.
+        return new byte[(int) Math.min(1L << sizeClass, mSizeLimit)];
     }
 
     /**
@@ -107,28 +159,72 @@ public class ByteArrayPool {
      *
      * @param buf the buffer to return to the pool.
      */
-    public synchronized void returnBuf(byte[] buf) {
-        if (buf == null || buf.length > mSizeLimit) {
+    public void returnBuf(byte[] buf) {
+        if (buf == null || buf.length > mSizeLimit || buf.length < 1 << MIN_SIZE_CLASS) {
             return;
         }
-        mBuffersByLastUse.add(buf);
-        int pos = Collections.binarySearch(mBuffersBySize, buf, BUF_COMPARATOR);
-        if (pos < 0) {
-            pos = -pos - 1;
+        // Every buffer in a size class must be able to serve any request of that class.
+        int sizeClass = 31 - Integer.numberOfLeadingZeros(buf.length);
+
+        if (sizeClass <= MAX_THREAD_SIZE_CLASS) {
+            byte[][] threadBuffers = mThreadBuffers.get();
+            if (threadBuffers[sizeClass] == null) {
+                threadBuffers[sizeClass] = buf;
+                return;
+            }
+        }
+
+        ArrayDeque<byte[]> buffers = mBuffersBySizeClass[sizeClass];
+        synchronized (buffers) {
+            buffers.offerFirst(buf);
+        }
+        if (mCurrentSize.addAndGet(buf.length) > mSizeLimit) {
+            trim();
         }
-        mBuffersBySize.add(pos, buf);
-        mCurrentSize += buf.length;
-        trim();
     }
 
     /**
-     * Removes buffers from the pool until it is under its size limit.
+     * Returns the number of {@link #getBuf} calls served from the pool.
      */
-    private synchronized void trim() {
-        while (mCurrentSize > mSizeLimit) {
-            byte[] buf = mBuffersByLastUse.remove(0);
-            mBuffersBySize.remove(buf);
-            mCurrentSize -= buf.length;
+    public long getHitCount() {
+        return mHitCount.get();
+    }
+
+    /**
+     * Returns the number of {@link #getBuf} calls that had to allocate a new buffer.
+     */
+    public long getMissCount() {
+        return mMissCount.get();
+    }
+
+    /**
+     * Returns the total size of the buffers held in the shared tier, in bytes. Buffers cached
+     * per thread are not included.
+     */
+    public int getRetainedBytes() {
+        return mCurrentSize.get();
+    }
+
+    /**
+     * Removes buffers from the pool until it is under its size limit, oldest buffers of the
+     * largest size classes first.
+     */
+    private void trim() {
+        for (int i = SIZE_CLASS_COUNT - 1; i >= MIN_SIZE_CLASS; i--) {
+            ArrayDeque<byte[]> buffers = mBuffersBySizeClass[i];
+            while (mCurrentSize.get() > mSizeLimit) {
+                byte[] buf;
+                synchronized (buffers) {
+                    buf = buffers.pollLast();
+                }
+                if (buf == null) {
+                    break;
+                }
+                mCurrentSize.addAndGet(-buf.length);
+            }
+            if (mCurrentSize.get() <= mSizeLimit) {
+                return;
+            }
         }
     }
 
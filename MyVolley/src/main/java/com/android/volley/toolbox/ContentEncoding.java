@@ -0,0 +1,166 @@
+package com.android.volley.toolbox;
+
+import com.android.volley.Headers;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * The HTTP content codings Volley negotiates and decodes: gzip and deflate.
+ * 请求的时候带上Accept-Encoding,响应边读边解压.JSON之类的文本一般能压缩好几倍.
+ * <p/>
+ * See {@link BasicNetwork#setCacheEncodedBodies} for how encoded bodies are cached.
+ */
+public final class ContentEncoding {
+
+    public static final String HEADER_ACCEPT_ENCODING = "Accept-Encoding";
+
+    public static final String HEADER_CONTENT_ENCODING = "Content-Encoding";
+
+    public static final String HEADER_CONTENT_LENGTH = "Content-Length";
+
+    public static final String GZIP = "gzip";
+
+    public static final String DEFLATE = "deflate";
+
+    /**
+     * The value of the Accept-Encoding request header.
+     */
+    public static final String ACCEPTED = GZIP + ", " + DEFLATE;
+
+    private ContentEncoding() {
+    }
+
+    /**
+     * Returns the coding of the given Content-Encoding value, {@link #GZIP} or
+     * {@link #DEFLATE}, or null if the body is not encoded or not in a coding this class
+     * decodes.
+     */
+    public static String normalize(String contentEncoding) {
+        if (contentEncoding == null) {
+            return null;
+        }
+        String coding = contentEncoding.trim();
+        if (coding.equalsIgnoreCase(GZIP) || coding.equalsIgnoreCase("x-gzip")) {
+            return GZIP;
+        } else if (coding.equalsIgnoreCase(DEFLATE)) {
+            return DEFLATE;
+        }
+        return null;
+    }
+
+    /**
+     * Returns the decodable coding named by the Content-Encoding header in the given
+     * headers, looked up regardless of case, or null, see {@link #normalize}.
+     */
+    public static String get(Map<String, String> headers) {
+        if (headers == null) {
+            return null;
+        }
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            if (HEADER_CONTENT_ENCODING.equalsIgnoreCase(header.getKey())) {
+                return normalize(header.getValue());
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns true if the given headers name an Accept-Encoding, regardless of case.
+     */
+    public static boolean hasAcceptEncoding(Map<String, String> headers) {
+        for (String name : headers.keySet()) {
+            if (HEADER_ACCEPT_ENCODING.equalsIgnoreCase(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns a copy of the given headers without Content-Encoding and Content-Length, which
+     * describe the encoded body rather than the decoded one.
+     */
+    public static Headers stripEncodingHeaders(Map<String, String> headers) {
+        Headers result = Headers.copyOf(headers);
+        result.remove(HEADER_CONTENT_ENCODING);
+        result.remove(HEADER_CONTENT_LENGTH);
+        return result;
+    }
+
+    /**
+     * Wraps a stream of the given coding, see {@link #normalize}, in one that decodes it.
+     * Closing the returned stream closes the given one.
+     */
+    public static InputStream decode(InputStream in, String coding) throws IOException {
+        if (!GZIP.equals(coding) && !DEFLATE.equals(coding)) {
+            return in;
+        }
+        PushbackInputStream pushback = new PushbackInputStream(in, 2);
+        byte[] head = new byte[2];
+        int read = 0;
+        int count;
+        while (read < 2 && (count = pushback.read(head, read, 2 - read)) != -1) {
+            read += count;
+        }
+        pushback.unread(head, 0, read);
+        if (read == 0) {
+            // 204之类的空响应也可能带着Content-Encoding,没有数据可解.
+            return pushback;
+        }
+        if (GZIP.equals(coding)) {
+            return new GZIPInputStream(pushback);
+        }
+        // 按规范deflate应该带zlib头,但有些服务器发的是裸的deflate数据,看头两个字节区分.
+        boolean zlib = read == 2 && (head[0] & 0x0f) == 8
+                && (((head[0] & 0xff) << 8) | (head[1] & 0xff)) % 31 == 0;
+        return new EndingInflaterInputStream(pushback, new Inflater(!zlib));
+    }
+
+    /**
+     * Decodes a whole body of the given coding.
+     */
+    public static byte[] decode(byte[] data, String coding) throws IOException {
+        InputStream in = decode(new ByteArrayInputStream(data), coding);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length * 4);
+            byte[] buffer = new byte[4096];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Releases the native memory of its own inflater on close, which InflaterInputStream
+     * only does for an inflater it created itself.
+     */
+    private static class EndingInflaterInputStream extends InflaterInputStream {
+
+        private boolean mClosed = false;
+
+        EndingInflaterInputStream(InputStream in, Inflater inflater) {
+            super(in, inflater);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!mClosed) {
+                mClosed = true;
+                inf.end();
+            }
+            super.close();
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package com.android.volley.toolbox;
+
+import android.os.Process;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A bounded stage for decoding images off the dispatcher threads, see
+ * {@link com.android.volley.Request#getParseExecutor()}.
+ * 图片解码的线程池:线程数按CPU核数,同时解码占用的内存按预算限制,代替原来全局只能解码一张的锁.
+ * <p/>
+ * Decodes run in parallel on up to one thread per core. A decoder reserves the memory it is
+ * about to allocate with {@link #acquireMemory} first, so the decodes running at once never
+ * add up to more than the memory budget; a decode larger than the whole budget runs alone.
+ * When the queue is full the dispatcher decodes on its own thread, which slows it down
+ * instead of letting undecoded responses pile up.
+ */
+public class DecodeExecutor implements Executor {
+
+    /**
+     * Decoded images waiting for a thread before dispatchers start decoding themselves.
+     */
+    private static final int MAX_QUEUED_DECODES = 16;
+
+    /**
+     * Idle decode threads are stopped after this long.
+     */
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private static DecodeExecutor sDefault;
+
+    private final ThreadPoolExecutor mExecutor;
+
+    /**
+     * The memory budget, one permit per KB.
+     */
+    private final Semaphore mMemoryBudget;
+
+    private final int mMemoryBudgetKb;
+
+    /**
+     * Returns the shared executor: one thread per core up to four, and a memory budget of an
+     * eighth of the heap.
+     */
+    public static synchronized DecodeExecutor getDefault() {
+        if (sDefault == null) {
+            int threads = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), 4));
+            sDefault = new DecodeExecutor(threads, Runtime.getRuntime().maxMemory() / 8);
+        }
+        return sDefault;
+    }
+
+    /**
+     * @param threads            Maximum number of decodes running at once
+     * @param memoryBudgetBytes  Maximum memory the running decodes may allocate together
+     */
+    public DecodeExecutor(int threads, long memoryBudgetBytes) {
+        mMemoryBudgetKb = (int) Math.max(1, Math.min(Integer.MAX_VALUE, memoryBudgetBytes / 1024));
+        mMemoryBudget = new Semaphore(mMemoryBudgetKb, true);
+        mExecutor = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(MAX_QUEUED_DECODES), new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        runnable.run();
+                    }
+                }, "Volley-Decode-" + mCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        }, new ThreadPoolExecutor.CallerRunsPolicy());
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        mExecutor.execute(command);
+    }
+
+    /**
+     * Blocks until the given number of bytes fits in the memory budget and reserves it.
+     *
+     * @return The reservation, to be passed to {@link #releaseMemory}
+     */
+    public int acquireMemory(long bytes) {
+        int permits = (int) Math.max(1, Math.min(mMemoryBudgetKb, bytes / 1024));
+        mMemoryBudget.acquireUninterruptibly(permits);
+        return permits;
+    }
+
+    /**
+     * Returns a reservation made by {@link #acquireMemory}.
+     */
+    public void releaseMemory(int reservation) {
+        mMemoryBudget.release(reservation);
+    }
+}
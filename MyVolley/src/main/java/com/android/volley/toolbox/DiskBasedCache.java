@@ -19,8 +19,12 @@ package com.android.volley.toolbox;
 import android.os.SystemClock;
 
 import com.android.volley.Cache;
+import com.android.volley.Headers;
+import com.android.volley.MappedCache;
 import com.android.volley.VolleyLog;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
@@ -29,18 +33,21 @@ import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.Collections;
-import java.util.HashMap;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * Cache implementation that caches files directly onto the hard disk in the specified
  * directory. The default disk usage size is 5MB, but is configurable.
  * 基于磁盘的缓存,RequestQueue中的缓存数据会用到这个.注意,这是缓存下载的文件,跟ImageLoader中的缓存没有半毛钱关系.
  */
-public class DiskBasedCache implements Cache {
+public class DiskBasedCache implements MappedCache {
 
     /**
      * Map of the Key, CacheHeader pairs
@@ -78,6 +85,53 @@ public class DiskBasedCache implements Cache {
      */
     private static final int CACHE_MAGIC = 0x20120504;
 
+    /**
+     * Suffix of the sidecar file holding refreshed metadata that no longer fits over the header
+     * at the start of the data file. The sidecar wins over the header in the data file.
+     */
+    private static final String METADATA_SUFFIX = ".meta";
+
+    /**
+     * Suffix of any file still being written; such files are discarded by initialize().
+     */
+    private static final String TMP_SUFFIX = ".tmp";
+
+    /**
+     * Suffix of a sidecar file still being written.
+     */
+    private static final String METADATA_TMP_SUFFIX = METADATA_SUFFIX + TMP_SUFFIX;
+
+    /**
+     * Bodies at least this large are memory-mapped by {@link #getMapped}; mapping smaller
+     * ones costs more than copying them.
+     */
+    private static final int MIN_MAPPED_SIZE = 16 * 1024;
+
+    /**
+     * Magic number for current version of index file format.
+     */
+    private static final int INDEX_MAGIC = 0x20140901;
+
+    /**
+     * Index of all entry headers, so initialize() reads one file instead of opening every entry.
+     * Cache file names are hash codes, so this cannot clash with one.
+     */
+    private static final String INDEX_FILE_NAME = "volley.index";
+
+    private static final String INDEX_TMP_FILE_NAME = INDEX_FILE_NAME + TMP_SUFFIX;
+
+    /**
+     * Minimum number of changes before the index is rewritten. Between writes the index lags
+     * behind; initialize() picks up the difference from the directory listing and get()
+     * re-validates indexed entries against their files.
+     */
+    private static final int MIN_INDEX_WRITE_INTERVAL = 32;
+
+    /**
+     * Changes to mEntries since the index was last written.
+     */
+    private int mIndexDirtyCount = 0;
+
     /**
      * Constructs an instance of the DiskBasedCache at the specified directory.
      *
@@ -112,6 +166,7 @@ public class DiskBasedCache implements Cache {
         }
         mEntries.clear();
         mTotalSize = 0;
+        mIndexDirtyCount = 0;
         VolleyLog.d("Cache cleared.");
     }
 
@@ -130,9 +185,14 @@ public class DiskBasedCache implements Cache {
         CountingInputStream cis = null;
         try {
             cis = new CountingInputStream(new FileInputStream(file));
-            CacheHeader.readHeader(cis); // eat header
-            byte[] data = streamToBytes(cis, (int) (file.length() - cis.bytesRead));
-            return entry.toCacheEntry(data);
+            CacheHeader header = CacheHeader.readHeader(cis); // eat header
+            long length = file.length();
+            byte[] data = streamToBytes(cis, (int) (length - cis.bytesRead));
+            if (!entry.verified) {
+                // 从索引里读出来的,可能比文件旧,以文件为准.
+                entry = validateEntry(key, file, header, length);
+            }
+            return decodeIfEncoded(entry.toCacheEntry(data));
         } catch (IOException e) {
             VolleyLog.d("%s: %s", file.getAbsolutePath(), e.toString());
             remove(key);
@@ -149,8 +209,56 @@ public class DiskBasedCache implements Cache {
     }
 
     /**
-     * Initializes the DiskBasedCache by scanning for all files currently in the
-     * specified root directory. Creates the root directory if necessary.
+     * Returns the cache entry with the specified key if it exists, null otherwise. A body of at
+     * least {@link #MIN_MAPPED_SIZE} bytes is memory-mapped instead of read into the heap. The
+     * mapping stays valid when the entry is later replaced or removed, since puts write a new
+     * file and rename it over the old one rather than truncating it.
+     */
+    @Override
+    public synchronized Entry getMapped(String key) {
+        CacheHeader entry = mEntries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        // 压缩存储的数据要解压到内存,映射不了.
+        if (entry.size < MIN_MAPPED_SIZE || ContentEncoding.get(entry.responseHeaders) != null) {
+            return get(key);
+        }
+
+        File file = getFileForKey(key);
+        FileInputStream fis = null;
+        try {
+            fis = new FileInputStream(file);
+            CountingInputStream cis = new CountingInputStream(new BufferedInputStream(fis));
+            CacheHeader header = CacheHeader.readHeader(cis);
+            FileChannel channel = fis.getChannel();
+            long length = channel.size();
+            if (!entry.verified) {
+                entry = validateEntry(key, file, header, length);
+            }
+            Entry result = entry.toCacheEntry(null);
+            result.mappedData = channel.map(FileChannel.MapMode.READ_ONLY, cis.bytesRead,
+                    length - cis.bytesRead);
+            return result;
+        } catch (IOException e) {
+            VolleyLog.d("%s: %s", file.getAbsolutePath(), e.toString());
+            remove(key);
+            return null;
+        } finally {
+            if (fis != null) {
+                try {
+                    fis.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Initializes the DiskBasedCache from its index file, then scans only the files in the
+     * specified root directory that the index does not know about. Creates the root directory
+     * if necessary.
+     * 冷启动的时候不用打开每一个缓存文件了.
      */
     @Override
     public synchronized void initialize() {
@@ -161,17 +269,43 @@ public class DiskBasedCache implements Cache {
             return;
         }
 
-        File[] files = mRootDirectory.listFiles();
-        if (files == null) {
+        String[] names = mRootDirectory.list();
+        if (names == null) {
             return;
         }
-        for (File file : files) {
+        Set<String> unindexed = new HashSet<>(Arrays.asList(names));
+        unindexed.remove(INDEX_FILE_NAME);
+        unindexed.remove(INDEX_TMP_FILE_NAME);
+        new File(mRootDirectory, INDEX_TMP_FILE_NAME).delete();
+        boolean indexed = readIndex(unindexed);
+
+        // 索引之后新增的文件(或者没有索引)才需要一个一个打开.
+        int scanned = 0;
+        for (String name : unindexed) {
+            File file = new File(mRootDirectory, name);
+            if (file.getName().endsWith(TMP_SUFFIX)) {
+                file.delete();
+                continue;
+            }
+            if (file.getName().endsWith(METADATA_SUFFIX)) {
+                // 数据文件已经没了的元数据文件,删掉.
+                if (!new File(mRootDirectory,
+                        name.substring(0, name.length() - METADATA_SUFFIX.length())).exists()) {
+                    file.delete();
+                }
+                continue;
+            }
             FileInputStream fis = null;
             try {
                 fis = new FileInputStream(file);
                 CacheHeader entry = CacheHeader.readHeader(fis);
+                CacheHeader refreshed = readMetadataFile(file);
+                if (refreshed != null && refreshed.key.equals(entry.key)) {
+                    entry = refreshed;
+                }
                 entry.size = file.length();
                 putEntry(entry.key, entry);
+                scanned++;
             } catch (IOException e) {
                 if (file != null) {
                     file.delete();
@@ -185,6 +319,119 @@ public class DiskBasedCache implements Cache {
                 }
             }
         }
+        if (!indexed || scanned > 0) {
+            writeIndex();
+        }
+    }
+
+    /**
+     * Loads entry headers from the index file. Entries whose file is gone are skipped; the
+     * names of the files that were found are removed from <code>unindexed</code>.
+     *
+     * @return false if there is no usable index
+     */
+    private boolean readIndex(Set<String> unindexed) {
+        File indexFile = new File(mRootDirectory, INDEX_FILE_NAME);
+        if (!indexFile.exists()) {
+            return false;
+        }
+        InputStream is = null;
+        try {
+            is = new BufferedInputStream(new FileInputStream(indexFile), 8 * 1024);
+            if (readInt(is) != INDEX_MAGIC) {
+                throw new IOException("Unknown index format");
+            }
+            int count = readInt(is);
+            for (int i = 0; i < count; i++) {
+                long size = readLong(is);
+                CacheHeader entry = CacheHeader.readHeader(is);
+                if (unindexed.remove(getFilenameForKey(entry.key))) {
+                    entry.size = size;
+                    entry.verified = false;
+                    putEntry(entry.key, entry);
+                }
+            }
+            return true;
+        } catch (IOException e) {
+            VolleyLog.d("Discarding cache index: %s", e.toString());
+            mEntries.clear();
+            mTotalSize = 0;
+            unindexed.clear();
+            String[] names = mRootDirectory.list();
+            if (names != null) {
+                unindexed.addAll(Arrays.asList(names));
+                unindexed.remove(INDEX_FILE_NAME);
+            }
+            indexFile.delete();
+            return false;
+        } finally {
+            try {
+                if (is != null) {
+                    is.close();
+                }
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Writes all entry headers to the index file in one sequential write.
+     */
+    private void writeIndex() {
+        File tmp = new File(mRootDirectory, INDEX_TMP_FILE_NAME);
+        try {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            writeInt(baos, INDEX_MAGIC);
+            writeInt(baos, mEntries.size());
+            for (CacheHeader entry : mEntries.values()) {
+                writeLong(baos, entry.size);
+                if (!entry.writeHeader(baos)) {
+                    throw new IOException("Could not serialize header for " + entry.key);
+                }
+            }
+            FileOutputStream fos = new FileOutputStream(tmp);
+            try {
+                baos.writeTo(fos);
+            } finally {
+                fos.close();
+            }
+            if (!tmp.renameTo(new File(mRootDirectory, INDEX_FILE_NAME))) {
+                throw new IOException("Could not rename " + tmp.getAbsolutePath());
+            }
+            mIndexDirtyCount = 0;
+        } catch (IOException e) {
+            VolleyLog.d("Could not write cache index: %s", e.toString());
+            tmp.delete();
+        }
+    }
+
+    /**
+     * Counts a change to the entries and rewrites the index once enough have piled up. The
+     * interval grows with the cache so that index writes stay amortized O(1) per change.
+     */
+    private void onEntriesChanged() {
+        mIndexDirtyCount++;
+        if (mIndexDirtyCount >= Math.max(MIN_INDEX_WRITE_INTERVAL, mEntries.size() / 4)) {
+            writeIndex();
+        }
+    }
+
+    /**
+     * Replaces an entry loaded from the index with the header actually found in its file
+     * (or sidecar), since the index may predate the latest write.
+     */
+    private CacheHeader validateEntry(String key, File file, CacheHeader header, long length)
+            throws IOException {
+        if (!key.equals(header.key)) {
+            throw new IOException("Cache file " + file.getName() + " does not hold " + key);
+        }
+        CacheHeader refreshed = readMetadataFile(file);
+        if (refreshed != null && refreshed.key.equals(key)) {
+            header = refreshed;
+        }
+        header.size = length;
+        putEntry(key, header);
+        return header;
     }
 
     /**
@@ -195,34 +442,153 @@ public class DiskBasedCache implements Cache {
      */
     @Override
     public synchronized void invalidate(String key, boolean fullExpire) {
-        Entry entry = get(key);
-        if (entry != null) {
+        CacheHeader header = mEntries.get(key);
+        if (header != null) {
+            Entry entry = header.toCacheEntry(null);
             entry.softTtl = 0;
             if (fullExpire) {
                 entry.ttl = 0;
             }
-            put(key, entry);
+            updateMetadata(key, entry);
         }
 
     }
 
+    /**
+     * Refreshes the metadata of an existing entry without touching its data. The new header is
+     * written over the old one when it has the same length, which is the usual case for a 304
+     * since dates serialize to a fixed width; otherwise it goes to a small sidecar file.
+     */
+    @Override
+    public synchronized void updateMetadata(String key, Entry entry) {
+        CacheHeader old = mEntries.get(key);
+        if (old == null) {
+            return;
+        }
+        CacheHeader header = new CacheHeader(key, entry);
+        header.size = old.size;
+        String coding = ContentEncoding.get(old.responseHeaders);
+        if (coding != null) {
+            // 数据没变,还是压缩的,编码要留在元数据里.
+            header.responseHeaders = ContentEncoding.stripEncodingHeaders(entry.responseHeaders);
+            header.responseHeaders.put(ContentEncoding.HEADER_CONTENT_ENCODING, coding);
+        }
+        File file = getFileForKey(key);
+        File metadataFile = getMetadataFileForKey(key);
+        try {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            if (!header.writeHeader(baos)) {
+                throw new IOException("Could not serialize header for " + key);
+            }
+            byte[] bytes = baos.toByteArray();
+            if (bytes.length == readHeaderLength(file)) {
+                RandomAccessFile raf = new RandomAccessFile(file, "rw");
+                try {
+                    raf.write(bytes);
+                } finally {
+                    raf.close();
+                }
+                metadataFile.delete();
+            } else {
+                // 先写临时文件再重命名,写到一半挂掉的话,旧的元数据还是完整的.
+                File tmp = new File(mRootDirectory, getFilenameForKey(key) + METADATA_TMP_SUFFIX);
+                FileOutputStream fos = new FileOutputStream(tmp);
+                try {
+                    fos.write(bytes);
+                } finally {
+                    fos.close();
+                }
+                if (!tmp.renameTo(metadataFile)) {
+                    tmp.delete();
+                    throw new IOException("Could not rename " + tmp.getAbsolutePath());
+                }
+            }
+            putEntry(key, header);
+            onEntriesChanged();
+        } catch (IOException e) {
+            VolleyLog.d("%s: %s", file.getAbsolutePath(), e.toString());
+            remove(key);
+        }
+    }
+
+    /**
+     * Decodes a body that was cached content-encoded, see
+     * {@link BasicNetwork#setCacheEncodedBodies}, so callers always get the decoded form.
+     */
+    private static Entry decodeIfEncoded(Entry entry) throws IOException {
+        String coding = ContentEncoding.get(entry.responseHeaders);
+        if (coding != null) {
+            entry.data = ContentEncoding.decode(entry.data, coding);
+            entry.responseHeaders = ContentEncoding.stripEncodingHeaders(entry.responseHeaders);
+        }
+        return entry;
+    }
+
+    /**
+     * Returns the number of header bytes at the start of the given data file.
+     */
+    private static int readHeaderLength(File file) throws IOException {
+        CountingInputStream cis = new CountingInputStream(
+                new BufferedInputStream(new FileInputStream(file)));
+        try {
+            CacheHeader.readHeader(cis);
+            return cis.bytesRead;
+        } finally {
+            cis.close();
+        }
+    }
+
+    /**
+     * Reads the sidecar metadata of the given data file, or returns null if there is none.
+     */
+    private static CacheHeader readMetadataFile(File file) {
+        File metadataFile = new File(file.getPath() + METADATA_SUFFIX);
+        if (!metadataFile.exists()) {
+            return null;
+        }
+        FileInputStream fis = null;
+        try {
+            fis = new FileInputStream(metadataFile);
+            return CacheHeader.readHeader(fis);
+        } catch (IOException e) {
+            metadataFile.delete();
+            return null;
+        } finally {
+            try {
+                if (fis != null) {
+                    fis.close();
+                }
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
     /**
      * Puts the entry with the specified key into the cache.
      */
     @Override
     public synchronized void put(String key, Entry entry) {
-        pruneIfNeeded(entry.data.length);
+        byte[] data = entry.getData();
+        pruneIfNeeded(data.length);
         File file = getFileForKey(key);
+        // 写到临时文件再替换,正在读旧文件映射的地方不会读到截断的数据.
+        File tmp = new File(mRootDirectory, file.getName() + TMP_SUFFIX);
+        getMetadataFileForKey(key).delete();
         try {
-            FileOutputStream fos = new FileOutputStream(file);
+            FileOutputStream fos = new FileOutputStream(tmp);
             CacheHeader e = new CacheHeader(key, entry);
             e.writeHeader(fos);
-            fos.write(entry.data);
+            fos.write(data);
             fos.close();
-            putEntry(key, e);
-            return;
+            if (tmp.renameTo(file)) {
+                putEntry(key, e);
+                onEntriesChanged();
+                return;
+            }
         } catch (IOException e) {
         }
+        tmp.delete();
+        removeEntry(key);
         boolean deleted = file.delete();
         if (!deleted) {
             VolleyLog.d("Could not clean up file %s", file.getAbsolutePath());
@@ -235,7 +601,9 @@ public class DiskBasedCache implements Cache {
     @Override
     public synchronized void remove(String key) {
         boolean deleted = getFileForKey(key).delete();
+        getMetadataFileForKey(key).delete();
         removeEntry(key);
+        onEntriesChanged();
         if (!deleted) {
             VolleyLog.d("Could not delete cache entry for key=%s, filename=%s",
                     key, getFilenameForKey(key));
@@ -262,6 +630,13 @@ public class DiskBasedCache implements Cache {
         return new File(mRootDirectory, getFilenameForKey(key));
     }
 
+    /**
+     * Returns the sidecar metadata file for the given cache key.
+     */
+    private File getMetadataFileForKey(String key) {
+        return new File(mRootDirectory, getFilenameForKey(key) + METADATA_SUFFIX);
+    }
+
     /**
      * 修剪(调整) Prunes the cache to fit the amount of bytes specified.
      *
@@ -284,6 +659,7 @@ public class DiskBasedCache implements Cache {
             Map.Entry<String, CacheHeader> entry = iterator.next();
             CacheHeader e = entry.getValue();
             boolean deleted = getFileForKey(e.key).delete();
+            getMetadataFileForKey(e.key).delete();
             if (deleted) {
                 mTotalSize -= e.size;
             } else {
@@ -358,6 +734,12 @@ public class DiskBasedCache implements Cache {
          */
         public long size;
 
+        /**
+         * False if this header was loaded from the index and has not yet been checked against
+         * its file. (This is not serialized to disk.)
+         */
+        public boolean verified = true;
+
         /**
          * The key that identifies the cache entry.
          */
@@ -399,7 +781,7 @@ public class DiskBasedCache implements Cache {
          */
         public CacheHeader(String key, Entry entry) {
             this.key = key;
-            this.size = entry.data.length;
+            this.size = entry.data == null ? 0 : entry.data.length;
             this.etag = entry.etag;
             this.serverDate = entry.serverDate;
             this.ttl = entry.ttl;
@@ -566,8 +948,19 @@ public class DiskBasedCache implements Cache {
         return new String(b, "UTF-8");
     }
 
+    /**
+     * Writes the headers as a count and name/value pairs, repeating a name for each of its
+     * values if the map is {@link Headers}; older entries simply never repeat one.
+     */
     static void writeStringStringMap(Map<String, String> map, OutputStream os) throws IOException {
-        if (map != null) {
+        if (map instanceof Headers) {
+            Headers headers = (Headers) map;
+            writeInt(os, headers.getCount());
+            for (int i = 0; i < headers.getCount(); i++) {
+                writeString(os, headers.getName(i));
+                writeString(os, headers.getValue(i));
+            }
+        } else if (map != null) {
             writeInt(os, map.size());
             for (Map.Entry<String, String> entry : map.entrySet()) {
                 writeString(os, entry.getKey());
@@ -578,15 +971,13 @@ public class DiskBasedCache implements Cache {
         }
     }
 
-    static Map<String, String> readStringStringMap(InputStream is) throws IOException {
+    static Headers readStringStringMap(InputStream is) throws IOException {
         int size = readInt(is);
-        Map<String, String> result = (size == 0)
-                ? Collections.<String, String>emptyMap()
-                : new HashMap<String, String>(size);
+        Headers result = new Headers(size);
         for (int i = 0; i < size; i++) {
             String key = readString(is).intern();
             String value = readString(is).intern();
-            result.put(key, value);
+            result.add(key, value);
         }
         return result;
     }
@@ -4,29 +4,54 @@ import android.os.Environment;
 import android.os.StatFs;
 import android.text.TextUtils;
 
+import com.android.volley.AuthFailureError;
 import com.android.volley.FileError;
 import com.android.volley.NetworkResponse;
 import com.android.volley.Request;
 import com.android.volley.Response;
+import com.android.volley.VolleyError;
 import com.android.volley.VolleyLog;
 
+import org.apache.http.HttpStatus;
+
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
 
 /**
  * Created by weiji.chen on 14-3-9.
  * 文件下载的请求.请求的队列会加到默认的RequestQueue中.
  * 由于是下载的文件,所以默认不使用缓存,因为默认缓存大小只有10M.除非RequestQueue配置大的缓存.
  * 如果需要下载小文件图片,比如头像,小文件可以缓存.
+ * 响应数据由 BasicNetwork 分块写入临时文件,内存占用与文件大小无关,可以下载大文件.
+ * 支持断点续传,见 {@link #setAutoResume(boolean)};大文件多线程分段下载见 {@link SegmentedDownload}.
  * TODO:因为使用了路径,避免多余的网络请求,所以要进行路径拦截.首先进行的是:判断路径是否有效,如果无效,直接return了.
  */
 public class DownloadRequest extends Request<File> {
 
+    /**
+     * 下载中的临时文件后缀.
+     */
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    /**
+     * 断点续传时,保存服务器文件校验值(ETag 或 Last-Modified)的文件后缀.
+     */
+    private static final String VALIDATOR_SUFFIX = ".tmp.validator";
+
     Response.Listener listener;
 
     private String filePath;
 
+    /**
+     * 是否断点续传.
+     */
+    private boolean autoResume = false;
+
     public DownloadRequest(String url, String filePath) {
         this(url, filePath, null, null, null);
     }
@@ -95,23 +120,186 @@ public class DownloadRequest extends Request<File> {
         return (size > 10 * 1024 * 1024);
     }
 
+    /**
+     * 设置断点续传.跟xUtils的autoResume一样,下载中断后(包括重试和下一次下载),从临时文件已有的长度继续,
+     * 请求头带上 Range 和 If-Range,服务器的文件变了就会返回整个文件,从头开始写.
+     *
+     * @param autoResume true:断点续传.
+     */
+    public void setAutoResume(boolean autoResume) {
+        this.autoResume = autoResume;
+    }
+
+    public boolean isAutoResume() {
+        return autoResume;
+    }
+
     @Override
-    protected Response<File> parseNetworkResponse(NetworkResponse response) {
-        // 将数据保存到文件了.
+    public Map<String, String> getHeaders() throws AuthFailureError {
+        Map<String, String> headers = super.getHeaders();
+        if (!autoResume) {
+            return headers;
+        }
+        long downloaded = getTempFile().length();
+        if (downloaded <= 0) {
+            return headers;
+        }
+        Map<String, String> rangeHeaders = new HashMap<>(headers);
+        rangeHeaders.put("Range", "bytes=" + downloaded + "-");
+        String validator = readValidator();
+        if (validator != null) {
+            rangeHeaders.put("If-Range", validator);
+        }
+        return rangeHeaders;
+    }
+
+    /**
+     * 下载的数据不经过内存,由 BasicNetwork 分块写到临时文件,下载完成后再重命名.
+     */
+    @Override
+    public boolean isStreamingResponse() {
+        return true;
+    }
+
+    @Override
+    public OutputStream openResponseStream(int statusCode, Map<String, String> headers)
+            throws IOException {
+        File tempFile = getTempFile();
+        if (statusCode == HttpStatus.SC_PARTIAL_CONTENT) {
+            long[] range = HttpHeaderParser.parseContentRange(headers);
+            if (range != null && range[0] == tempFile.length()) {
+                addMarker("download-resume");
+                return new FileOutputStream(tempFile, true);
+            }
+            // 返回的范围和临时文件对不上,删掉临时文件,重试的时候从头开始.
+            deleteCheckpoint();
+            throw new IOException("Unexpected Content-Range for " + getUrl());
+        }
+        // 不支持续传或者服务器的文件变了,从头开始写.
+        if (autoResume) {
+            writeValidator(headers);
+        }
+        return new FileOutputStream(tempFile);
+    }
+
+    @Override
+    protected VolleyError parseNetworkError(VolleyError volleyError) {
+        // 416:请求的范围不对,可能是临时文件已经不对了,下次从头开始.
+        if (volleyError.networkResponse != null && volleyError.networkResponse.statusCode
+                == HttpStatus.SC_REQUESTED_RANGE_NOT_SATISFIABLE) {
+            deleteCheckpoint();
+        }
+        return volleyError;
+    }
+
+    /**
+     * 下载过程中写入的临时文件,下载完成后重命名为 filePath.断点续传时就是断点.
+     */
+    private File getTempFile() {
+        return new File(filePath + TEMP_SUFFIX);
+    }
+
+    private File getValidatorFile() {
+        return new File(filePath + VALIDATOR_SUFFIX);
+    }
+
+    /**
+     * 删除断点信息,下一次从头下载.
+     */
+    private void deleteCheckpoint() {
+        getTempFile().delete();
+        getValidatorFile().delete();
+    }
+
+    /**
+     * 保存 If-Range 用的校验值.If-Range 只能用强 ETag,没有的话用 Last-Modified.
+     */
+    private void writeValidator(Map<String, String> headers) {
+        String validator = headers.get("ETag");
+        if (validator == null || validator.startsWith("W/")) {
+            validator = headers.get("Last-Modified");
+        }
+        File validatorFile = getValidatorFile();
+        if (validator == null) {
+            validatorFile.delete();
+            return;
+        }
         FileOutputStream stream = null;
         try {
-            stream = new FileOutputStream(filePath);
-            stream.write(response.data);
+            stream = new FileOutputStream(validatorFile);
+            stream.write(validator.getBytes("UTF-8"));
+        } catch (IOException e) {
+            VolleyLog.d("Could not write %s: %s", validatorFile.getAbsolutePath(), e.toString());
+            validatorFile.delete();
+        } finally {
+            if (stream != null) {
+                try {
+                    stream.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    private String readValidator() {
+        File validatorFile = getValidatorFile();
+        if (!validatorFile.exists()) {
+            return null;
+        }
+        FileInputStream stream = null;
+        try {
+            stream = new FileInputStream(validatorFile);
+            byte[] bytes = new byte[(int) validatorFile.length()];
+            int pos = 0;
+            int count;
+            while (pos < bytes.length && (count = stream.read(bytes, pos, bytes.length - pos)) != -1) {
+                pos += count;
+            }
+            return pos > 0 ? new String(bytes, 0, pos, "UTF-8") : null;
         } catch (IOException e) {
-            e.printStackTrace();
+            return null;
         } finally {
+            if (stream != null) {
+                try {
+                    stream.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    @Override
+    protected Response<File> parseNetworkResponse(NetworkResponse response) {
+        File file = new File(filePath);
+        if (response.data == null) {
+            // 数据已经写到临时文件了,重命名即可.
+            File tempFile = getTempFile();
+            if (file.exists()) {
+                file.delete();
+            }
+            if (!tempFile.renameTo(file)) {
+                VolleyLog.e("Could not rename %s to %s", tempFile.getAbsolutePath(), filePath);
+                return Response.error(new FileError(response));
+            }
+            getValidatorFile().delete();
+        } else {
+            // 将数据保存到文件了.
+            FileOutputStream stream = null;
             try {
-                stream.close();
+                stream = new FileOutputStream(filePath);
+                stream.write(response.data);
             } catch (IOException e) {
-                e.printStackTrace();
+                VolleyLog.e(e, "Could not write %s", filePath);
+                return Response.error(new FileError(e));
+            } finally {
+                if (stream != null) {
+                    try {
+                        stream.close();
+                    } catch (IOException ignored) {
+                    }
+                }
             }
         }
-        File file = new File(filePath);
         if (file.exists()) {
             return Response.success(file, null);
         } else {
@@ -0,0 +1,93 @@
+package com.android.volley.toolbox;
+
+import com.android.volley.Headers;
+
+import org.apache.http.Header;
+import org.apache.http.HeaderIterator;
+import org.apache.http.StatusLine;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.message.BasicHttpResponse;
+
+/**
+ * An HttpResponse whose headers are kept as {@link Headers}, which {@link BasicNetwork} uses
+ * as they are. The Header objects of the HttpResponse API are only created if something asks
+ * for them. Changing the headers through the HttpResponse API does not change
+ * {@link #getHeaders()}, so build the Headers completely first.
+ * 响应头直接给BasicNetwork用,不再为每个头创建BasicHeader,再转成Map.
+ */
+public class HeadersHttpResponse extends BasicHttpResponse {
+
+    private final Headers mHeaders;
+
+    private boolean mHeaderGroupFilled = false;
+
+    /**
+     * @param statusline The status line
+     * @param headers    The response headers; not copied
+     */
+    public HeadersHttpResponse(StatusLine statusline, Headers headers) {
+        super(statusline);
+        mHeaders = headers;
+    }
+
+    /**
+     * Returns the response headers.
+     */
+    public Headers getHeaders() {
+        return mHeaders;
+    }
+
+    /**
+     * Copies the headers into the Header objects of the HttpResponse API the first time they
+     * are needed.
+     */
+    private void fillHeaderGroup() {
+        if (!mHeaderGroupFilled) {
+            mHeaderGroupFilled = true;
+            for (int i = 0; i < mHeaders.getCount(); i++) {
+                headergroup.addHeader(new BasicHeader(mHeaders.getName(i), mHeaders.getValue(i)));
+            }
+        }
+    }
+
+    @Override
+    public boolean containsHeader(String name) {
+        return mHeaders.containsKey(name);
+    }
+
+    @Override
+    public Header[] getHeaders(String name) {
+        fillHeaderGroup();
+        return super.getHeaders(name);
+    }
+
+    @Override
+    public Header getFirstHeader(String name) {
+        fillHeaderGroup();
+        return super.getFirstHeader(name);
+    }
+
+    @Override
+    public Header getLastHeader(String name) {
+        fillHeaderGroup();
+        return super.getLastHeader(name);
+    }
+
+    @Override
+    public Header[] getAllHeaders() {
+        fillHeaderGroup();
+        return super.getAllHeaders();
+    }
+
+    @Override
+    public HeaderIterator headerIterator() {
+        fillHeaderGroup();
+        return super.headerIterator();
+    }
+
+    @Override
+    public HeaderIterator headerIterator(String name) {
+        fillHeaderGroup();
+        return super.headerIterator(name);
+    }
+}
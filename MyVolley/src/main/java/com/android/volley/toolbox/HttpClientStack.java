@@ -30,15 +30,21 @@ import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpPut;
 import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.entity.AbstractHttpEntity;
 import org.apache.http.entity.ByteArrayEntity;
 import org.apache.http.message.BasicNameValuePair;
 import org.apache.http.params.HttpConnectionParams;
 import org.apache.http.params.HttpParams;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * An HttpStack that performs request over an {@link org.apache.http.client.HttpClient}.
@@ -134,13 +140,89 @@ public class HttpClientStack implements HttpStack {
 
     private static void setEntityIfNonEmptyBody(HttpEntityEnclosingRequestBase httpRequest,
                                                 Request<?> request) throws AuthFailureError {
+        if (request.isStreamingBody()) {
+            httpRequest.setEntity(new RequestBodyEntity(request, null));
+            return;
+        }
         byte[] body = request.getBody();
         if (body != null) {
-            HttpEntity entity = new ByteArrayEntity(body);
+            HttpEntity entity = request.shouldGzipBody()
+                    ? new RequestBodyEntity(request, body) : new ByteArrayEntity(body);
             httpRequest.setEntity(entity);
         }
     }
 
+    /**
+     * Writes a streaming or gzip compressed request body, see {@link Request#isStreamingBody()}
+     * and {@link Request#shouldGzipBody()}.
+     */
+    private static class RequestBodyEntity extends AbstractHttpEntity {
+
+        private final Request<?> mRequest;
+
+        /**
+         * The body, or null to stream it from {@link Request#writeBody}.
+         */
+        private final byte[] mBody;
+
+        RequestBodyEntity(Request<?> request, byte[] body) {
+            mRequest = request;
+            mBody = body;
+            if (request.shouldGzipBody()) {
+                setContentEncoding(ContentEncoding.GZIP);
+            }
+            setChunked(getContentLength() < 0);
+        }
+
+        @Override
+        public boolean isRepeatable() {
+            return true;
+        }
+
+        @Override
+        public long getContentLength() {
+            if (mRequest.shouldGzipBody()) {
+                return -1;
+            }
+            return mBody != null ? mBody.length : mRequest.getBodyLength();
+        }
+
+        /**
+         * Returns the body as it would be written. HttpClient only reads it this way for things
+         * like logging or retrying, so buffering a streamed body in memory here is acceptable.
+         */
+        @Override
+        public InputStream getContent() throws IOException {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            writeTo(buffer);
+            return new ByteArrayInputStream(buffer.toByteArray());
+        }
+
+        @Override
+        public void writeTo(OutputStream outstream) throws IOException {
+            OutputStream out = mRequest.shouldGzipBody()
+                    ? new GZIPOutputStream(outstream) : outstream;
+            if (mBody != null) {
+                out.write(mBody);
+            } else {
+                try {
+                    mRequest.writeBody(out);
+                } catch (AuthFailureError e) {
+                    throw new IOException(e.toString());
+                }
+            }
+            if (out instanceof GZIPOutputStream) {
+                ((GZIPOutputStream) out).finish();
+            }
+            out.flush();
+        }
+
+        @Override
+        public boolean isStreaming() {
+            return false;
+        }
+    }
+
     /**
      * Called before the request is executed using the underlying HttpClient.
      * 备用的一个方法吧
@@ -17,12 +17,14 @@
 package com.android.volley.toolbox;
 
 import com.android.volley.Cache;
+import com.android.volley.Headers;
 import com.android.volley.NetworkResponse;
 
 import org.apache.http.impl.cookie.DateParseException;
 import org.apache.http.impl.cookie.DateUtils;
 import org.apache.http.protocol.HTTP;
 
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -45,7 +47,9 @@ public class HttpHeaderParser {
         long serverExpires = 0;
         long softExpire = 0;
         long maxAge = 0;
+        long staleWhileRevalidate = 0;
         boolean hasCacheControl = false;
+        boolean mustRevalidate = false;
 
         String serverEtag = null;
         String headerValue;
@@ -55,7 +59,8 @@ public class HttpHeaderParser {
             serverDate = parseDateAsEpoch(headerValue);
         }
 
-        headerValue = headers.get("Cache-Control");
+        // Cache-Control可以分成几个头发,等于用逗号连起来.
+        headerValue = joinValues(response.allHeaders.getAll("Cache-Control"));
         if (headerValue != null) {
             hasCacheControl = true;
             String[] tokens = headerValue.split(",");
@@ -68,8 +73,14 @@ public class HttpHeaderParser {
                         maxAge = Long.parseLong(token.substring(8));
                     } catch (Exception e) {
                     }
+                } else if (token.startsWith("stale-while-revalidate=")) {
+                    try {
+                        staleWhileRevalidate = Long.parseLong(token.substring(23));
+                    } catch (Exception e) {
+                    }
                 } else if (token.equals("must-revalidate") || token.equals("proxy-revalidate")) {
                     maxAge = 0;
+                    mustRevalidate = true;
                 }
             }
         }
@@ -91,16 +102,68 @@ public class HttpHeaderParser {
         }
 
         Cache.Entry entry = new Cache.Entry();
-        entry.data = response.data;
         entry.etag = serverEtag;
         entry.softTtl = softExpire;
-        entry.ttl = entry.softTtl;
+        // stale-while-revalidate (RFC 5861): 过了softTtl以后的这段时间内先给旧数据,同时在后台刷新.
+        entry.ttl = mustRevalidate ? softExpire : softExpire + staleWhileRevalidate * 1000;
         entry.serverDate = serverDate;
-        entry.responseHeaders = headers;
+        if (response.encodedData != null) {
+            // 缓存压缩过的原始数据,读缓存的时候再解压,见DiskBasedCache.
+            entry.data = response.encodedData;
+            entry.responseHeaders = Headers.copyOf(headers);
+            entry.responseHeaders.put(ContentEncoding.HEADER_CONTENT_ENCODING,
+                    response.contentEncoding);
+        } else {
+            entry.data = response.data;
+            entry.responseHeaders = headers;
+        }
 
         return entry;
     }
 
+    /**
+     * Joins the values of a repeated list header with commas, or returns null if there are none.
+     */
+    private static String joinValues(List<String> values) {
+        if (values.isEmpty()) {
+            return null;
+        } else if (values.size() == 1) {
+            return values.get(0);
+        }
+        StringBuilder joined = new StringBuilder(values.get(0));
+        for (int i = 1; i < values.size(); i++) {
+            joined.append(',').append(values.get(i));
+        }
+        return joined.toString();
+    }
+
+    /**
+     * Parses the Content-Range header of a 206 response, e.g. "bytes 100-199/1000".
+     *
+     * @return {first byte, last byte, total length}, where the total is -1 if the server
+     * reported "*"; or null if the header is missing or malformed.
+     */
+    public static long[] parseContentRange(Map<String, String> headers) {
+        String headerValue = headers.get("Content-Range");
+        if (headerValue == null || !headerValue.startsWith("bytes ")) {
+            return null;
+        }
+        try {
+            int dash = headerValue.indexOf('-');
+            int slash = headerValue.indexOf('/');
+            if (dash < 0 || slash < dash) {
+                return null;
+            }
+            long first = Long.parseLong(headerValue.substring(6, dash).trim());
+            long last = Long.parseLong(headerValue.substring(dash + 1, slash).trim());
+            String totalValue = headerValue.substring(slash + 1).trim();
+            long total = totalValue.equals("*") ? -1 : Long.parseLong(totalValue);
+            return new long[]{first, last, total};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
     /**
      * Parse date in RFC1123 format, and return its value as epoch
      */
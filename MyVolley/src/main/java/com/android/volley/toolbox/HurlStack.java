@@ -17,28 +17,31 @@
 package com.android.volley.toolbox;
 
 import com.android.volley.AuthFailureError;
+import com.android.volley.Headers;
 import com.android.volley.Request;
 import com.android.volley.Request.Method;
 
-import org.apache.http.Header;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.ProtocolVersion;
 import org.apache.http.StatusLine;
 import org.apache.http.entity.BasicHttpEntity;
-import org.apache.http.message.BasicHeader;
-import org.apache.http.message.BasicHttpResponse;
 import org.apache.http.message.BasicStatusLine;
 
+import java.io.BufferedOutputStream;
 import java.io.DataOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.Socket;
 import java.net.URL;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
 
 import javax.net.ssl.HttpsURLConnection;
 import javax.net.ssl.SSLSocketFactory;
@@ -46,11 +49,29 @@ import javax.net.ssl.SSLSocketFactory;
 /**
  * An {@link com.android.volley.toolbox.HttpStack} based on {@link java.net.HttpURLConnection}.
  * 终于看到发起网络请求的地方了...HttpURLConnection
+ * <p/>
+ * {@link BasicNetwork} sends its own Accept-Encoding header, which turns off the transparent
+ * gzip of HttpURLConnection: the body is returned as received, with its Content-Encoding, and
+ * decoded by BasicNetwork, so the encoded form is available for caching.
+ * <p/>
+ * HttpURLConnection keeps connections alive in a pool of its own, see
+ * {@link #configureConnectionPool}. A connection only goes back to the pool once its response
+ * body has been read to the end, so closing a body reads what is left of it first. If created
+ * with connection counting on, the stack counts the HTTPS connections it opens, to show whether
+ * TLS handshakes are amortized.
  */
 public class HurlStack implements HttpStack {
 
     private static final String HEADER_CONTENT_TYPE = "Content-Type";
 
+    private static final int BODY_BUFFER_SIZE = 8192;
+
+    /**
+     * Closing a response body reads at most this much of what is left, to keep the connection
+     * alive; a connection with more left is disconnected instead.
+     */
+    private static final int MAX_DRAIN_BYTES = 64 * 1024;
+
     /**
      * An interface for transforming URLs before use.
      * 暂时还没有实现这个接口.当需要执行URL验证,就重写这个接口
@@ -65,6 +86,16 @@ public class HurlStack implements HttpStack {
 
     private final UrlRewriter mUrlRewriter;
     private final SSLSocketFactory mSslSocketFactory;
+    private final boolean mCountConnections;
+
+    private final AtomicInteger mRequestCount = new AtomicInteger();
+
+    private final AtomicInteger mSecureRequestCount = new AtomicInteger();
+
+    /**
+     * HTTPS connections opened, counted by {@link CountingSSLSocketFactory}.
+     */
+    private final AtomicInteger mNewConnectionCount = new AtomicInteger();
 
     public HurlStack() {
         this(null);
@@ -82,8 +113,83 @@ public class HurlStack implements HttpStack {
      * @param sslSocketFactory SSL factory to use for HTTPS connections
      */
     public HurlStack(UrlRewriter urlRewriter, SSLSocketFactory sslSocketFactory) {
+        this(urlRewriter, sslSocketFactory, false);
+    }
+
+    /**
+     * @param urlRewriter      Rewriter to use for request URLs
+     * @param sslSocketFactory SSL factory to use for HTTPS connections, or null for the
+     *                         platform's default
+     * @param countConnections true to count the HTTPS connections opened, see
+     *                         {@link #getNewConnectionCount()}. The factory is then wrapped, and
+     *                         a null factory is replaced by the default one at the time the stack
+     *                         is created.
+     */
+    public HurlStack(UrlRewriter urlRewriter, SSLSocketFactory sslSocketFactory,
+                     boolean countConnections) {
         mUrlRewriter = urlRewriter;
-        mSslSocketFactory = sslSocketFactory;
+        mCountConnections = countConnections;
+        if (countConnections) {
+            // 同一个factory实例,连接池才会复用连接.
+            mSslSocketFactory = new CountingSSLSocketFactory(sslSocketFactory != null
+                    ? sslSocketFactory : HttpsURLConnection.getDefaultSSLSocketFactory(),
+                    mNewConnectionCount);
+        } else {
+            mSslSocketFactory = sslSocketFactory;
+        }
+    }
+
+    /**
+     * Configures the keep-alive pool that HttpURLConnection shares across the process. Call it
+     * before the first request: the platform reads these settings once, when it creates the
+     * pool.
+     * <p/>
+     * This is opt-in: Volley never calls it. It sets the process-wide system properties
+     * <code>http.keepAlive</code>, <code>http.maxConnections</code> and
+     * <code>http.keepAliveDuration</code>, so it changes every HttpURLConnection in the
+     * process, including those of other libraries.
+     * 系统的连接池是全局的,只能通过系统属性配置,而且只在第一次连接之前设置才有用.
+     *
+     * @param maxIdleConnections  Maximum number of idle connections kept alive; 0 turns
+     *                            keep-alive off
+     * @param keepAliveDurationMs How long an idle connection is kept before it is closed
+     */
+    public static void configureConnectionPool(int maxIdleConnections, long keepAliveDurationMs) {
+        if (maxIdleConnections <= 0) {
+            System.setProperty("http.keepAlive", "false");
+            return;
+        }
+        System.setProperty("http.keepAlive", "true");
+        System.setProperty("http.maxConnections", String.valueOf(maxIdleConnections));
+        System.setProperty("http.keepAliveDuration", String.valueOf(keepAliveDurationMs));
+    }
+
+    /**
+     * Returns the number of requests this stack has sent.
+     */
+    public int getRequestCount() {
+        return mRequestCount.get();
+    }
+
+    /**
+     * Returns the number of HTTPS connections this stack has opened, i.e. TLS handshakes, or 0
+     * if it was not created with connection counting on.
+     */
+    public int getNewConnectionCount() {
+        return mNewConnectionCount.get();
+    }
+
+    /**
+     * Returns the number of HTTPS requests that went over a pooled connection instead of a new
+     * one, or 0 if the stack was not created with connection counting on. HttpURLConnection does
+     * not tell when it opens plain HTTP connections, so those are only counted by
+     * {@link #getRequestCount()}.
+     */
+    public int getReusedConnectionCount() {
+        if (!mCountConnections) {
+            return 0;
+        }
+        return Math.max(0, mSecureRequestCount.get() - mNewConnectionCount.get());
     }
 
     @Override
@@ -125,18 +231,23 @@ public class HurlStack implements HttpStack {
         }
         StatusLine responseStatus = new BasicStatusLine(protocolVersion,
                 connection.getResponseCode(), connection.getResponseMessage());
-        BasicHttpResponse response = new BasicHttpResponse(responseStatus);
+        // 获取响应头.按下标读,同名的头每个值都留着,也不用先建一个Map.
+        Headers headers = new Headers();
+        for (int i = 0; ; i++) {
+            String value = connection.getHeaderField(i);
+            if (value == null) {
+                break;
+            }
+            String name = connection.getHeaderFieldKey(i);
+            // 第0个是状态行,没有名字.
+            if (name != null) {
+                headers.add(name, value);
+            }
+        }
+        HeadersHttpResponse response = new HeadersHttpResponse(responseStatus, headers);
 
         // 发起数据请求
         response.setEntity(entityFromConnection(connection));
-
-        // 获取响应头
-        for (Entry<String, List<String>> header : connection.getHeaderFields().entrySet()) {
-            if (header.getKey() != null) {
-                Header h = new BasicHeader(header.getKey(), header.getValue().get(0));
-                response.addHeader(h);
-            }
-        }
         return response;
     }
 
@@ -155,7 +266,9 @@ public class HurlStack implements HttpStack {
         } catch (IOException ioe) {
             inputStream = connection.getErrorStream();
         }
-        entity.setContent(inputStream);
+        // 关闭的时候把剩下的数据读完,连接才能回到连接池.
+        entity.setContent(inputStream != null
+                ? new DrainingInputStream(inputStream, connection) : null);
         entity.setContentLength(connection.getContentLength());
         entity.setContentEncoding(connection.getContentEncoding());
         entity.setContentType(connection.getContentType());
@@ -185,9 +298,13 @@ public class HurlStack implements HttpStack {
         connection.setUseCaches(false);
         connection.setDoInput(true);
 
+        mRequestCount.incrementAndGet();
         // use caller-provided custom SslSocketFactory, if any, for HTTPS
-        if ("https".equals(url.getProtocol()) && mSslSocketFactory != null) {
-            ((HttpsURLConnection) connection).setSSLSocketFactory(mSslSocketFactory);
+        if ("https".equals(url.getProtocol())) {
+            mSecureRequestCount.incrementAndGet();
+            if (mSslSocketFactory != null) {
+                ((HttpsURLConnection) connection).setSSLSocketFactory(mSslSocketFactory);
+            }
         }
 
         return connection;
@@ -250,6 +367,7 @@ public class HurlStack implements HttpStack {
     /**
      * 附加 Params 到 Connection.从这里可以看到,先把字节流写到缓冲区,所以不支持大文件上传的.
      * 用WireShark解析了一下Post提交的数据,实际上也就是和一些很正常的文本,没什么神秘的.比如JSON数据,根据需要变化.说白了就是编码后的字节流.
+     * 大文件上传用 {@link Request#isStreamingBody()},边写边发,内存占用是固定的.
      *
      * @param connection
      * @param request
@@ -258,14 +376,198 @@ public class HurlStack implements HttpStack {
      */
     private static void addBodyIfExists(HttpURLConnection connection, Request<?> request)
             throws IOException, AuthFailureError {
+        if (request.isStreamingBody()) {
+            connection.setDoOutput(true);
+            connection.addRequestProperty(HEADER_CONTENT_TYPE, request.getBodyContentType());
+            // 不设置的话HttpURLConnection会把整个正文缓存下来算长度.
+            long length = request.shouldGzipBody() ? -1 : request.getBodyLength();
+            if (length >= 0 && length <= Integer.MAX_VALUE) {
+                connection.setFixedLengthStreamingMode((int) length);
+            } else {
+                // 压缩以后的长度事先不知道,只能分块发.
+                connection.setChunkedStreamingMode(0);
+            }
+            OutputStream out = openBodyStream(connection, request);
+            boolean written = false;
+            try {
+                request.writeBody(out);
+                written = true;
+            } finally {
+                if (written) {
+                    out.close();
+                } else {
+                    // 写正文出错时close再抛的异常会盖住原来的异常,这里忽略它.
+                    try {
+                        out.close();
+                    } catch (IOException ignored) {
+                    }
+                }
+            }
+            return;
+        }
         byte[] body = request.getBody();
         if (body != null) {
             // output设为true
             connection.setDoOutput(true);
             connection.addRequestProperty(HEADER_CONTENT_TYPE, request.getBodyContentType());
-            DataOutputStream out = new DataOutputStream(connection.getOutputStream());
+            OutputStream out = openBodyStream(connection, request);
             out.write(body);
             out.close();
         }
     }
+
+    /**
+     * Opens the stream the request body is written to, compressing it if
+     * {@link Request#shouldGzipBody()}.
+     */
+    private static OutputStream openBodyStream(HttpURLConnection connection, Request<?> request)
+            throws IOException {
+        if (request.shouldGzipBody()) {
+            connection.addRequestProperty(ContentEncoding.HEADER_CONTENT_ENCODING,
+                    ContentEncoding.GZIP);
+            return new GZIPOutputStream(connection.getOutputStream(), BODY_BUFFER_SIZE);
+        }
+        return new BufferedOutputStream(connection.getOutputStream(), BODY_BUFFER_SIZE);
+    }
+
+    /**
+     * Reads what is left of a response body when it is closed, so that its connection goes back
+     * to the keep-alive pool; HttpURLConnection drops connections whose body was not read to
+     * the end. A body with more than {@link #MAX_DRAIN_BYTES} left costs more to read than a
+     * new connection, so its connection is disconnected instead.
+     */
+    private static class DrainingInputStream extends FilterInputStream {
+
+        private final HttpURLConnection mConnection;
+
+        private boolean mEof = false;
+
+        private boolean mClosed = false;
+
+        DrainingInputStream(InputStream in, HttpURLConnection connection) {
+            super(in);
+            mConnection = connection;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b == -1) {
+                mEof = true;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            int read = super.read(buffer, offset, count);
+            if (read == -1) {
+                mEof = true;
+            }
+            return read;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+            boolean reusable = mEof || drain();
+            try {
+                super.close();
+            } finally {
+                if (!reusable) {
+                    mConnection.disconnect();
+                }
+            }
+        }
+
+        /**
+         * Reads the rest of the body, up to {@link #MAX_DRAIN_BYTES}.
+         *
+         * @return true if the body was read to the end
+         */
+        private boolean drain() {
+            byte[] buffer = new byte[4096];
+            int drained = 0;
+            try {
+                int count;
+                while ((count = in.read(buffer)) != -1) {
+                    drained += count;
+                    if (drained > MAX_DRAIN_BYTES) {
+                        return false;
+                    }
+                }
+                return true;
+            } catch (IOException e) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Counts the connections HttpURLConnection opens through it; it only asks for a socket
+     * when it cannot reuse a pooled connection.
+     */
+    private static class CountingSSLSocketFactory extends SSLSocketFactory {
+
+        private final SSLSocketFactory mDelegate;
+
+        private final AtomicInteger mCount;
+
+        CountingSSLSocketFactory(SSLSocketFactory delegate, AtomicInteger count) {
+            mDelegate = delegate;
+            mCount = count;
+        }
+
+        @Override
+        public String[] getDefaultCipherSuites() {
+            return mDelegate.getDefaultCipherSuites();
+        }
+
+        @Override
+        public String[] getSupportedCipherSuites() {
+            return mDelegate.getSupportedCipherSuites();
+        }
+
+        @Override
+        public Socket createSocket(Socket socket, String host, int port, boolean autoClose)
+                throws IOException {
+            mCount.incrementAndGet();
+            return mDelegate.createSocket(socket, host, port, autoClose);
+        }
+
+        @Override
+        public Socket createSocket() throws IOException {
+            mCount.incrementAndGet();
+            return mDelegate.createSocket();
+        }
+
+        @Override
+        public Socket createSocket(String host, int port) throws IOException {
+            mCount.incrementAndGet();
+            return mDelegate.createSocket(host, port);
+        }
+
+        @Override
+        public Socket createSocket(String host, int port, InetAddress localHost, int localPort)
+                throws IOException {
+            mCount.incrementAndGet();
+            return mDelegate.createSocket(host, port, localHost, localPort);
+        }
+
+        @Override
+        public Socket createSocket(InetAddress host, int port) throws IOException {
+            mCount.incrementAndGet();
+            return mDelegate.createSocket(host, port);
+        }
+
+        @Override
+        public Socket createSocket(InetAddress address, int port, InetAddress localAddress,
+                                   int localPort) throws IOException {
+            mCount.incrementAndGet();
+            return mDelegate.createSocket(address, port, localAddress, localPort);
+        }
+    }
 }
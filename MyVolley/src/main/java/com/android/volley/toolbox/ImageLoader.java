@@ -85,6 +85,9 @@ public class ImageLoader {
      * will be used as an L1 cache before dispatch to Volley. Implementations
      * must not block. Implementation with an LruCache is recommended.
      * 图片的缓存,其实可以用两级缓存的呢...可以模仿xUtils写,而且网络请求已经写好了.还需要什么呢.
+     * <p/>
+     * An implementation that knows an evicted bitmap is no longer displayed may hand it to
+     * {@link BitmapPool#put} so that later decodes reuse its memory.
      */
     public interface ImageCache {
         public Bitmap getBitmap(String url);
@@ -27,6 +27,10 @@ import com.android.volley.Request;
 import com.android.volley.Response;
 import com.android.volley.VolleyLog;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.Executor;
+
 /**
  * A canned request for getting an image at a given URL and calling
  * back with a decoded Bitmap.
@@ -56,10 +60,16 @@ public class ImageRequest extends Request<Bitmap> {
     private final int mMaxHeight;
 
     /**
-     * Decoding lock so that we don't decode more than one image at a time (to avoid OOM's)
-     * 这句精彩,限制图片的数量,同一时间只解析一张图片,防止OOM.跟现实图片所用的内存好像是两回事.
+     * Decodes run here, in parallel but within a memory budget (to avoid OOM's), instead of one
+     * at a time on the dispatcher threads.
+     * 原来是一个全局锁,同一时间只解析一张图片,防止OOM.现在按内存预算并行解码.
      */
-    private static final Object sDecodeLock = new Object();
+    private final DecodeExecutor mDecodeExecutor = DecodeExecutor.getDefault();
+
+    /**
+     * Bitmaps that are no longer displayed, decoded into instead of allocating new ones.
+     */
+    private final BitmapPool mBitmapPool = BitmapPool.getDefault();
 
     /**
      * Creates a new image request, decoding to a maximum specified width and
@@ -133,17 +143,20 @@ public class ImageRequest extends Request<Bitmap> {
         return resized;
     }
 
+    @Override
+    public Executor getParseExecutor() {
+        return mDecodeExecutor;
+    }
+
     @Override
     protected Response<Bitmap> parseNetworkResponse(NetworkResponse response) {
-        // Serialize all decode on a global lock to reduce concurrent heap usage.
-        synchronized (sDecodeLock) {
-            try {
-                return doParse(response);
-            } catch (OutOfMemoryError e) {
-                // 捕获了OOM...
-                VolleyLog.e("Caught OOM for %d byte image, url=%s", response.data.length, getUrl());
-                return Response.error(new ParseError(e));
-            }
+        try {
+            return doParse(response);
+        } catch (OutOfMemoryError e) {
+            // 捕获了OOM...
+            VolleyLog.e("Caught OOM for %d byte image, url=%s", response.getDataLength(),
+                    getUrl());
+            return Response.error(new ParseError(e));
         }
     }
 
@@ -152,20 +165,26 @@ public class ImageRequest extends Request<Bitmap> {
      * 终于说出来了,这是真正获取网络................
      */
     private Response<Bitmap> doParse(NetworkResponse response) {
-        byte[] data = response.data;
         BitmapFactory.Options decodeOptions = new BitmapFactory.Options();
         Bitmap bitmap = null;
+        // First get the natural bounds, to know how much memory the decode will take.
+        // 先获取图片的边界信息,也就是获取大小而已,没有真正获取.
+        decodeOptions.inJustDecodeBounds = true;
+        decode(response, decodeOptions);
+        int actualWidth = decodeOptions.outWidth;
+        int actualHeight = decodeOptions.outHeight;
+        decodeOptions.inJustDecodeBounds = false;
+
         if (mMaxWidth == 0 && mMaxHeight == 0) {
             decodeOptions.inPreferredConfig = mDecodeConfig;
-            bitmap = BitmapFactory.decodeByteArray(data, 0, data.length, decodeOptions);
+            int reservation = mDecodeExecutor.acquireMemory(
+                    getBitmapBytes(actualWidth, actualHeight, mDecodeConfig));
+            try {
+                bitmap = decodeReusing(response, decodeOptions);
+            } finally {
+                mDecodeExecutor.releaseMemory(reservation);
+            }
         } else {
-            // If we have to resize this image, first get the natural bounds.
-            // 先获取图片的边界信息,也就是获取大小而已,没有真正获取.
-            decodeOptions.inJustDecodeBounds = true;
-            BitmapFactory.decodeByteArray(data, 0, data.length, decodeOptions);
-            int actualWidth = decodeOptions.outWidth;
-            int actualHeight = decodeOptions.outHeight;
-
             // Then compute the dimensions we would ideally like to decode to.
             int desiredWidth = getResizedDimension(mMaxWidth, mMaxHeight,
                     actualWidth, actualHeight);
@@ -173,24 +192,35 @@ public class ImageRequest extends Request<Bitmap> {
                     actualHeight, actualWidth);
 
             // Decode to the nearest power of two scaling factor.
-            decodeOptions.inJustDecodeBounds = false;
             // TODO(ficus): Do we need this or is it okay since API 8 doesn't support it?
             // decodeOptions.inPreferQualityOverSpeed = PREFER_QUALITY_OVER_SPEED;
             // 获取最优的大小
-            decodeOptions.inSampleSize =
+            int sampleSize =
                     findBestSampleSize(actualWidth, actualHeight, desiredWidth, desiredHeight);
-            Bitmap tempBitmap =
-                    BitmapFactory.decodeByteArray(data, 0, data.length, decodeOptions);
-
-            // If necessary, scale down to the maximal acceptable size.
-            if (tempBitmap != null && (tempBitmap.getWidth() > desiredWidth ||
-                    tempBitmap.getHeight() > desiredHeight)) {
-                bitmap = Bitmap.createScaledBitmap(tempBitmap,
-                        desiredWidth, desiredHeight, true);
-                // 记得释放啊
-                tempBitmap.recycle();
-            } else {
-                bitmap = tempBitmap;
+            decodeOptions.inSampleSize = sampleSize;
+            // The sampled bitmap and, if it needs scaling, the scaled copy exist at the same time.
+            long bytes = getBitmapBytes(actualWidth / sampleSize, actualHeight / sampleSize,
+                    Config.ARGB_8888) + getBitmapBytes(desiredWidth, desiredHeight, Config.ARGB_8888);
+            int reservation = mDecodeExecutor.acquireMemory(bytes);
+            try {
+                Bitmap tempBitmap = decodeReusing(response, decodeOptions);
+
+                // If necessary, scale down to the maximal acceptable size.
+                if (tempBitmap != null && (tempBitmap.getWidth() > desiredWidth ||
+                        tempBitmap.getHeight() > desiredHeight)) {
+                    bitmap = Bitmap.createScaledBitmap(tempBitmap,
+                            desiredWidth, desiredHeight, true);
+                    // 记得释放啊.中间的Bitmap从来没有显示过,可以给下一次解码复用.
+                    if (mBitmapPool.isEnabled()) {
+                        mBitmapPool.put(tempBitmap);
+                    } else {
+                        tempBitmap.recycle();
+                    }
+                } else {
+                    bitmap = tempBitmap;
+                }
+            } finally {
+                mDecodeExecutor.releaseMemory(reservation);
             }
         }
 
@@ -201,6 +231,56 @@ public class ImageRequest extends Request<Bitmap> {
         }
     }
 
+    /**
+     * Estimates the memory a bitmap of the given size takes.
+     */
+    private static long getBitmapBytes(int width, int height, Config config) {
+        int bytesPerPixel = config == Config.ALPHA_8 ? 1
+                : config == Config.RGB_565 || config == Config.ARGB_4444 ? 2 : 4;
+        return (long) Math.max(width, 0) * Math.max(height, 0) * bytesPerPixel;
+    }
+
+    /**
+     * Decodes the body into a pooled bitmap if one fits, see {@link BitmapPool}.
+     */
+    private Bitmap decodeReusing(NetworkResponse response, BitmapFactory.Options options) {
+        mBitmapPool.addInBitmapOptions(options);
+        try {
+            return decode(response, options);
+        } catch (IllegalArgumentException e) {
+            // The pooled bitmap did not fit after all; decode into a new one.
+            mBitmapPool.clearInBitmap(options);
+            return decode(response, options);
+        }
+    }
+
+    /**
+     * Decodes the body, straight from the mapped file for a large cache hit.
+     */
+    private static Bitmap decode(NetworkResponse response, BitmapFactory.Options options) {
+        byte[] data = response.data;
+        if (data != null) {
+            return BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        }
+        InputStream in = response.openData();
+        try {
+            return BitmapFactory.decodeStream(in, null, options);
+        } finally {
+            try {
+                in.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Large cached images are decoded straight from the mapped cache file.
+     */
+    @Override
+    public boolean acceptsMappedCacheData() {
+        return true;
+    }
+
     @Override
     protected void deliverResponse(Bitmap response) {
         mListener.onResponse(response);
@@ -0,0 +1,164 @@
+package com.android.volley.toolbox;
+
+import com.android.volley.AuthFailureError;
+import com.android.volley.BatchCodec;
+import com.android.volley.Headers;
+import com.android.volley.NetworkResponse;
+import com.android.volley.ParseError;
+import com.android.volley.Request;
+import com.android.volley.VolleyError;
+import com.android.volley.VolleyLog;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.apache.http.protocol.HTTP;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Combines GET requests under a base URL into one POST of a JSON array to a batch endpoint.
+ * 格式是常见的batch接口的格式,后台不一样的话自己实现BatchCodec.
+ * <p/>
+ * The request body is an array with one object per request:
+ * <pre>
+ * [{"method": "GET", "relative_url": "users/1", "headers": {"Accept": "..."}}, ...]
+ * </pre>
+ * and the response body an array with one object per request, in the same order:
+ * <pre>
+ * [{"code": 200, "headers": [{"name": "ETag", "value": "..."}], "body": "..."}, ...]
+ * </pre>
+ * The batch request carries the headers of its first part, so only batch requests that share
+ * their credentials.
+ */
+public class JsonBatchCodec implements BatchCodec {
+
+    private static final String PROTOCOL_CHARSET = "utf-8";
+
+    private static final String PROTOCOL_CONTENT_TYPE =
+            String.format("application/json; charset=%s", PROTOCOL_CHARSET);
+
+    private final String mBaseUrl;
+
+    private final String mBatchUrl;
+
+    private final int mMaxBatchSize;
+
+    /**
+     * @param baseUrl      Requests whose URL starts with this are combined; the rest of the URL
+     *                     is sent as the relative URL
+     * @param batchUrl     URL of the batch endpoint
+     * @param maxBatchSize Maximum number of requests in one batch
+     */
+    public JsonBatchCodec(String baseUrl, String batchUrl, int maxBatchSize) {
+        mBaseUrl = baseUrl;
+        mBatchUrl = batchUrl;
+        mMaxBatchSize = maxBatchSize;
+    }
+
+    @Override
+    public String getBatchUrl(Request<?> request) {
+        if (request.getMethod() != Request.Method.GET || request.getUrl() == null
+                || !request.getUrl().startsWith(mBaseUrl)) {
+            return null;
+        }
+        return mBatchUrl;
+    }
+
+    @Override
+    public int getMaxBatchSize() {
+        return mMaxBatchSize;
+    }
+
+    @Override
+    public Map<String, String> getHeaders(List<Request<?>> parts) throws AuthFailureError {
+        return parts.isEmpty() ? Collections.<String, String>emptyMap() : parts.get(0).getHeaders();
+    }
+
+    @Override
+    public String getBodyContentType() {
+        return PROTOCOL_CONTENT_TYPE;
+    }
+
+    @Override
+    public byte[] encode(List<Request<?>> parts) throws AuthFailureError {
+        JSONArray array = new JSONArray();
+        try {
+            for (Request<?> part : parts) {
+                JSONObject item = new JSONObject();
+                item.put("method", "GET");
+                item.put("relative_url", part.getUrl().substring(mBaseUrl.length()));
+                Map<String, String> headers = part.getHeaders();
+                if (headers != null && !headers.isEmpty()) {
+                    JSONObject jsonHeaders = new JSONObject();
+                    for (Map.Entry<String, String> header : headers.entrySet()) {
+                        jsonHeaders.put(header.getKey(), header.getValue());
+                    }
+                    item.put("headers", jsonHeaders);
+                }
+                array.put(item);
+            }
+            return array.toString().getBytes(PROTOCOL_CHARSET);
+        } catch (JSONException e) {
+            VolleyLog.wtf("Cannot encode batch of %d requests: %s", parts.size(), e);
+            return null;
+        } catch (UnsupportedEncodingException uee) {
+            VolleyLog.wtf("Unsupported Encoding while trying to get the bytes of %s using %s",
+                    array, PROTOCOL_CHARSET);
+            return null;
+        }
+    }
+
+    @Override
+    public List<NetworkResponse> decode(NetworkResponse response, List<Request<?>> parts)
+            throws VolleyError {
+        try {
+            JSONArray array = new JSONArray(
+                    new String(response.data, HttpHeaderParser.parseCharset(response.headers)));
+            List<NetworkResponse> responses = new ArrayList<>(array.length());
+            for (int i = 0; i < array.length(); i++) {
+                JSONObject item = array.getJSONObject(i);
+                Headers headers = new Headers();
+                JSONArray jsonHeaders = item.optJSONArray("headers");
+                if (jsonHeaders != null) {
+                    for (int j = 0; j < jsonHeaders.length(); j++) {
+                        JSONObject header = jsonHeaders.getJSONObject(j);
+                        headers.add(header.getString("name"), header.optString("value"));
+                    }
+                }
+                byte[] body = item.isNull("body")
+                        ? new byte[0] : item.getString("body").getBytes(PROTOCOL_CHARSET);
+                // 子响应的body是字符串,按utf-8编码,所以Content-Type里的charset要跟着改.
+                String contentType = headers.get(HTTP.CONTENT_TYPE);
+                if (contentType != null) {
+                    headers.put(HTTP.CONTENT_TYPE, withUtf8Charset(contentType));
+                }
+                responses.add(new NetworkResponse(item.getInt("code"), body, headers, false));
+            }
+            return responses;
+        } catch (JSONException e) {
+            throw new ParseError(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new ParseError(e);
+        }
+    }
+
+    private static String withUtf8Charset(String contentType) {
+        StringBuilder result = new StringBuilder();
+        for (String param : contentType.split(";")) {
+            String trimmed = param.trim();
+            if (trimmed.toLowerCase().startsWith("charset=")) {
+                continue;
+            }
+            if (result.length() > 0) {
+                result.append("; ");
+            }
+            result.append(trimmed);
+        }
+        return result.append("; charset=").append(PROTOCOL_CHARSET).toString();
+    }
+}
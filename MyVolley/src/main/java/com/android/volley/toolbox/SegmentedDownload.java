@@ -0,0 +1,444 @@
+package com.android.volley.toolbox;
+
+import com.android.volley.AuthFailureError;
+import com.android.volley.DefaultRetryPolicy;
+import com.android.volley.FileError;
+import com.android.volley.NetworkResponse;
+import com.android.volley.Request;
+import com.android.volley.RequestQueue;
+import com.android.volley.Response;
+import com.android.volley.VolleyError;
+import com.android.volley.VolleyLog;
+
+import org.apache.http.HttpStatus;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 多线程分段下载大文件.
+ * 先发一个 Range: bytes=0-0 的请求,探测文件长度和服务器是否支持分段,然后把文件分成N段,
+ * 每段是一个独立的请求,由多个 NetworkDispatcher 并行下载,各自按位置写到同一个临时文件中,全部完成后重命名.
+ * 每一段在重试的时候从本段已经写入的位置继续.服务器不支持分段时,退回到断点续传的 {@link DownloadRequest}.
+ * <p/>
+ * 跟 {@link ImageLoader} 一样,所有方法都必须在主线程调用,结果也在主线程回调.进度在网络线程回调.
+ */
+public class SegmentedDownload {
+
+    /**
+     * 默认分段数.不要超过 RequestQueue 的网络线程数,否则多出来的段只能排队.
+     */
+    public static final int DEFAULT_SEGMENT_COUNT = 3;
+
+    /**
+     * 每一段最小的长度,太小的文件分段反而更慢.
+     */
+    private static final long MIN_SEGMENT_SIZE = 512 * 1024;
+
+    /**
+     * 分段下载的临时文件后缀,跟 DownloadRequest 的断点文件区分开.
+     */
+    private static final String PART_SUFFIX = ".part";
+
+    /**
+     * 进度回调的间隔.
+     */
+    private static final long PROGRESS_UPDATE_RATE = 1000;
+
+    private final RequestQueue mRequestQueue;
+
+    private final String mUrl;
+
+    private final String mFilePath;
+
+    private final int mSegmentCount;
+
+    private final Response.Listener<File> mListener;
+
+    private final Response.ErrorListener mErrorListener;
+
+    private final Response.ProgressListener mProgressListener;
+
+    /**
+     * 正在进行的请求,用于取消.
+     */
+    private final List<Request<?>> mRequests = new ArrayList<>();
+
+    /**
+     * 所有段已经写入的总长度.
+     */
+    private long mDownloaded;
+
+    private long mTotal;
+
+    private long mLastProgressTime;
+
+    private int mPendingSegments;
+
+    private boolean mFinished;
+
+    /**
+     * 网络线程正在写的临时文件数,和是否要删除临时文件.由 mPartFileLock 保护.
+     */
+    private final Object mPartFileLock = new Object();
+
+    private int mOpenWriters;
+
+    private boolean mDiscardPart;
+
+    /**
+     * @param queue            RequestQueue,网络线程数决定了实际的并发段数.
+     * @param url              下载地址.
+     * @param filePath         保存的文件.
+     * @param segmentCount     分段数.
+     * @param listener         下载完成.
+     * @param errorListener    下载失败.
+     * @param progressListener 下载进度,可以为null.
+     */
+    public SegmentedDownload(RequestQueue queue, String url, String filePath, int segmentCount,
+                             Response.Listener<File> listener, Response.ErrorListener errorListener,
+                             Response.ProgressListener progressListener) {
+        if (segmentCount < 1) {
+            throw new IllegalArgumentException("segmentCount must be at least 1");
+        }
+        mRequestQueue = queue;
+        mUrl = url;
+        mFilePath = filePath;
+        mSegmentCount = segmentCount;
+        mListener = listener;
+        mErrorListener = errorListener;
+        mProgressListener = progressListener;
+    }
+
+    /**
+     * 开始下载.
+     */
+    public void start() {
+        ProbeRequest probe = new ProbeRequest(mUrl, new Response.Listener<Map<String, String>>() {
+            @Override
+            public void onResponse(Map<String, String> headers) {
+                onProbed(headers);
+            }
+        }, new Response.ErrorListener() {
+            @Override
+            public void onErrorResponse(VolleyError error) {
+                VolleyLog.d("Range probe failed for %s, falling back to a single download", mUrl);
+                startSingleDownload();
+            }
+        });
+        addRequest(probe);
+    }
+
+    /**
+     * 取消下载.已经写入的临时文件会删除;还有段在写的话,等最后一段关闭文件后再删.
+     */
+    public void cancel() {
+        mFinished = true;
+        for (Request<?> request : mRequests) {
+            request.cancel();
+        }
+        mRequests.clear();
+        synchronized (mPartFileLock) {
+            mDiscardPart = true;
+            if (mOpenWriters == 0) {
+                getPartFile().delete();
+            }
+        }
+    }
+
+    private void addRequest(Request<?> request) {
+        mRequests.add(request);
+        mRequestQueue.add(request);
+    }
+
+    private File getPartFile() {
+        return new File(mFilePath + PART_SUFFIX);
+    }
+
+    /**
+     * Opens the temporary file for a segment to write into, unless the download was canceled.
+     * Called from the network threads.
+     */
+    private RandomAccessFile openPartFile() throws IOException {
+        synchronized (mPartFileLock) {
+            if (mDiscardPart) {
+                // 已经取消了,不能再创建临时文件.
+                throw new InterruptedIOException("Download canceled");
+            }
+            RandomAccessFile file = new RandomAccessFile(getPartFile(), "rw");
+            mOpenWriters++;
+            return file;
+        }
+    }
+
+    /**
+     * Closes a file from {@link #openPartFile}; the last one to close deletes the temporary
+     * file if the download was canceled meanwhile.
+     */
+    private void closePartFile(RandomAccessFile file) throws IOException {
+        try {
+            file.close();
+        } finally {
+            synchronized (mPartFileLock) {
+                if (--mOpenWriters == 0 && mDiscardPart) {
+                    getPartFile().delete();
+                }
+            }
+        }
+    }
+
+    private void startSingleDownload() {
+        if (mFinished) {
+            return;
+        }
+        mRequests.clear();
+        DownloadRequest request = new DownloadRequest(mUrl, mFilePath, mListener, mErrorListener,
+                mProgressListener);
+        request.setAutoResume(true);
+        addRequest(request);
+    }
+
+    private void onProbed(Map<String, String> headers) {
+        if (mFinished) {
+            return;
+        }
+        long[] range = headers != null ? HttpHeaderParser.parseContentRange(headers) : null;
+        if (range == null || range[2] <= 0) {
+            startSingleDownload();
+            return;
+        }
+        mRequests.clear();
+        mTotal = range[2];
+        String validator = headers.get("ETag");
+        if (validator == null || validator.startsWith("W/")) {
+            validator = headers.get("Last-Modified");
+        }
+
+        int segments = (int) Math.max(1, Math.min(mSegmentCount, mTotal / MIN_SEGMENT_SIZE));
+        long segmentSize = mTotal / segments;
+        getPartFile().delete();
+        mPendingSegments = segments;
+        for (int i = 0; i < segments; i++) {
+            long first = i * segmentSize;
+            long last = (i == segments - 1) ? mTotal - 1 : first + segmentSize - 1;
+            addRequest(new SegmentRequest(first, last, validator));
+        }
+    }
+
+    private void onSegmentComplete() {
+        if (mFinished || --mPendingSegments > 0) {
+            return;
+        }
+        mFinished = true;
+        mRequests.clear();
+        File file = new File(mFilePath);
+        if (file.exists()) {
+            file.delete();
+        }
+        if (getPartFile().renameTo(file)) {
+            mListener.onResponse(file);
+        } else {
+            VolleyLog.e("Could not rename %s to %s", getPartFile().getAbsolutePath(), mFilePath);
+            mErrorListener.onErrorResponse(new FileError());
+        }
+    }
+
+    private void onSegmentError(VolleyError error) {
+        if (mFinished) {
+            return;
+        }
+        cancel();
+        mErrorListener.onErrorResponse(error);
+    }
+
+    /**
+     * Called from the network threads as segments write their data.
+     */
+    private synchronized void onSegmentProgress(int count) {
+        mDownloaded += count;
+        if (mProgressListener == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if (now - mLastProgressTime > PROGRESS_UPDATE_RATE || mDownloaded == mTotal) {
+            mLastProgressTime = now;
+            mProgressListener.onProgressing(mDownloaded, mTotal);
+        }
+    }
+
+    /**
+     * 探测文件长度.只请求第一个字节,服务器不支持分段的时候直接放弃,不会下载整个文件.
+     */
+    private static class ProbeRequest extends Request<Map<String, String>> {
+        private final Response.Listener<Map<String, String>> mListener;
+
+        public ProbeRequest(String url, Response.Listener<Map<String, String>> listener,
+                            Response.ErrorListener errorListener) {
+            super(Method.GET, url, errorListener);
+            mListener = listener;
+            setShouldCache(false);
+            setRetryPolicy(new DefaultRetryPolicy(DefaultRetryPolicy.DEFAULT_TIMEOUT_MS, 0,
+                    DefaultRetryPolicy.DEFAULT_BACKOFF_MULT));
+        }
+
+        @Override
+        public Map<String, String> getHeaders() throws AuthFailureError {
+            Map<String, String> headers = new HashMap<>();
+            headers.put("Range", "bytes=0-0");
+            return headers;
+        }
+
+        @Override
+        public boolean isStreamingResponse() {
+            return true;
+        }
+
+        @Override
+        public OutputStream openResponseStream(int statusCode, Map<String, String> headers)
+                throws IOException {
+            if (statusCode != HttpStatus.SC_PARTIAL_CONTENT) {
+                throw new IOException("Range requests not supported for " + getUrl());
+            }
+            return new OutputStream() {
+                @Override
+                public void write(int oneByte) {
+                    // Discard the probed byte.
+                }
+
+                @Override
+                public void write(byte[] buffer, int offset, int count) {
+                    // Discard the probed byte.
+                }
+            };
+        }
+
+        @Override
+        protected Response<Map<String, String>> parseNetworkResponse(NetworkResponse response) {
+            return Response.success(response.headers, null);
+        }
+
+        @Override
+        protected void deliverResponse(Map<String, String> response) {
+            mListener.onResponse(response);
+        }
+    }
+
+    /**
+     * 下载一段数据,按位置写到临时文件.重试的时候从本段已经写入的位置继续.
+     */
+    private class SegmentRequest extends Request<Long> {
+        private final long mFirst;
+        private final long mLast;
+        private final String mValidator;
+        private volatile long mWritten;
+
+        /**
+         * 服务器的文件变了.重试也没用,重试策略直接放弃.
+         */
+        private volatile boolean mRangeMismatch;
+
+        public SegmentRequest(long first, long last, String validator) {
+            super(Method.GET, mUrl, new Response.ErrorListener() {
+                @Override
+                public void onErrorResponse(VolleyError error) {
+                    onSegmentError(error);
+                }
+            });
+            mFirst = first;
+            mLast = last;
+            mValidator = validator;
+            setShouldCache(false);
+            setRetryPolicy(new DefaultRetryPolicy() {
+                @Override
+                public void retry(VolleyError error) throws VolleyError {
+                    if (mRangeMismatch) {
+                        throw error;
+                    }
+                    super.retry(error);
+                }
+            });
+        }
+
+        @Override
+        public Map<String, String> getHeaders() throws AuthFailureError {
+            Map<String, String> headers = new HashMap<>();
+            headers.put("Range", "bytes=" + (mFirst + mWritten) + "-" + mLast);
+            if (mValidator != null) {
+                headers.put("If-Range", mValidator);
+            }
+            return headers;
+        }
+
+        @Override
+        public boolean isStreamingResponse() {
+            return true;
+        }
+
+        @Override
+        public OutputStream openResponseStream(int statusCode, Map<String, String> headers)
+                throws IOException {
+            long position = mFirst + mWritten;
+            long[] range = HttpHeaderParser.parseContentRange(headers);
+            if (statusCode != HttpStatus.SC_PARTIAL_CONTENT || range == null
+                    || range[0] != position) {
+                // 服务器的文件变了,分段已经没有意义.
+                mRangeMismatch = true;
+                throw new IOException("Unexpected range response for " + getUrl());
+            }
+            final RandomAccessFile file = openPartFile();
+            try {
+                file.seek(position);
+            } catch (IOException e) {
+                closePartFile(file);
+                throw e;
+            }
+            return new OutputStream() {
+                private boolean mClosed;
+
+                @Override
+                public void write(int oneByte) throws IOException {
+                    write(new byte[]{(byte) oneByte}, 0, 1);
+                }
+
+                @Override
+                public void write(byte[] buffer, int offset, int count) throws IOException {
+                    long remaining = mLast - mFirst + 1 - mWritten;
+                    if (count > remaining) {
+                        count = (int) remaining;
+                    }
+                    file.write(buffer, offset, count);
+                    mWritten += count;
+                    onSegmentProgress(count);
+                }
+
+                @Override
+                public void close() throws IOException {
+                    if (!mClosed) {
+                        mClosed = true;
+                        closePartFile(file);
+                    }
+                }
+            };
+        }
+
+        @Override
+        protected Response<Long> parseNetworkResponse(NetworkResponse response) {
+            if (mWritten != mLast - mFirst + 1) {
+                return Response.error(new FileError(response));
+            }
+            return Response.success(mWritten, null);
+        }
+
+        @Override
+        protected void deliverResponse(Long response) {
+            onSegmentComplete();
+        }
+    }
+}
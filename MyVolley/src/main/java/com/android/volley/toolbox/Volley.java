@@ -31,8 +31,8 @@ import java.io.File;
 /**
  * Modify By weiji.chen 2014/03/09
  * 用来创建RequestQueue的Helper.实际上,所有的请求都是经过RequestQueue.
- * 注意:Volley不适合下载大文件,只能下载小文件.建议不要超过5M.因为下载的时候直接到内存的.暂用的是APP的内存.同时,注意并发线程的控制.
- * 如果需要下载大文件,请使用xUtils.
+ * 注意:一般的请求下载的时候直接到内存的,暂用的是APP的内存,所以不要超过5M.同时,注意并发线程的控制.
+ * 如果需要下载大文件,请使用 {@link DownloadRequest},数据会直接分块写到磁盘.
  * TODO:流量统计.
  */
 public class Volley {
@@ -73,6 +73,19 @@ public class BitmapGlobalConfig {
      */
     private boolean diskCacheEnabled = true;
 
+    /**
+     * 是否把内存缓存淘汰的Bitmap交给{@link com.android.volley.toolbox.BitmapPool},解码新图片的时候复用.
+     * 默认False.只有确定被淘汰的Bitmap不会再显示的时候才能开启(例如内存缓存比一屏图片大得多),
+     * 否则正在显示的图片可能被新图片覆盖.
+     */
+    private boolean bitmapReuseEnabled = false;
+
+    /**
+     * 内存缓存是否按访问频率决定收不收新图片(W-TinyLFU),而不是单纯的LRU.
+     * 默认False.快速滑过一长串只看一次的缩略图时,头像、图标这些每屏都用的图片不会被挤出去.
+     */
+    private boolean memoryCacheAdmissionEnabled = false;
+
     /**
      * 图片下载器
      */
@@ -289,6 +302,30 @@ public class BitmapGlobalConfig {
         this.diskCacheEnabled = diskCacheEnabled;
     }
 
+    public boolean isBitmapReuseEnabled() {
+        return bitmapReuseEnabled;
+    }
+
+    public void setBitmapReuseEnabled(boolean bitmapReuseEnabled) {
+        this.bitmapReuseEnabled = bitmapReuseEnabled;
+    }
+
+    public boolean isMemoryCacheAdmissionEnabled() {
+        return memoryCacheAdmissionEnabled;
+    }
+
+    /**
+     * 修改之后会重建内存缓存,已经缓存的图片会被清掉.
+     */
+    public void setMemoryCacheAdmissionEnabled(boolean memoryCacheAdmissionEnabled) {
+        if (this.memoryCacheAdmissionEnabled != memoryCacheAdmissionEnabled) {
+            this.memoryCacheAdmissionEnabled = memoryCacheAdmissionEnabled;
+            if (bitmapCache != null) {
+                new BitmapCacheManagementTask().execute(BitmapCacheManagementTask.MESSAGE_INIT_MEMORY_CACHE);
+            }
+        }
+    }
+
     public LruDiskCache.DiskCacheFileNameGenerator getDiskCacheFileNameGenerator() {
         return diskCacheFileNameGenerator;
     }
@@ -19,6 +19,8 @@ import android.graphics.Bitmap;
 import android.graphics.Matrix;
 import android.media.ExifInterface;
 
+import com.android.volley.toolbox.BitmapPool;
+
 import org.robam.xutils.BitmapUtils;
 import org.robam.xutils.Utils.IOUtils;
 import org.robam.xutils.Utils.LogUtils;
@@ -75,7 +77,8 @@ public class BitmapCache {
             } catch (Throwable e) {
             }
         }
-        mMemoryCache = new LruMemoryCache<MemoryCacheKey, Bitmap>(globalConfig.getMemoryCacheSize()) {
+        mMemoryCache = new LruMemoryCache<MemoryCacheKey, Bitmap>(globalConfig.getMemoryCacheSize(),
+                globalConfig.isMemoryCacheAdmissionEnabled()) {
             /**
              * Measure item size in bytes rather than units which is more practical
              * for a bitmap cache
@@ -85,6 +88,23 @@ public class BitmapCache {
                 if (bitmap == null) return 0;
                 return bitmap.getRowBytes() * bitmap.getHeight();
             }
+
+            /**
+             * 被淘汰的Bitmap交给复用池,见{@link BitmapGlobalConfig#setBitmapReuseEnabled}.
+             */
+            @Override
+            protected void entryRemoved(boolean evicted, MemoryCacheKey key, Bitmap oldValue, Bitmap newValue) {
+                if (evicted && globalConfig.isBitmapReuseEnabled()) {
+                    BitmapPool.getDefault().put(oldValue);
+                }
+            }
+
+            /**
+             * 刚放进来就被拒绝的Bitmap可能正要显示,不能交给复用池.
+             */
+            @Override
+            protected void entryRejected(MemoryCacheKey key, Bitmap value) {
+            }
         };
     }
 
@@ -93,13 +113,16 @@ public class BitmapCache {
      * executed on the main/UI thread. By default an ImageCache does not initialize the disk
      * cache when it is created, instead you should call initDiskCache() to initialize it on a
      * background thread.
+     * <p/>
+     * The journal is read asynchronously (see {@link LruDiskCache#openAsync}): lookups find the
+     * entries read so far right away, and downloads do not wait for the rest.
      */
     public void initDiskCache() {
         if (!globalConfig.isDiskCacheEnabled()) return;
 
         // Set up disk cache
         synchronized (mDiskCacheLock) {
-            if (mDiskLruCache == null || mDiskLruCache.isClosed()) {
+            if (mDiskLruCache == null || (mDiskLruCache.isLoaded() && mDiskLruCache.isClosed())) {
                 File diskCacheDir = new File(globalConfig.getDiskCachePath());
                 if (!diskCacheDir.exists()) {
                     diskCacheDir.mkdirs();
@@ -108,8 +131,10 @@ public class BitmapCache {
                 long diskCacheSize = globalConfig.getDiskCacheSize();
                 diskCacheSize = availableSpace > diskCacheSize ? diskCacheSize : availableSpace;
                 try {
-                    mDiskLruCache = LruDiskCache.open(diskCacheDir, 1, 1, diskCacheSize);
-                    mDiskLruCache.setDiskCacheFileNameGenerator(globalConfig.getDiskCacheFileNameGenerator());
+                    // 图片缓存的条目多,用二进制journal,打开快.而且是异步打开,不用等journal读完.
+                    LruDiskCache diskLruCache = LruDiskCache.openAsync(diskCacheDir, 1, 1, diskCacheSize, true);
+                    diskLruCache.setDiskCacheFileNameGenerator(globalConfig.getDiskCacheFileNameGenerator());
+                    mDiskLruCache = diskLruCache;
                 } catch (Throwable e) {
                     mDiskLruCache = null;
                     LogUtils.e(e.getMessage(), e);
@@ -120,6 +145,22 @@ public class BitmapCache {
         }
     }
 
+    /**
+     * Returns the disk cache, or null if it failed to open. Only waits for
+     * {@link #initDiskCache} to have started opening it, not for its journal to be read.
+     */
+    private LruDiskCache getDiskLruCache() {
+        synchronized (mDiskCacheLock) {
+            while (!isDiskCacheReadied) {
+                try {
+                    mDiskCacheLock.wait();
+                } catch (Throwable e) {
+                }
+            }
+            return mDiskLruCache;
+        }
+    }
+
     public void setMemoryCacheSize(int maxSize) {
         if (mMemoryCache != null) {
             mMemoryCache.setMaxSize(maxSize);
@@ -157,46 +198,37 @@ public class BitmapCache {
 
             Bitmap bitmap = null;
             // try download to disk
-            if (globalConfig.isDiskCacheEnabled()) {
-                synchronized (mDiskCacheLock) {
-                    // Wait for disk cache to initialize
-                    while (!isDiskCacheReadied) {
-                        try {
-                            mDiskCacheLock.wait();
-                        } catch (Throwable e) {
+            // 不再拿着磁盘缓存锁下载,各个下载可以并行.
+            LruDiskCache diskLruCache = globalConfig.isDiskCacheEnabled() ? getDiskLruCache() : null;
+            if (diskLruCache != null) {
+                try {
+                    snapshot = diskLruCache.get(uri);
+                    // journal还没读完的时候不写磁盘缓存,直接下载到内存,不等它.
+                    if (snapshot == null && diskLruCache.isLoaded()) {
+                        LruDiskCache.Editor editor = diskLruCache.edit(uri);
+                        if (editor != null) {
+                            outputStream = editor.newOutputStream(DISK_CACHE_INDEX);
+                            bitmapMeta.expiryTimestamp = globalConfig.getDownloader().downloadToStream(uri, outputStream, task);
+                            if (bitmapMeta.expiryTimestamp < 0) {
+                                editor.abort();
+                                return null;
+                            } else {
+                                editor.setEntryExpiryTimestamp(bitmapMeta.expiryTimestamp);
+                                editor.commit();
+                            }
+                            snapshot = diskLruCache.get(uri);
                         }
                     }
-
-                    if (mDiskLruCache != null) {
-                        try {
-                            snapshot = mDiskLruCache.get(uri);
-                            if (snapshot == null) {
-                                LruDiskCache.Editor editor = mDiskLruCache.edit(uri);
-                                if (editor != null) {
-                                    outputStream = editor.newOutputStream(DISK_CACHE_INDEX);
-                                    bitmapMeta.expiryTimestamp = globalConfig.getDownloader().downloadToStream(uri, outputStream, task);
-                                    if (bitmapMeta.expiryTimestamp < 0) {
-                                        editor.abort();
-                                        return null;
-                                    } else {
-                                        editor.setEntryExpiryTimestamp(bitmapMeta.expiryTimestamp);
-                                        editor.commit();
-                                    }
-                                    snapshot = mDiskLruCache.get(uri);
-                                }
-                            }
-                            if (snapshot != null) {
-                                bitmapMeta.inputStream = snapshot.getInputStream(DISK_CACHE_INDEX);
-                                bitmap = decodeBitmapMeta(bitmapMeta, config);
-                                if (bitmap == null) {
-                                    bitmapMeta.inputStream = null;
-                                    mDiskLruCache.remove(uri);
-                                }
-                            }
-                        } catch (Throwable e) {
-                            LogUtils.e(e.getMessage(), e);
+                    if (snapshot != null) {
+                        bitmapMeta.inputStream = snapshot.getInputStream(DISK_CACHE_INDEX);
+                        bitmap = decodeBitmapMeta(bitmapMeta, config);
+                        if (bitmap == null) {
+                            bitmapMeta.inputStream = null;
+                            diskLruCache.remove(uri);
                         }
                     }
+                } catch (Throwable e) {
+                    LogUtils.e(e.getMessage(), e);
                 }
             }
 
@@ -271,41 +303,35 @@ public class BitmapCache {
      */
     public Bitmap getBitmapFromDiskCache(String uri, BitmapDisplayConfig config) {
         if (uri == null || !globalConfig.isDiskCacheEnabled()) return null;
-        synchronized (mDiskCacheLock) {
-            while (!isDiskCacheReadied) {
-                try {
-                    mDiskCacheLock.wait();
-                } catch (Throwable e) {
-                }
-            }
-            if (mDiskLruCache != null) {
-                LruDiskCache.Snapshot snapshot = null;
-                try {
-                    snapshot = mDiskLruCache.get(uri);
-                    if (snapshot != null) {
-                        Bitmap bitmap = null;
-                        if (config == null || config.isShowOriginal()) {
-                            bitmap = BitmapDecoder.decodeFileDescriptor(
-                                    snapshot.getInputStream(DISK_CACHE_INDEX).getFD());
-                        } else {
-                            bitmap = BitmapDecoder.decodeSampledBitmapFromDescriptor(
-                                    snapshot.getInputStream(DISK_CACHE_INDEX).getFD(),
-                                    config.getBitmapMaxSize(),
-                                    config.getBitmapConfig());
-                        }
-
-                        bitmap = rotateBitmapIfNeeded(uri, config, bitmap);
-                        addBitmapToMemoryCache(uri, config, bitmap, mDiskLruCache.getExpiryTimestamp(uri));
-                        return bitmap;
+        LruDiskCache diskLruCache = getDiskLruCache();
+        if (diskLruCache != null) {
+            LruDiskCache.Snapshot snapshot = null;
+            try {
+                snapshot = diskLruCache.get(uri);
+                if (snapshot != null) {
+                    Bitmap bitmap = null;
+                    if (config == null || config.isShowOriginal()) {
+                        bitmap = BitmapDecoder.decodeFileDescriptor(
+                                snapshot.getInputStream(DISK_CACHE_INDEX).getFD());
+                    } else {
+                        bitmap = BitmapDecoder.decodeSampledBitmapFromDescriptor(
+                                snapshot.getInputStream(DISK_CACHE_INDEX).getFD(),
+                                config.getBitmapMaxSize(),
+                                config.getBitmapConfig(),
+                                globalConfig.isBitmapReuseEnabled());
                     }
-                } catch (Throwable e) {
-                    LogUtils.e(e.getMessage(), e);
-                } finally {
-                    IOUtils.closeQuietly(snapshot);
+
+                    bitmap = rotateBitmapIfNeeded(uri, config, bitmap);
+                    addBitmapToMemoryCache(uri, config, bitmap, diskLruCache.getExpiryTimestamp(uri));
+                    return bitmap;
                 }
+            } catch (Throwable e) {
+                LogUtils.e(e.getMessage(), e);
+            } finally {
+                IOUtils.closeQuietly(snapshot);
             }
-            return null;
         }
+        return null;
     }
 
     /**
@@ -425,7 +451,8 @@ public class BitmapCache {
                 bitmap = BitmapDecoder.decodeSampledBitmapFromDescriptor(
                         bitmapMeta.inputStream.getFD(),
                         config.getBitmapMaxSize(),
-                        config.getBitmapConfig());
+                        config.getBitmapConfig(),
+                        globalConfig.isBitmapReuseEnabled());
             }
         } else if (bitmapMeta.data != null) {
             if (config == null || config.isShowOriginal()) {
@@ -434,7 +461,8 @@ public class BitmapCache {
                 bitmap = BitmapDecoder.decodeSampledBitmapFromByteArray(
                         bitmapMeta.data,
                         config.getBitmapMaxSize(),
-                        config.getBitmapConfig());
+                        config.getBitmapConfig(),
+                        globalConfig.isBitmapReuseEnabled());
             }
         }
         return bitmap;
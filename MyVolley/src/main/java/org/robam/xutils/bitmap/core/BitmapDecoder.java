@@ -19,16 +19,29 @@ import android.content.res.Resources;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 
+import com.android.volley.toolbox.BitmapPool;
+
 import org.robam.xutils.Utils.LogUtils;
 
 import java.io.FileDescriptor;
 
+/**
+ * 按需要的大小采样解码.开启复用的时候,采样解码会尽量复用{@link BitmapPool}里不再显示的Bitmap.
+ */
 public class BitmapDecoder {
 
     private BitmapDecoder() {
     }
 
     public static Bitmap decodeSampledBitmapFromResource(Resources res, int resId, BitmapSize maxSize, Bitmap.Config config) {
+        return decodeSampledBitmapFromResource(res, resId, maxSize, config, false);
+    }
+
+    /**
+     * @param reuseBitmap 是否从{@link BitmapPool}复用Bitmap.复用的时候解码出来的Bitmap不是purgeable的,
+     *                    只有开启了{@link org.robam.xutils.bitmap.BitmapGlobalConfig#setBitmapReuseEnabled}才传true.
+     */
+    public static Bitmap decodeSampledBitmapFromResource(Resources res, int resId, BitmapSize maxSize, Bitmap.Config config, boolean reuseBitmap) {
         final BitmapFactory.Options options = new BitmapFactory.Options();
         options.inJustDecodeBounds = true;
         options.inPurgeable = true;
@@ -39,8 +52,17 @@ public class BitmapDecoder {
         if (config != null) {
             options.inPreferredConfig = config;
         }
+        if (reuseBitmap) {
+            BitmapPool.getDefault().addInBitmapOptions(options);
+        }
         try {
-            return BitmapFactory.decodeResource(res, resId, options);
+            try {
+                return BitmapFactory.decodeResource(res, resId, options);
+            } catch (IllegalArgumentException e) {
+                // 复用的Bitmap不合适,不复用再解码一次.
+                BitmapPool.getDefault().clearInBitmap(options);
+                return BitmapFactory.decodeResource(res, resId, options);
+            }
         } catch (Throwable e) {
             LogUtils.e(e.getMessage(), e);
             return null;
@@ -48,6 +70,13 @@ public class BitmapDecoder {
     }
 
     public static Bitmap decodeSampledBitmapFromFile(String filename, BitmapSize maxSize, Bitmap.Config config) {
+        return decodeSampledBitmapFromFile(filename, maxSize, config, false);
+    }
+
+    /**
+     * @param reuseBitmap 见 {@link #decodeSampledBitmapFromResource(Resources, int, BitmapSize, Bitmap.Config, boolean)}
+     */
+    public static Bitmap decodeSampledBitmapFromFile(String filename, BitmapSize maxSize, Bitmap.Config config, boolean reuseBitmap) {
         final BitmapFactory.Options options = new BitmapFactory.Options();
         options.inJustDecodeBounds = true;
         options.inPurgeable = true;
@@ -58,8 +87,17 @@ public class BitmapDecoder {
         if (config != null) {
             options.inPreferredConfig = config;
         }
+        if (reuseBitmap) {
+            BitmapPool.getDefault().addInBitmapOptions(options);
+        }
         try {
-            return BitmapFactory.decodeFile(filename, options);
+            try {
+                return BitmapFactory.decodeFile(filename, options);
+            } catch (IllegalArgumentException e) {
+                // 复用的Bitmap不合适,不复用再解码一次.
+                BitmapPool.getDefault().clearInBitmap(options);
+                return BitmapFactory.decodeFile(filename, options);
+            }
         } catch (Throwable e) {
             LogUtils.e(e.getMessage(), e);
             return null;
@@ -67,6 +105,13 @@ public class BitmapDecoder {
     }
 
     public static Bitmap decodeSampledBitmapFromDescriptor(FileDescriptor fileDescriptor, BitmapSize maxSize, Bitmap.Config config) {
+        return decodeSampledBitmapFromDescriptor(fileDescriptor, maxSize, config, false);
+    }
+
+    /**
+     * @param reuseBitmap 见 {@link #decodeSampledBitmapFromResource(Resources, int, BitmapSize, Bitmap.Config, boolean)}
+     */
+    public static Bitmap decodeSampledBitmapFromDescriptor(FileDescriptor fileDescriptor, BitmapSize maxSize, Bitmap.Config config, boolean reuseBitmap) {
         final BitmapFactory.Options options = new BitmapFactory.Options();
         options.inJustDecodeBounds = true;
         options.inPurgeable = true;
@@ -77,8 +122,17 @@ public class BitmapDecoder {
         if (config != null) {
             options.inPreferredConfig = config;
         }
+        if (reuseBitmap) {
+            BitmapPool.getDefault().addInBitmapOptions(options);
+        }
         try {
-            return BitmapFactory.decodeFileDescriptor(fileDescriptor, null, options);
+            try {
+                return BitmapFactory.decodeFileDescriptor(fileDescriptor, null, options);
+            } catch (IllegalArgumentException e) {
+                // 复用的Bitmap不合适,不复用再解码一次.
+                BitmapPool.getDefault().clearInBitmap(options);
+                return BitmapFactory.decodeFileDescriptor(fileDescriptor, null, options);
+            }
         } catch (Throwable e) {
             LogUtils.e(e.getMessage(), e);
             return null;
@@ -86,6 +140,13 @@ public class BitmapDecoder {
     }
 
     public static Bitmap decodeSampledBitmapFromByteArray(byte[] data, BitmapSize maxSize, Bitmap.Config config) {
+        return decodeSampledBitmapFromByteArray(data, maxSize, config, false);
+    }
+
+    /**
+     * @param reuseBitmap 见 {@link #decodeSampledBitmapFromResource(Resources, int, BitmapSize, Bitmap.Config, boolean)}
+     */
+    public static Bitmap decodeSampledBitmapFromByteArray(byte[] data, BitmapSize maxSize, Bitmap.Config config, boolean reuseBitmap) {
         final BitmapFactory.Options options = new BitmapFactory.Options();
         options.inJustDecodeBounds = true;
         options.inPurgeable = true;
@@ -96,8 +157,17 @@ public class BitmapDecoder {
         if (config != null) {
             options.inPreferredConfig = config;
         }
+        if (reuseBitmap) {
+            BitmapPool.getDefault().addInBitmapOptions(options);
+        }
         try {
-            return BitmapFactory.decodeByteArray(data, 0, data.length, options);
+            try {
+                return BitmapFactory.decodeByteArray(data, 0, data.length, options);
+            } catch (IllegalArgumentException e) {
+                // 复用的Bitmap不合适,不复用再解码一次.
+                BitmapPool.getDefault().clearInBitmap(options);
+                return BitmapFactory.decodeByteArray(data, 0, data.length, options);
+            }
         } catch (Throwable e) {
             LogUtils.e(e.getMessage(), e);
             return null;
@@ -0,0 +1,113 @@
+package org.robam.xutils.core;
+
+/**
+ * A count-min sketch of how often keys were accessed recently, for the TinyLFU admission
+ * policy of {@link LruMemoryCache}.
+ * 每个key用4个4位的计数器估计访问次数,最多记到15.总的访问次数到了容量的10倍,所有计数器减半,
+ * 这样以前很热、现在不再访问的key会慢慢冷下来.
+ * <p/>
+ * Not thread safe; {@link LruMemoryCache} only uses it under its eviction lock.
+ */
+class FrequencySketch {
+
+    /**
+     * Seeds of the four hash functions.
+     */
+    private static final long[] SEEDS = {
+            0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+
+    private static final long RESET_MASK = 0x7777777777777777L;
+
+    private long[] table;
+
+    private int tableMask;
+
+    private int sampleSize;
+
+    private int additions;
+
+    FrequencySketch() {
+        ensureCapacity(16);
+    }
+
+    /**
+     * Grows the sketch to track about the given number of keys; counts are lost when it grows.
+     */
+    void ensureCapacity(int maximumSize) {
+        int capacity = Integer.highestOneBit(Math.max(16, Math.min(maximumSize, 1 << 24)) - 1) << 1;
+        if (table != null && table.length >= capacity) {
+            return;
+        }
+        table = new long[capacity];
+        tableMask = capacity - 1;
+        sampleSize = 10 * capacity;
+        additions = 0;
+    }
+
+    /**
+     * Returns the estimated number of recent accesses of the key, at most 15.
+     */
+    int frequency(Object key) {
+        int hash = spread(key.hashCode());
+        int start = (hash & 3) << 2;
+        int frequency = Integer.MAX_VALUE;
+        for (int i = 0; i < 4; i++) {
+            int index = indexOf(hash, i);
+            int count = (int) ((table[index] >>> ((start + i) << 2)) & 0xfL);
+            frequency = Math.min(frequency, count);
+        }
+        return frequency;
+    }
+
+    /**
+     * Records an access of the key.
+     */
+    void increment(Object key) {
+        int hash = spread(key.hashCode());
+        int start = (hash & 3) << 2;
+        boolean added = false;
+        for (int i = 0; i < 4; i++) {
+            added |= incrementAt(indexOf(hash, i), start + i);
+        }
+        if (added && ++additions == sampleSize) {
+            reset();
+        }
+    }
+
+    /**
+     * Increments the counter at the given 4-bit offset of the table slot, unless it is at 15.
+     */
+    private boolean incrementAt(int index, int counter) {
+        int offset = counter << 2;
+        long mask = 0xfL << offset;
+        if ((table[index] & mask) != mask) {
+            table[index] += 1L << offset;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Halves all counters.
+     */
+    private void reset() {
+        int odd = 0;
+        for (int i = 0; i < table.length; i++) {
+            odd += Long.bitCount(table[i] & 0x1111111111111111L);
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+        additions = (additions >>> 1) - (odd >>> 2);
+    }
+
+    private int indexOf(int hash, int i) {
+        long h = (hash + SEEDS[i]) * SEEDS[i];
+        h += h >>> 32;
+        return ((int) h) & tableMask;
+    }
+
+    private static int spread(int hash) {
+        hash = ((hash >>> 16) ^ hash) * 0x45d9f3b;
+        hash = ((hash >>> 16) ^ hash) * 0x45d9f3b;
+        return (hash >>> 16) ^ hash;
+    }
+}
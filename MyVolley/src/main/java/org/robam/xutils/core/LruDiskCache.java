@@ -19,9 +19,11 @@ import org.apache.http.protocol.HTTP;
 import org.robam.xutils.Utils.IOUtils;
 import org.robam.xutils.Utils.LogUtils;
 
-import java.io.BufferedWriter;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
+import java.io.DataInputStream;
 import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
@@ -43,11 +45,14 @@ import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.Map;
 import java.util.concurrent.Callable;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -88,6 +93,13 @@ import java.util.regex.Pattern;
  * observe the value at the time that {@link #get} was called. Updates and
  * removals after the call do not impact ongoing reads.
  * <p/>
+ * <p>Reads do not take the cache's lock: {@link #get} finds the entry in a
+ * concurrent index and opens its files, then checks that no commit or removal
+ * touched the entry meanwhile, and retries if one did. Its move to the head of
+ * the LRU queue is recorded and applied later by the background thread. Edits,
+ * commits and removals are serialized on the cache's lock as before.
+ * 读不加锁,所以读很慢的时候不会挡住别的线程的读和提交.
+ * <p/>
  * <p>This class is tolerant of some I/O errors. If files are missing from the
  * filesystem, the corresponding entries will be dropped from the cache. If
  * an error occurs while writing a cache value, the edit will fail silently.
@@ -107,6 +119,21 @@ public final class LruDiskCache implements Closeable {
     private static final String REMOVE = "REMOVE";
     private static final String READ = "READ";
 
+    /**
+     * First bytes of a binary journal ("LRUJ"); a text journal starts with MAGIC.
+     */
+    static final int BINARY_MAGIC = 0x4c52554a;
+    static final int BINARY_VERSION = 1;
+    private static final int OP_CLEAN = 1;
+    private static final int OP_DIRTY = 2;
+    private static final int OP_REMOVE = 3;
+    private static final int OP_READ = 4;
+
+    /**
+     * Key length byte of a 32 character hex key stored as its 16 bytes.
+     */
+    private static final int KEY_MD5 = 0;
+
     /*
      * This cache uses a journal file named "journal". A typical journal file
      * looks like this:
@@ -145,8 +172,36 @@ public final class LruDiskCache implements Closeable {
      * occasionally be compacted by dropping redundant lines. A temporary file named
      * "journal.tmp" will be used during compaction; that file should be deleted if
      * it exists when the cache is opened.
+     *
+     * Records are collected in memory and written as a group by a background task
+     * at most JOURNAL_FLUSH_DELAY_MILLIS later (group commit). Reads of the same
+     * entry within a group are coalesced into one READ line. A DIRTY line is
+     * written and flushed, together with everything before it, before the editor
+     * is returned, so files are never created without a DIRTY record. A crash can
+     * lose the records of the last group: at worst a committed entry is dropped as
+     * dirty, or a removed entry is found missing when it is read.
+     *
+     * Optionally (see open) the journal is binary instead, which is several times
+     * smaller and faster to read at startup:
+     *     header: int BINARY_MAGIC, byte BINARY_VERSION, int appVersion, int valueCount
+     *     record: byte op (OP_CLEAN, OP_DIRTY, OP_REMOVE or OP_READ), key,
+     *             and for OP_CLEAN a long expiry timestamp and a varint per length
+     *     key:    byte KEY_MD5 and the 16 bytes of a 32 character hex key (the
+     *             default file name generator's MD5), or byte length and ASCII chars
+     * Either format is read; if it is not the configured one, the journal is
+     * rebuilt in the configured format right after opening.
      */
 
+    /**
+     * Maximum time a journal record waits in memory before it is written.
+     */
+    private static final long JOURNAL_FLUSH_DELAY_MILLIS = 1000;
+
+    /**
+     * Pending records are written right away once they reach this many bytes.
+     */
+    private static final int MAX_PENDING_JOURNAL_BYTES = 8192;
+
     private final File directory;
     private final File journalFile;
     private final File journalFileTmp;
@@ -154,12 +209,47 @@ public final class LruDiskCache implements Closeable {
     private final int appVersion;
     private long maxSize;
     private final int valueCount;
+    private final boolean binaryJournal;
+
+    /**
+     * True while {@link #openAsync} is reading the journal.
+     */
+    private volatile boolean loading;
+
+    /**
+     * True if reading the journal stopped at a record cut short by a crash.
+     */
+    private boolean journalTruncated;
     private long size = 0;
-    private Writer journalWriter;
+    private volatile OutputStream journalWriter;
     private final LinkedHashMap<String, Entry> lruEntries =
             new LinkedHashMap<String, Entry>(0, 0.75f, true);
+
+    /**
+     * The entries of lruEntries, for lookups without the cache's lock. Changed together with
+     * lruEntries while holding the lock.
+     */
+    private final ConcurrentHashMap<String, Entry> entryIndex = new ConcurrentHashMap<String, Entry>();
+
+    /**
+     * Keys read without the lock, waiting to be moved to the head of the LRU queue.
+     */
+    private final ConcurrentLinkedQueue<String> unrecordedReads = new ConcurrentLinkedQueue<String>();
     private int redundantOpCount;
 
+    /**
+     * Journal records not yet written, in order.
+     * 还没写进journal的记录,攒一批再一起写.
+     */
+    private final ByteArrayOutputStream pendingJournal = new ByteArrayOutputStream();
+
+    /**
+     * Entries read since the last journal write, each written as a single READ line.
+     */
+    private final LinkedHashSet<String> pendingReads = new LinkedHashSet<String>();
+
+    private final AtomicBoolean journalFlushScheduled = new AtomicBoolean();
+
     /**
      * To differentiate between old and current snapshots, each entry is given
      * a sequence number each time an edit is committed. A snapshot is stale if
@@ -168,16 +258,16 @@ public final class LruDiskCache implements Closeable {
     private long nextSequenceNumber = 0;
 
     /**
-     * This cache uses a single background thread to evict entries.
+     * This cache uses a single background thread to evict entries and to write the journal.
      */
-    final ThreadPoolExecutor executorService =
-            new ThreadPoolExecutor(0, 1, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+    final ScheduledThreadPoolExecutor executorService = newExecutorService();
     private final Callable<Void> cleanupCallable = new Callable<Void>() {
         public Void call() throws Exception {
             synchronized (LruDiskCache.this) {
                 if (journalWriter == null) {
                     return null; // Closed.
                 }
+                recordReads();
                 trimToSize();
                 if (journalRebuildRequired()) {
                     rebuildJournal();
@@ -187,8 +277,32 @@ public final class LruDiskCache implements Closeable {
             return null;
         }
     };
+    private final Callable<Void> journalFlushCallable = new Callable<Void>() {
+        public Void call() throws Exception {
+            synchronized (LruDiskCache.this) {
+                journalFlushScheduled.set(false);
+                if (journalWriter == null) {
+                    return null; // Closed.
+                }
+                writePendingJournal();
+                if (journalRebuildRequired()) {
+                    rebuildJournal();
+                    redundantOpCount = 0;
+                }
+            }
+            return null;
+        }
+    };
 
-    private LruDiskCache(File directory, int appVersion, int valueCount, long maxSize) {
+    private static ScheduledThreadPoolExecutor newExecutorService() {
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1);
+        executor.setKeepAliveTime(60L, TimeUnit.SECONDS);
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    private LruDiskCache(File directory, int appVersion, int valueCount, long maxSize,
+                         boolean binaryJournal) {
         this.directory = directory;
         this.appVersion = appVersion;
         this.journalFile = new File(directory, JOURNAL_FILE);
@@ -196,6 +310,7 @@ public final class LruDiskCache implements Closeable {
         this.journalFileBackup = new File(directory, JOURNAL_FILE_BACKUP);
         this.valueCount = valueCount;
         this.maxSize = maxSize;
+        this.binaryJournal = binaryJournal;
     }
 
     /**
@@ -209,6 +324,20 @@ public final class LruDiskCache implements Closeable {
      */
     public static LruDiskCache open(File directory, int appVersion, int valueCount, long maxSize)
             throws IOException {
+        return open(directory, appVersion, valueCount, maxSize, false);
+    }
+
+    /**
+     * Opens the cache in {@code directory}, creating a cache if none exists
+     * there.
+     *
+     * @param binaryJournal true to keep the journal in the compact binary format, which opens
+     *                      much faster with many entries; an existing journal in the other
+     *                      format is converted
+     * @see #open(java.io.File, int, int, long)
+     */
+    public static LruDiskCache open(File directory, int appVersion, int valueCount, long maxSize,
+                                    boolean binaryJournal) throws IOException {
         if (maxSize <= 0) {
             throw new IllegalArgumentException("maxSize <= 0");
         }
@@ -216,45 +345,207 @@ public final class LruDiskCache implements Closeable {
             throw new IllegalArgumentException("valueCount <= 0");
         }
 
+        LruDiskCache cache = new LruDiskCache(directory, appVersion, valueCount, maxSize, binaryJournal);
+        cache.load();
+        return cache;
+    }
+
+    /**
+     * Returns a cache for {@code directory} at once and reads its journal on the cache's
+     * background thread. Until the journal has been read, {@link #get} finds the entries read
+     * so far, and may miss the others; calls that change the cache, and {@link #isClosed},
+     * wait for the journal. See {@link #isLoaded}.
+     * 启动的时候不用等整个journal读完:已经读到的条目马上能取,要写的操作再等.
+     *
+     * @see #open(java.io.File, int, int, long, boolean)
+     */
+    public static LruDiskCache openAsync(File directory, int appVersion, int valueCount, long maxSize,
+                                         boolean binaryJournal) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        if (valueCount <= 0) {
+            throw new IllegalArgumentException("valueCount <= 0");
+        }
+
+        final LruDiskCache cache = new LruDiskCache(directory, appVersion, valueCount, maxSize, binaryJournal);
+        cache.loading = true;
+        cache.executorService.submit(new Callable<Void>() {
+            public Void call() throws Exception {
+                synchronized (cache) {
+                    try {
+                        cache.load();
+                    } catch (Throwable e) {
+                        LogUtils.e("DiskLruCache " + cache.directory + " failed to open", e);
+                    } finally {
+                        cache.loading = false;
+                        cache.notifyAll();
+                    }
+                }
+                return null;
+            }
+        });
+        return cache;
+    }
+
+    /**
+     * Returns false while an asynchronous open is still reading the journal.
+     */
+    public boolean isLoaded() {
+        return !loading;
+    }
+
+    /**
+     * Reads the journal, or creates an empty cache if there is none or it is corrupt.
+     */
+    private synchronized void load() throws IOException {
         // If a bkp file exists, use it instead.
-        File backupFile = new File(directory, JOURNAL_FILE_BACKUP);
-        if (backupFile.exists()) {
-            File journalFile = new File(directory, JOURNAL_FILE);
+        if (journalFileBackup.exists()) {
             // If journal file also exists just delete backup file.
             if (journalFile.exists()) {
-                backupFile.delete();
+                journalFileBackup.delete();
             } else {
-                renameTo(backupFile, journalFile, false);
+                renameTo(journalFileBackup, journalFile, false);
             }
         }
 
         // Prefer to pick up where we left off.
-        LruDiskCache cache = new LruDiskCache(directory, appVersion, valueCount, maxSize);
-        if (cache.journalFile.exists()) {
+        if (journalFile.exists()) {
             try {
-                cache.readJournal();
-                cache.processJournal();
-                cache.journalWriter = new BufferedWriter(
-                        new OutputStreamWriter(new FileOutputStream(cache.journalFile, true), HTTP.US_ASCII));
-                return cache;
+                boolean converting = readJournal() != binaryJournal;
+                processJournal();
+                entryIndex.putAll(lruEntries);
+                if (converting || journalTruncated) {
+                    // 旧格式的journal,直接按新格式重建.
+                    // 最后一条记录不完整时也要重建,不然新记录接在半条记录后面,下次就读不出来了.
+                    rebuildJournal();
+                } else {
+                    journalWriter = new BufferedOutputStream(new FileOutputStream(journalFile, true));
+                }
+                return;
             } catch (Throwable journalIsCorrupt) {
                 LogUtils.e("DiskLruCache "
                         + directory
                         + " is corrupt: "
                         + journalIsCorrupt.getMessage()
                         + ", removing", journalIsCorrupt);
-                cache.delete();
+                entryIndex.clear();
+                lruEntries.clear();
+                size = 0;
+                redundantOpCount = 0;
+                deleteContents(directory);
             }
         }
 
         // Create a new empty cache.
         directory.mkdirs();
-        cache = new LruDiskCache(directory, appVersion, valueCount, maxSize);
-        cache.rebuildJournal();
-        return cache;
+        rebuildJournal();
+    }
+
+    /**
+     * Reads the journal in whichever format it is.
+     *
+     * @return true if it is binary
+     */
+    private boolean readJournal() throws IOException {
+        InputStream in = new FileInputStream(journalFile);
+        int first;
+        try {
+            first = in.read();
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+        if (first == BINARY_MAGIC >>> 24) {
+            readBinaryJournal();
+            return true;
+        }
+        readTextJournal();
+        return false;
+    }
+
+    private void readBinaryJournal() throws IOException {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(journalFile), 64 * 1024));
+            int magic = in.readInt();
+            int version = in.readByte();
+            int journalAppVersion = in.readInt();
+            int journalValueCount = in.readInt();
+            if (magic != BINARY_MAGIC || version != BINARY_VERSION
+                    || journalAppVersion != appVersion || journalValueCount != valueCount) {
+                throw new IOException("unexpected journal header: [" + magic + ", " + version + ", "
+                        + journalAppVersion + ", " + journalValueCount + "]");
+            }
+
+            int recordCount = 0;
+            long[] lengths = new long[valueCount];
+            while (true) {
+                int op = in.read();
+                if (op == -1) {
+                    break;
+                }
+                String diskKey;
+                long expiryTimestamp = 0;
+                try {
+                    diskKey = readBinaryKey(in);
+                    if (op == OP_CLEAN) {
+                        expiryTimestamp = in.readLong();
+                        for (int i = 0; i < valueCount; i++) {
+                            lengths[i] = readVarLong(in);
+                        }
+                    }
+                } catch (EOFException endOfJournal) {
+                    // A record cut short by a crash.
+                    journalTruncated = true;
+                    break;
+                }
+                applyBinaryRecord(op, diskKey, expiryTimestamp, lengths);
+                recordCount++;
+            }
+            redundantOpCount = recordCount - lruEntries.size();
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
     }
 
-    private void readJournal() throws IOException {
+    /**
+     * The binary counterpart of {@link #readJournalLine}.
+     */
+    private void applyBinaryRecord(int op, String diskKey, long expiryTimestamp, long[] lengths)
+            throws IOException {
+        if (op == OP_REMOVE) {
+            lruEntries.remove(diskKey);
+            if (loading) {
+                entryIndex.remove(diskKey);
+            }
+            return;
+        }
+        Entry entry = lruEntries.get(diskKey);
+        if (entry == null) {
+            entry = new Entry(diskKey);
+            lruEntries.put(diskKey, entry);
+        }
+        if (op == OP_CLEAN) {
+            entry.version++;
+            entry.readable = true;
+            entry.currentEditor = null;
+            entry.expiryTimestamp = expiryTimestamp;
+            System.arraycopy(lengths, 0, entry.lengths, 0, valueCount);
+            entry.version++;
+            if (loading) {
+                entryIndex.put(diskKey, entry);
+            }
+        } else if (op == OP_DIRTY) {
+            entry.currentEditor = new Editor(entry);
+            if (loading) {
+                entryIndex.remove(diskKey);
+            }
+        } else if (op != OP_READ) {
+            throw new IOException("unexpected journal record: " + op);
+        }
+    }
+
+    private void readTextJournal() throws IOException {
         StrictLineReader reader = null;
         try {
             reader = new StrictLineReader(new FileInputStream(journalFile));
@@ -278,6 +569,7 @@ public final class LruDiskCache implements Closeable {
                     readJournalLine(reader.readLine());
                     lineCount++;
                 } catch (EOFException endOfJournal) {
+                    journalTruncated = reader.hasUnterminatedLine();
                     break;
                 }
             }
@@ -300,6 +592,9 @@ public final class LruDiskCache implements Closeable {
             diskKey = line.substring(keyBegin);
             if (firstSpace == REMOVE.length() && line.startsWith(REMOVE)) {
                 lruEntries.remove(diskKey);
+                if (loading) {
+                    entryIndex.remove(diskKey);
+                }
                 return;
             }
         } else {
@@ -313,24 +608,35 @@ public final class LruDiskCache implements Closeable {
         }
 
         if (secondSpace != -1 && firstSpace == CLEAN.length() && line.startsWith(CLEAN)) {
-            entry.readable = true;
-            entry.currentEditor = null;
-            String[] parts = line.substring(secondSpace + 1).split(" ");
-            if (parts.length > 0) {
-                try {
-                    if (parts[0].startsWith("t_")) {
-                        entry.expiryTimestamp = Long.valueOf(parts[0].substring(2));
-                        entry.setLengths(parts, 1);
-                    } else {
-                        entry.expiryTimestamp = Long.MAX_VALUE;
-                        entry.setLengths(parts, 0);
+            entry.version++;
+            try {
+                entry.readable = true;
+                entry.currentEditor = null;
+                String[] parts = line.substring(secondSpace + 1).split(" ");
+                if (parts.length > 0) {
+                    try {
+                        if (parts[0].startsWith("t_")) {
+                            entry.expiryTimestamp = Long.valueOf(parts[0].substring(2));
+                            entry.setLengths(parts, 1);
+                        } else {
+                            entry.expiryTimestamp = Long.MAX_VALUE;
+                            entry.setLengths(parts, 0);
+                        }
+                    } catch (Throwable e) {
+                        throw new IOException("unexpected journal line: " + line);
                     }
-                } catch (Throwable e) {
-                    throw new IOException("unexpected journal line: " + line);
                 }
+            } finally {
+                entry.version++;
+            }
+            if (loading) {
+                entryIndex.put(diskKey, entry);
             }
         } else if (secondSpace == -1 && firstSpace == DIRTY.length() && line.startsWith(DIRTY)) {
             entry.currentEditor = new Editor(entry);
+            if (loading) {
+                entryIndex.remove(diskKey);
+            }
         } else if (secondSpace == -1 && firstSpace == READ.length() && line.startsWith(READ)) {
             // This work was already done by calling lruEntries.get().
         } else {
@@ -369,26 +675,28 @@ public final class LruDiskCache implements Closeable {
         if (journalWriter != null) {
             IOUtils.closeQuietly(journalWriter);
         }
+        // The new journal is written from lruEntries, which already reflect the pending records.
+        pendingJournal.reset();
+        pendingReads.clear();
 
-        Writer writer = null;
+        OutputStream writer = null;
         try {
-            writer = new BufferedWriter(
-                    new OutputStreamWriter(new FileOutputStream(journalFileTmp), HTTP.US_ASCII));
-            writer.write(MAGIC);
-            writer.write("\n");
-            writer.write(VERSION_1);
-            writer.write("\n");
-            writer.write(Integer.toString(appVersion));
-            writer.write("\n");
-            writer.write(Integer.toString(valueCount));
-            writer.write("\n");
-            writer.write("\n");
+            writer = new BufferedOutputStream(new FileOutputStream(journalFileTmp), 64 * 1024);
+            if (binaryJournal) {
+                writeInt(writer, BINARY_MAGIC);
+                writer.write(BINARY_VERSION);
+                writeInt(writer, appVersion);
+                writeInt(writer, valueCount);
+            } else {
+                writer.write((MAGIC + "\n" + VERSION_1 + "\n" + appVersion + "\n" + valueCount + "\n\n")
+                        .getBytes(HTTP.US_ASCII));
+            }
 
             for (Entry entry : lruEntries.values()) {
                 if (entry.currentEditor != null) {
-                    writer.write(DIRTY + ' ' + entry.diskKey + '\n');
+                    writeJournalRecord(writer, DIRTY, entry.diskKey, null);
                 } else {
-                    writer.write(CLEAN + ' ' + entry.diskKey + " t_" + entry.expiryTimestamp + entry.getLengths() + '\n');
+                    writeJournalRecord(writer, CLEAN, entry.diskKey, entry);
                 }
             }
         } finally {
@@ -401,8 +709,113 @@ public final class LruDiskCache implements Closeable {
         renameTo(journalFileTmp, journalFile, false);
         journalFileBackup.delete();
 
-        journalWriter = new BufferedWriter(
-                new OutputStreamWriter(new FileOutputStream(journalFile, true), HTTP.US_ASCII));
+        journalWriter = new BufferedOutputStream(new FileOutputStream(journalFile, true));
+    }
+
+    /**
+     * Writes a journal record in the configured format; {@code entry} supplies the expiry
+     * timestamp and lengths of a CLEAN record.
+     */
+    private void writeJournalRecord(OutputStream out, String state, String diskKey, Entry entry)
+            throws IOException {
+        if (!binaryJournal) {
+            String values = entry != null ? " t_" + entry.expiryTimestamp + entry.getLengths() : "";
+            out.write((state + ' ' + diskKey + values + '\n').getBytes(HTTP.US_ASCII));
+            return;
+        }
+        if (CLEAN.equals(state)) {
+            out.write(OP_CLEAN);
+        } else if (DIRTY.equals(state)) {
+            out.write(OP_DIRTY);
+        } else if (REMOVE.equals(state)) {
+            out.write(OP_REMOVE);
+        } else {
+            out.write(OP_READ);
+        }
+        writeBinaryKey(out, diskKey);
+        if (entry != null) {
+            long expiryTimestamp = entry.expiryTimestamp;
+            writeInt(out, (int) (expiryTimestamp >>> 32));
+            writeInt(out, (int) expiryTimestamp);
+            for (long length : entry.lengths) {
+                writeVarLong(out, length);
+            }
+        }
+    }
+
+    private static void writeBinaryKey(OutputStream out, String diskKey) throws IOException {
+        int length = diskKey.length();
+        if (length == 32 && isLowerHex(diskKey)) {
+            out.write(KEY_MD5);
+            for (int i = 0; i < 32; i += 2) {
+                out.write(Character.digit(diskKey.charAt(i), 16) << 4
+                        | Character.digit(diskKey.charAt(i + 1), 16));
+            }
+        } else {
+            out.write(length);
+            for (int i = 0; i < length; i++) {
+                out.write(diskKey.charAt(i));
+            }
+        }
+    }
+
+    private static String readBinaryKey(DataInputStream in) throws IOException {
+        int length = in.readUnsignedByte();
+        char[] chars;
+        if (length == KEY_MD5) {
+            chars = new char[32];
+            for (int i = 0; i < 32; i += 2) {
+                int b = in.readUnsignedByte();
+                chars[i] = Character.forDigit(b >>> 4, 16);
+                chars[i + 1] = Character.forDigit(b & 0xf, 16);
+            }
+        } else {
+            chars = new char[length];
+            for (int i = 0; i < length; i++) {
+                chars[i] = (char) in.readUnsignedByte();
+            }
+        }
+        return new String(chars);
+    }
+
+    private static boolean isLowerHex(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void writeInt(OutputStream out, int value) throws IOException {
+        out.write(value >>> 24);
+        out.write(value >>> 16);
+        out.write(value >>> 8);
+        out.write(value);
+    }
+
+    /**
+     * Writes a non-negative long in 7 bit groups, low group first.
+     */
+    private static void writeVarLong(OutputStream out, long value) throws IOException {
+        while ((value & ~0x7fL) != 0) {
+            out.write((int) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static long readVarLong(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("malformed varint in journal");
     }
 
     private static void deleteIfExists(File file) throws IOException {
@@ -420,11 +833,11 @@ public final class LruDiskCache implements Closeable {
         }
     }
 
-    public synchronized long getExpiryTimestamp(String key) throws IOException {
+    public long getExpiryTimestamp(String key) throws IOException {
         String diskKey = diskCacheFileNameGenerator.generate(key);
-        checkNotClosed();
+        checkNotClosedForRead();
         validateKey(diskKey);
-        Entry entry = lruEntries.get(diskKey);
+        Entry entry = entryIndex.get(diskKey);
         if (entry == null) {
             return 0;
         } else {
@@ -446,65 +859,107 @@ public final class LruDiskCache implements Closeable {
      * Returns a snapshot of the entry named {@code diskKey}, or null if it doesn't
      * exist is not currently readable. If a value is returned, it is moved to
      * the head of the LRU queue.
+     * 不加锁:打开文件前后各读一次Entry的版本号,中间有提交或删除就重来.
      */
-    private synchronized Snapshot getByDiskKey(String diskKey) throws IOException {
-        checkNotClosed();
+    private Snapshot getByDiskKey(String diskKey) throws IOException {
+        checkNotClosedForRead();
         validateKey(diskKey);
-        Entry entry = lruEntries.get(diskKey);
-        if (entry == null) {
-            return null;
-        }
-
-        if (!entry.readable) {
-            return null;
-        }
+        while (true) {
+            Entry entry = entryIndex.get(diskKey);
+            if (entry == null) {
+                return null;
+            }
 
-        // If expired, delete the entry.
-        if (entry.expiryTimestamp < System.currentTimeMillis()) {
-            for (int i = 0; i < valueCount; i++) {
-                File file = entry.getCleanFile(i);
-                if (file.exists() && !file.delete()) {
-                    throw new IOException("failed to delete " + file);
+            int version = entry.version;
+            if ((version & 1) != 0) {
+                if (loading) {
+                    // The journal replay is updating the entry, which takes no time.
+                    Thread.yield();
+                } else {
+                    // A commit is replacing the files; it is done once we get the lock.
+                    synchronized (this) {
+                        checkNotClosed();
+                    }
                 }
-                size -= entry.lengths[i];
-                entry.lengths[i] = 0;
+                continue;
             }
-            redundantOpCount++;
-            journalWriter.append(REMOVE + ' ' + diskKey + '\n');
-            lruEntries.remove(diskKey);
-            if (journalRebuildRequired()) {
-                executorService.submit(cleanupCallable);
+
+            if (!entry.readable) {
+                return null;
             }
-            return null;
-        }
 
-        // Open all streams eagerly to guarantee that we see a single published
-        // snapshot. If we opened streams lazily then the streams could come
-        // from different edits.
-        FileInputStream[] ins = new FileInputStream[valueCount];
-        try {
-            for (int i = 0; i < valueCount; i++) {
-                ins[i] = new FileInputStream(entry.getCleanFile(i));
+            // If expired, delete the entry.
+            if (entry.expiryTimestamp < System.currentTimeMillis()) {
+                removeExpired(entry);
+                return null;
             }
-        } catch (FileNotFoundException e) {
-            // A file must have been deleted manually!
-            for (int i = 0; i < valueCount; i++) {
-                if (ins[i] != null) {
-                    IOUtils.closeQuietly(ins[i]);
-                } else {
-                    break;
+
+            long sequenceNumber = entry.sequenceNumber;
+            long[] lengths = entry.lengths.clone();
+
+            // Open all streams eagerly to guarantee that we see a single published
+            // snapshot. If we opened streams lazily then the streams could come
+            // from different edits.
+            FileInputStream[] ins = new FileInputStream[valueCount];
+            boolean opened = true;
+            try {
+                for (int i = 0; i < valueCount; i++) {
+                    ins[i] = new FileInputStream(entry.getCleanFile(i));
                 }
+            } catch (FileNotFoundException e) {
+                opened = false;
             }
-            return null;
+
+            if (entry.version != version || entryIndex.get(diskKey) != entry) {
+                // The entry was committed or removed meanwhile; the files may be a mix.
+                closeQuietly(ins);
+                continue;
+            }
+            if (!opened) {
+                // A file must have been deleted manually!
+                closeQuietly(ins);
+                return null;
+            }
+
+            unrecordedReads.add(diskKey);
+            scheduleJournalFlush();
+
+            return new Snapshot(diskKey, sequenceNumber, ins, lengths);
         }
+    }
 
-        redundantOpCount++;
-        journalWriter.append(READ + ' ' + diskKey + '\n');
-        if (journalRebuildRequired()) {
-            executorService.submit(cleanupCallable);
+    private static void closeQuietly(FileInputStream[] ins) {
+        for (FileInputStream in : ins) {
+            if (in != null) {
+                IOUtils.closeQuietly(in);
+            }
         }
+    }
 
-        return new Snapshot(diskKey, entry.sequenceNumber, ins, entry.lengths);
+    /**
+     * Deletes an expired entry found by a read, unless it changed meanwhile.
+     */
+    private synchronized void removeExpired(Entry entry) throws IOException {
+        if (journalWriter == null || lruEntries.get(entry.diskKey) != entry
+                || entry.currentEditor != null || !entry.readable
+                || entry.expiryTimestamp >= System.currentTimeMillis()) {
+            return;
+        }
+        removeByDiskKey(entry.diskKey);
+    }
+
+    /**
+     * Moves the entries read since the last call to the head of the LRU queue and queues their
+     * READ records. Call with the cache's lock held.
+     */
+    private void recordReads() {
+        String diskKey;
+        while ((diskKey = unrecordedReads.poll()) != null) {
+            Entry entry = lruEntries.get(diskKey);
+            if (entry != null && entry.readable) {
+                appendJournalRead(diskKey);
+            }
+        }
     }
 
     /**
@@ -527,6 +982,7 @@ public final class LruDiskCache implements Closeable {
         if (entry == null) {
             entry = new Entry(diskKey);
             lruEntries.put(diskKey, entry);
+            entryIndex.put(diskKey, entry);
         } else if (entry.currentEditor != null) {
             return null; // Another edit is in progress.
         }
@@ -535,8 +991,8 @@ public final class LruDiskCache implements Closeable {
         entry.currentEditor = editor;
 
         // Flush the journal before creating files to prevent file leaks.
-        journalWriter.write(DIRTY + ' ' + diskKey + '\n');
-        journalWriter.flush();
+        appendJournal(DIRTY, diskKey, null);
+        writePendingJournal();
         return editor;
     }
 
@@ -593,41 +1049,95 @@ public final class LruDiskCache implements Closeable {
             }
         }
 
-        for (int i = 0; i < valueCount; i++) {
-            File dirty = entry.getDirtyFile(i);
-            if (success) {
-                if (dirty.exists()) {
-                    File clean = entry.getCleanFile(i);
-                    dirty.renameTo(clean);
-                    long oldLength = entry.lengths[i];
-                    long newLength = clean.length();
-                    entry.lengths[i] = newLength;
-                    size = size - oldLength + newLength;
+        // Readers that open files while the version is odd, or changed, retry.
+        entry.version++;
+        try {
+            for (int i = 0; i < valueCount; i++) {
+                File dirty = entry.getDirtyFile(i);
+                if (success) {
+                    if (dirty.exists()) {
+                        File clean = entry.getCleanFile(i);
+                        dirty.renameTo(clean);
+                        long oldLength = entry.lengths[i];
+                        long newLength = clean.length();
+                        entry.lengths[i] = newLength;
+                        size = size - oldLength + newLength;
+                    }
+                } else {
+                    deleteIfExists(dirty);
                 }
-            } else {
-                deleteIfExists(dirty);
             }
-        }
 
-        redundantOpCount++;
-        entry.currentEditor = null;
-        if (entry.readable | success) {
-            entry.readable = true;
-            journalWriter.write(CLEAN + ' ' + entry.diskKey + " t_" + entry.expiryTimestamp + entry.getLengths() + '\n');
-            if (success) {
-                entry.sequenceNumber = nextSequenceNumber++;
+            redundantOpCount++;
+            entry.currentEditor = null;
+            if (entry.readable | success) {
+                entry.readable = true;
+                if (success) {
+                    entry.sequenceNumber = nextSequenceNumber++;
+                }
+                appendJournal(CLEAN, entry.diskKey, entry);
+            } else {
+                lruEntries.remove(entry.diskKey);
+                entryIndex.remove(entry.diskKey);
+                appendJournal(REMOVE, entry.diskKey, null);
             }
-        } else {
-            lruEntries.remove(entry.diskKey);
-            journalWriter.write(REMOVE + ' ' + entry.diskKey + '\n');
+        } finally {
+            entry.version++;
         }
-        journalWriter.flush();
 
         if (size > maxSize || journalRebuildRequired()) {
             executorService.submit(cleanupCallable);
         }
     }
 
+    /**
+     * Queues a journal record; it is written by the next group commit.
+     */
+    private void appendJournal(String state, String diskKey, Entry entry) throws IOException {
+        // A READ queued earlier is superseded by this record.
+        pendingReads.remove(diskKey);
+        writeJournalRecord(pendingJournal, state, diskKey, entry);
+        if (pendingJournal.size() >= MAX_PENDING_JOURNAL_BYTES) {
+            writePendingJournal();
+        } else {
+            scheduleJournalFlush();
+        }
+    }
+
+    /**
+     * Queues a READ record, coalesced with other reads of the entry since the last write.
+     */
+    private void appendJournalRead(String diskKey) {
+        // 同一批里同一个key只记一次READ,放到最后,表示最近被读过.
+        pendingReads.remove(diskKey);
+        pendingReads.add(diskKey);
+        scheduleJournalFlush();
+    }
+
+    private void scheduleJournalFlush() {
+        if (journalFlushScheduled.compareAndSet(false, true)) {
+            executorService.schedule(journalFlushCallable, JOURNAL_FLUSH_DELAY_MILLIS,
+                    TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Writes and flushes the queued journal records.
+     */
+    private void writePendingJournal() throws IOException {
+        recordReads();
+        if (pendingJournal.size() > 0) {
+            pendingJournal.writeTo(journalWriter);
+            pendingJournal.reset();
+        }
+        for (String diskKey : pendingReads) {
+            writeJournalRecord(journalWriter, READ, diskKey, null);
+        }
+        redundantOpCount += pendingReads.size();
+        pendingReads.clear();
+        journalWriter.flush();
+    }
+
     /**
      * We only rebuild the journal when it will halve the size of the journal
      * and eliminate at least 2000 ops.
@@ -657,6 +1167,8 @@ public final class LruDiskCache implements Closeable {
             return false;
         }
 
+        // Readers that opened the files before they are deleted see the entry gone and retry.
+        entryIndex.remove(diskKey);
         for (int i = 0; i < valueCount; i++) {
             File file = entry.getCleanFile(i);
             if (file.exists() && !file.delete()) {
@@ -667,7 +1179,7 @@ public final class LruDiskCache implements Closeable {
         }
 
         redundantOpCount++;
-        journalWriter.append(REMOVE + ' ' + diskKey + '\n');
+        appendJournal(REMOVE, diskKey, null);
         lruEntries.remove(diskKey);
 
         if (journalRebuildRequired()) {
@@ -681,22 +1193,51 @@ public final class LruDiskCache implements Closeable {
      * Returns true if this cache has been closed.
      */
     public synchronized boolean isClosed() {
+        awaitLoaded();
         return journalWriter == null;
     }
 
+    /**
+     * Waits for an asynchronous open to finish. Call with the cache's lock held.
+     */
+    private void awaitLoaded() {
+        while (loading) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Call with the cache's lock held.
+     */
     private void checkNotClosed() {
+        awaitLoaded();
         if (journalWriter == null) {
             throw new IllegalStateException("cache is closed");
         }
     }
 
+    /**
+     * Like {@link #checkNotClosed}, but without the lock; an asynchronous open in progress
+     * counts as open.
+     */
+    private void checkNotClosedForRead() {
+        if (journalWriter == null && !loading) {
+            throw new IllegalStateException("cache is closed");
+        }
+    }
+
     /**
      * Force buffered operations to the filesystem.
      */
     public synchronized void flush() throws IOException {
         checkNotClosed();
         trimToSize();
-        journalWriter.flush();
+        writePendingJournal();
     }
 
     /**
@@ -704,6 +1245,7 @@ public final class LruDiskCache implements Closeable {
      */
     @Override
     public synchronized void close() throws IOException {
+        awaitLoaded();
         if (journalWriter == null) {
             return; // Already closed.
         }
@@ -713,11 +1255,13 @@ public final class LruDiskCache implements Closeable {
             }
         }
         trimToSize();
+        writePendingJournal();
         journalWriter.close();
         journalWriter = null;
     }
 
     private void trimToSize() throws IOException {
+        recordReads();
         while (size > maxSize) {
             Map.Entry<String, Entry> toEvict = lruEntries.entrySet().iterator().next();
             removeByDiskKey(toEvict.getKey());
@@ -999,6 +1543,12 @@ public final class LruDiskCache implements Closeable {
          */
         private long sequenceNumber;
 
+        /**
+         * Incremented before and after a commit changes this entry's files, so it is odd while
+         * they are being replaced. Lets {@link #get} detect that the files it opened may be a mix.
+         */
+        private volatile int version;
+
         private Entry(String diskKey) {
             this.diskKey = diskKey;
             this.lengths = new long[valueCount];
@@ -1207,6 +1757,14 @@ public final class LruDiskCache implements Closeable {
             }
         }
 
+        /**
+         * Returns true if the last {@link #readLine} reached the end of the input in the middle
+         * of a line, which is then lost.
+         */
+        public boolean hasUnterminatedLine() {
+            return end == -1;
+        }
+
         /**
          * Reads new input data into the buffer. Call only with pos == end or end == -1,
          * depending on the desired outcome if the function throws.
@@ -13,11 +13,71 @@
 
 package org.robam.xutils.core;
 
+import java.util.ArrayList;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 过期时间和值存在同一个Entry里,命中的时候只查一次Map.过期的Entry在get的时候顺手删掉,
+ * 或者在put的时候发现最早的过期时间已经到了,再扫一遍删掉.
+ * <p/>
+ * 读不加锁:值放在ConcurrentHashMap里,LRU顺序是一个单独的双向链表,由锁保护.命中的时候只把Entry记到
+ * 当前线程对应的读缓冲里,攒满了再由抢到锁的线程批量调整链表顺序.缓冲满了又抢不到锁的时候,这次访问
+ * 的顺序就丢掉,LRU稍微不准,但是读永远不用等锁.写(put/remove/淘汰)还是串行的.
+ * <p/>
+ * Optionally uses W-TinyLFU admission (see {@link #LruMemoryCache(int, boolean)}): new entries
+ * go into a small LRU window, which always has room for its newest entry; an entry pushed out
+ * of the full window only enters the main LRU if it was accessed more often recently than the
+ * main LRU's eldest entry, otherwise it is evicted (see {@link #entryRejected}). A burst of
+ * entries that are used once cannot flush the entries used all the time.
+ */
 public class LruMemoryCache<K, V> {
-    private final LinkedHashMap<K, V> map;
+
+    /**
+     * Slots of a read buffer; a full buffer triggers a drain.
+     */
+    private static final int READ_BUFFER_SIZE = 32;
+
+    private static final int READ_BUFFER_MASK = READ_BUFFER_SIZE - 1;
+
+    /**
+     * Read buffers, one per group of threads, so readers rarely share a cache line.
+     */
+    private static final int READ_BUFFER_COUNT = readBufferCount();
+
+    /**
+     * With admission, the window takes this percentage of the maximum size.
+     */
+    private static final int WINDOW_PERCENT = 1;
+
+    private final ConcurrentHashMap<K, Entry<K, V>> map;
+
+    /**
+     * Guards the recency list and all counters except hits and misses.
+     */
+    private final ReentrantLock evictionLock = new ReentrantLock();
+
+    /**
+     * Sentinel of the recency list: head.after is the least recently used entry.
+     */
+    private final Entry<K, V> head = new Entry<K, V>(null, null, 0, Long.MAX_VALUE);
+
+    /**
+     * Sentinel of the admission window's recency list.
+     */
+    private final Entry<K, V> windowHead = new Entry<K, V>(null, null, 0, Long.MAX_VALUE);
+
+    /**
+     * Access frequencies for admission, or null for a plain LRU.
+     */
+    private final FrequencySketch sketch;
+
+    private final ReadBuffer[] readBuffers;
 
     /**
      * Size of this cache in units. Not necessarily the number of elements.
@@ -25,17 +85,73 @@ public class LruMemoryCache<K, V> {
     private int size;
     private int maxSize;
 
+    /**
+     * Size of the entries in the admission window.
+     */
+    private int windowSize;
+
+    /**
+     * Whether the last entry {@link #selectVictim} chose was turned away by admission.
+     */
+    private boolean victimRejected;
+
     private int putCount;
     private int createCount;
     private int evictionCount;
-    private int hitCount;
-    private int missCount;
 
     /**
-     * key: K
-     * value: expiry time
+     * The earliest expiry timestamp of the entries, or Long.MAX_VALUE if none expires; expired
+     * entries are swept once it has passed.
      */
-    private KeyExpiryMap<K, Long> keyExpiryMap;
+    private long nextExpiryTimestamp = Long.MAX_VALUE;
+
+    /**
+     * A cached value, the time it expires and its place in the recency list.
+     */
+    private static final class Entry<K, V> {
+        final K key;
+        final V value;
+        final int size;
+        final long expiryTimestamp;
+
+        /**
+         * Neighbours in the recency list, guarded by the eviction lock.
+         */
+        Entry<K, V> before;
+        Entry<K, V> after;
+
+        /**
+         * False once removed from the map; set under the eviction lock.
+         */
+        boolean linked;
+
+        /**
+         * True while in the admission window rather than the main LRU.
+         */
+        boolean inWindow;
+
+        Entry(K key, V value, int size, long expiryTimestamp) {
+            this.key = key;
+            this.value = value;
+            this.size = size;
+            this.expiryTimestamp = expiryTimestamp;
+        }
+
+        boolean isExpired(long now) {
+            return expiryTimestamp != Long.MAX_VALUE && now >= expiryTimestamp;
+        }
+    }
+
+    /**
+     * Entries read by a group of threads since the last drain, plus their hit and miss counts.
+     */
+    private static final class ReadBuffer {
+        final AtomicReferenceArray<Entry<?, ?>> entries =
+                new AtomicReferenceArray<Entry<?, ?>>(READ_BUFFER_SIZE);
+        final AtomicInteger writeIndex = new AtomicInteger();
+        final AtomicInteger hitCount = new AtomicInteger();
+        final AtomicInteger missCount = new AtomicInteger();
+    }
 
     /**
      * @param maxSize for caches that do not override {@link #sizeOf}, this is
@@ -43,16 +159,38 @@ public class LruMemoryCache<K, V> {
      *                this is the maximum sum of the sizes of the entries in this cache.
      */
     public LruMemoryCache(int maxSize) {
+        this(maxSize, false);
+    }
+
+    /**
+     * @param maxSize            see {@link #LruMemoryCache(int)}
+     * @param frequencyAdmission true to admit entries by recent access frequency (W-TinyLFU)
+     *                           instead of always evicting the least recently used one
+     */
+    public LruMemoryCache(int maxSize, boolean frequencyAdmission) {
         if (maxSize <= 0) {
             throw new IllegalArgumentException("maxSize <= 0");
         }
         this.maxSize = maxSize;
-        this.map = new LinkedHashMap<K, V>(0, 0.75f, true);
-        this.keyExpiryMap = new KeyExpiryMap<K, Long>(0, 0.75f);
+        this.map = new ConcurrentHashMap<K, Entry<K, V>>(16, 0.75f, READ_BUFFER_COUNT);
+        this.readBuffers = new ReadBuffer[READ_BUFFER_COUNT];
+        for (int i = 0; i < READ_BUFFER_COUNT; i++) {
+            readBuffers[i] = new ReadBuffer();
+        }
+        head.before = head;
+        head.after = head;
+        windowHead.before = windowHead;
+        windowHead.after = windowHead;
+        this.sketch = frequencyAdmission ? new FrequencySketch() : null;
     }
 
     public void setMaxSize(int maxSize) {
-        this.maxSize = maxSize;
+        evictionLock.lock();
+        try {
+            this.maxSize = maxSize;
+        } finally {
+            evictionLock.unlock();
+        }
         trimToSize(maxSize);
     }
 
@@ -61,27 +199,27 @@ public class LruMemoryCache<K, V> {
      * created by {@code #create}. If a value was returned, it is moved to the
      * head of the queue. This returns null if a value is not cached and cannot
      * be created.
+     * 命中的时候不加锁.
      */
     public final V get(K key) {
         if (key == null) {
             throw new NullPointerException("key == null");
         }
 
-        // If expired, remove the entry.
-        if (!keyExpiryMap.containsKey(key)) {
-            this.remove(key);
-            return null;
-        }
-
-        V mapValue;
-        synchronized (this) {
-            mapValue = map.get(key);
-            if (mapValue != null) {
-                hitCount++;
-                return mapValue;
+        ReadBuffer readBuffer = readBufferForCurrentThread();
+        Entry<K, V> entry = map.get(key);
+        if (entry != null) {
+            if (!entry.isExpired(now(entry))) {
+                readBuffer.hitCount.incrementAndGet();
+                recordRead(readBuffer, entry);
+                return entry.value;
+            }
+            // If expired, remove the entry.
+            if (removeEntry(entry)) {
+                entryRemoved(false, key, entry.value, null);
             }
-            missCount++;
         }
+        readBuffer.missCount.incrementAndGet();
 
         /*
          * Attempt to create a value. This may take a long time, and the map
@@ -95,21 +233,26 @@ public class LruMemoryCache<K, V> {
             return null;
         }
 
-        synchronized (this) {
+        Entry<K, V> created = new Entry<K, V>(key, createdValue, sizeOf(key, createdValue),
+                Long.MAX_VALUE);
+        created.inWindow = sketch != null;
+        Entry<K, V> previous;
+        evictionLock.lock();
+        try {
             createCount++;
-            mapValue = map.put(key, createdValue);
-
-            if (mapValue != null) {
-                // There was a conflict so undo that last put
-                map.put(key, mapValue);
-            } else {
-                size += safeSizeOf(key, createdValue);
+            previous = map.putIfAbsent(key, created);
+            if (previous == null) {
+                link(created);
+                size += created.size;
             }
+        } finally {
+            evictionLock.unlock();
         }
 
-        if (mapValue != null) {
-            entryRemoved(false, key, createdValue, mapValue);
-            return mapValue;
+        if (previous != null) {
+            // There was a conflict so the created value is dropped
+            entryRemoved(false, key, createdValue, previous.value);
+            return previous.value;
         } else {
             trimToSize(maxSize);
             return createdValue;
@@ -138,51 +281,170 @@ public class LruMemoryCache<K, V> {
             throw new NullPointerException("key == null || value == null");
         }
 
-        V previous;
-        synchronized (this) {
+        Entry<K, V> entry = new Entry<K, V>(key, value, sizeOf(key, value), expiryTimestamp);
+        entry.inWindow = sketch != null;
+        V previous = null;
+        evictionLock.lock();
+        try {
             putCount++;
-            size += safeSizeOf(key, value);
-            previous = map.put(key, value);
-            keyExpiryMap.put(key, expiryTimestamp);
-            if (previous != null) {
-                size -= safeSizeOf(key, previous);
+            if (sketch != null) {
+                sketch.ensureCapacity(map.size() + 1);
+                sketch.increment(key);
+            }
+            Entry<K, V> previousEntry = map.put(key, entry);
+            if (previousEntry != null) {
+                unlink(previousEntry);
+                size -= previousEntry.size;
+                previous = previousEntry.value;
             }
+            link(entry);
+            size += entry.size;
+            if (expiryTimestamp < nextExpiryTimestamp) {
+                nextExpiryTimestamp = expiryTimestamp;
+            }
+        } finally {
+            evictionLock.unlock();
         }
 
         if (previous != null) {
             entryRemoved(false, key, previous, value);
         }
 
+        trimExpired();
         trimToSize(maxSize);
         return previous;
     }
 
+    /**
+     * Removes the expired entries once the earliest expiry timestamp has passed, so entries
+     * that are never read again do not hold memory until they are evicted.
+     */
+    @SuppressWarnings("unchecked")
+    private void trimExpired() {
+        List<Entry<K, V>> expired = null;
+        evictionLock.lock();
+        try {
+            if (nextExpiryTimestamp == Long.MAX_VALUE) {
+                return;
+            }
+            long now = System.currentTimeMillis();
+            if (now < nextExpiryTimestamp) {
+                return;
+            }
+            long next = Long.MAX_VALUE;
+            for (Entry<K, V> list : new Entry[]{windowHead, head}) {
+                Entry<K, V> entry = list.after;
+                while (entry != list) {
+                    Entry<K, V> after = entry.after;
+                    if (entry.isExpired(now)) {
+                        map.remove(entry.key, entry);
+                        unlink(entry);
+                        size -= entry.size;
+                        if (expired == null) {
+                            expired = new ArrayList<Entry<K, V>>();
+                        }
+                        expired.add(entry);
+                    } else if (entry.expiryTimestamp < next) {
+                        next = entry.expiryTimestamp;
+                    }
+                    entry = after;
+                }
+            }
+            nextExpiryTimestamp = next;
+        } finally {
+            evictionLock.unlock();
+        }
+
+        if (expired != null) {
+            for (Entry<K, V> entry : expired) {
+                entryRemoved(false, entry.key, entry.value, null);
+            }
+        }
+    }
+
+    /**
+     * Reads the clock only for entries that can expire.
+     */
+    private static long now(Entry<?, ?> entry) {
+        return entry.expiryTimestamp == Long.MAX_VALUE ? 0 : System.currentTimeMillis();
+    }
+
     /**
      * @param maxSize the maximum size of the cache before returning. May be -1
      *                to evict even 0-sized elements.
      */
     private void trimToSize(int maxSize) {
         while (true) {
-            K key;
-            V value;
-            synchronized (this) {
-                if (size <= maxSize || map.isEmpty()) {
+            Entry<K, V> toEvict;
+            boolean rejected;
+            evictionLock.lock();
+            try {
+                if (size <= maxSize || (head.after == head && windowHead.after == windowHead)) {
                     break;
                 }
 
-                Map.Entry<K, V> toEvict = map.entrySet().iterator().next();
-                key = toEvict.getKey();
-                value = toEvict.getValue();
-                map.remove(key);
-                keyExpiryMap.remove(key);
-                size -= safeSizeOf(key, value);
+                // 先把攒下来的访问顺序落到链表上,再淘汰最久没用的.
+                drainReadBuffers();
+                toEvict = selectVictim(maxSize);
+                if (toEvict == null) {
+                    continue;
+                }
+                rejected = victimRejected;
+                map.remove(toEvict.key, toEvict);
+                unlink(toEvict);
+                size -= toEvict.size;
                 evictionCount++;
+            } finally {
+                evictionLock.unlock();
             }
 
-            entryRemoved(true, key, value, null);
+            if (rejected) {
+                entryRejected(toEvict.key, toEvict.value);
+            } else {
+                entryRemoved(true, toEvict.key, toEvict.value, null);
+            }
         }
     }
 
+    /**
+     * Chooses the entry to evict, or returns null after moving an entry from the window into
+     * the main LRU without evicting anything. Call with the eviction lock held.
+     */
+    private Entry<K, V> selectVictim(int maxSize) {
+        victimRejected = false;
+        if (sketch == null) {
+            return head.after;
+        }
+        Entry<K, V> victim = head.after != head ? head.after : null;
+        // 窗口至少放得下最新的一个Entry,否则按字节算大小的缓存里,窗口比一张图还小,
+        // 候选的就是刚put进来的那个,马上又被淘汰.
+        int windowMaxSize = Math.max((int) ((long) Math.max(0, maxSize) * WINDOW_PERCENT / 100),
+                windowHead.before.size);
+        if (windowSize <= windowMaxSize || windowHead.after == windowHead) {
+            return victim != null ? victim : windowHead.after;
+        }
+        // 窗口满了,最老的那个作为候选,和主区最老的比访问频率,输的被淘汰.
+        Entry<K, V> candidate = windowHead.after;
+        if (victim == null || size - windowSize + candidate.size <= maxSize - windowMaxSize) {
+            promote(candidate);
+            return null;
+        }
+        if (sketch.frequency(candidate.key) > sketch.frequency(victim.key)) {
+            return victim;
+        }
+        victimRejected = true;
+        return candidate;
+    }
+
+    /**
+     * Moves an entry from the window to the most recently used end of the main LRU.
+     */
+    private void promote(Entry<K, V> entry) {
+        unlink(entry);
+        entry.inWindow = false;
+        link(entry);
+    }
+
     /**
      * Removes the entry for {@code key} if it exists.
      *
@@ -193,13 +455,17 @@ public class LruMemoryCache<K, V> {
             throw new NullPointerException("key == null");
         }
 
-        V previous;
-        synchronized (this) {
-            previous = map.remove(key);
-            keyExpiryMap.remove(key);
-            if (previous != null) {
-                size -= safeSizeOf(key, previous);
+        V previous = null;
+        evictionLock.lock();
+        try {
+            Entry<K, V> previousEntry = map.remove(key);
+            if (previousEntry != null) {
+                unlink(previousEntry);
+                size -= previousEntry.size;
+                previous = previousEntry.value;
             }
+        } finally {
+            evictionLock.unlock();
         }
 
         if (previous != null) {
@@ -209,8 +475,108 @@ public class LruMemoryCache<K, V> {
         return previous;
     }
 
+    /**
+     * Removes the given entry if it is still the one mapped to its key.
+     */
+    private boolean removeEntry(Entry<K, V> entry) {
+        evictionLock.lock();
+        try {
+            if (!map.remove(entry.key, entry)) {
+                return false;
+            }
+            unlink(entry);
+            size -= entry.size;
+            return true;
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
     public final boolean containsKey(K key) {
-        return map.containsKey(key);
+        Entry<K, V> entry = map.get(key);
+        return entry != null && !entry.isExpired(now(entry));
+    }
+
+    /**
+     * Records a hit in the read buffer; whoever fills a buffer drains them all if the eviction
+     * lock is free.
+     */
+    private void recordRead(ReadBuffer readBuffer, Entry<K, V> entry) {
+        int index = readBuffer.writeIndex.getAndIncrement() & READ_BUFFER_MASK;
+        readBuffer.entries.lazySet(index, entry);
+        if (index == READ_BUFFER_MASK && evictionLock.tryLock()) {
+            try {
+                drainReadBuffers();
+            } finally {
+                evictionLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Moves the entries read since the last drain to the tail of the recency list. Call with
+     * the eviction lock held.
+     */
+    @SuppressWarnings("unchecked")
+    private void drainReadBuffers() {
+        for (ReadBuffer readBuffer : readBuffers) {
+            for (int i = 0; i < READ_BUFFER_SIZE; i++) {
+                Entry<K, V> entry = (Entry<K, V>) readBuffer.entries.getAndSet(i, null);
+                if (entry != null && entry.linked) {
+                    unlink(entry);
+                    link(entry);
+                    if (sketch != null) {
+                        sketch.increment(entry.key);
+                    }
+                }
+            }
+        }
+    }
+
+    private ReadBuffer readBufferForCurrentThread() {
+        return readBuffers[(int) Thread.currentThread().getId() & (READ_BUFFER_COUNT - 1)];
+    }
+
+    /**
+     * Appends the entry at the most recently used end of its list. Call with the eviction lock
+     * held.
+     */
+    private void link(Entry<K, V> entry) {
+        Entry<K, V> list = entry.inWindow ? windowHead : head;
+        entry.after = list;
+        entry.before = list.before;
+        list.before.after = entry;
+        list.before = entry;
+        entry.linked = true;
+        if (entry.inWindow) {
+            windowSize += entry.size;
+        }
+    }
+
+    /**
+     * Call with the eviction lock held.
+     */
+    private void unlink(Entry<K, V> entry) {
+        if (!entry.linked) {
+            return;
+        }
+        entry.before.after = entry.after;
+        entry.after.before = entry.before;
+        entry.before = null;
+        entry.after = null;
+        entry.linked = false;
+        if (entry.inWindow) {
+            windowSize -= entry.size;
+        }
+    }
+
+    private static int readBufferCount() {
+        int count = 1;
+        int wanted = Math.min(Runtime.getRuntime().availableProcessors() * 2, 32);
+        while (count < wanted) {
+            count <<= 1;
+        }
+        return count;
     }
 
     /**
@@ -231,6 +597,16 @@ public class LruMemoryCache<K, V> {
     protected void entryRemoved(boolean evicted, K key, V oldValue, V newValue) {
     }
 
+    /**
+     * Called instead of {@link #entryRemoved} for an entry that frequency admission turned
+     * away when it left the admission window. It was added recently, so it may well still be
+     * in use. The default implementation calls
+     * <code>entryRemoved(true, key, value, null)</code>.
+     */
+    protected void entryRejected(K key, V value) {
+        entryRemoved(true, key, value, null);
+    }
+
     /**
      * Called after a cache miss to compute a value for the corresponding key.
      * Returns the computed value or null if no value can be computed. The
@@ -250,23 +626,13 @@ public class LruMemoryCache<K, V> {
         return null;
     }
 
-    private int safeSizeOf(K key, V value) {
-        int result = sizeOf(key, value);
-        if (result <= 0) {
-            size = 0;
-            for (Map.Entry<K, V> entry : map.entrySet()) {
-                size += sizeOf(entry.getKey(), entry.getValue());
-            }
-        }
-        return result;
-    }
-
     /**
      * Returns the size of the entry for {@code key} and {@code value} in
      * user-defined units.  The default implementation returns 1 so that size
      * is the number of entries and max size is the maximum number of entries.
      * <p/>
      * <p>An entry's size must not change while it is in the cache.
+     * 每个Entry只在放进来的时候算一次.
      */
     protected int sizeOf(K key, V value) {
         return 1;
@@ -278,7 +644,6 @@ public class LruMemoryCache<K, V> {
      */
     public final void evictAll() {
         trimToSize(-1); // -1 will evict 0-sized elements
-        keyExpiryMap.clear();
     }
 
     /**
@@ -286,8 +651,13 @@ public class LruMemoryCache<K, V> {
      * of entries in the cache. For all other caches, this returns the sum of
      * the sizes of the entries in this cache.
      */
-    public synchronized final int size() {
-        return size;
+    public final int size() {
+        evictionLock.lock();
+        try {
+            return size;
+        } finally {
+            evictionLock.unlock();
+        }
     }
 
     /**
@@ -295,14 +665,23 @@ public class LruMemoryCache<K, V> {
      * number of entries in the cache. For all other caches, this returns the
      * maximum sum of the sizes of the entries in this cache.
      */
-    public synchronized final int maxSize() {
-        return maxSize;
+    public final int maxSize() {
+        evictionLock.lock();
+        try {
+            return maxSize;
+        } finally {
+            evictionLock.unlock();
+        }
     }
 
     /**
      * Returns the number of times {@link #get} returned a value.
      */
-    public synchronized final int hitCount() {
+    public final int hitCount() {
+        int hitCount = 0;
+        for (ReadBuffer readBuffer : readBuffers) {
+            hitCount += readBuffer.hitCount.get();
+        }
         return hitCount;
     }
 
@@ -310,42 +689,76 @@ public class LruMemoryCache<K, V> {
      * Returns the number of times {@link #get} returned null or required a new
      * value to be created.
      */
-    public synchronized final int missCount() {
+    public final int missCount() {
+        int missCount = 0;
+        for (ReadBuffer readBuffer : readBuffers) {
+            missCount += readBuffer.missCount.get();
+        }
         return missCount;
     }
 
     /**
      * Returns the number of times {@link #create(Object)} returned a value.
      */
-    public synchronized final int createCount() {
-        return createCount;
+    public final int createCount() {
+        evictionLock.lock();
+        try {
+            return createCount;
+        } finally {
+            evictionLock.unlock();
+        }
     }
 
     /**
      * Returns the number of times {@link #put} was called.
      */
-    public synchronized final int putCount() {
-        return putCount;
+    public final int putCount() {
+        evictionLock.lock();
+        try {
+            return putCount;
+        } finally {
+            evictionLock.unlock();
+        }
     }
 
     /**
      * Returns the number of values that have been evicted.
      */
-    public synchronized final int evictionCount() {
-        return evictionCount;
+    public final int evictionCount() {
+        evictionLock.lock();
+        try {
+            return evictionCount;
+        } finally {
+            evictionLock.unlock();
+        }
     }
 
     /**
      * Returns a copy of the current contents of the cache, ordered from least
      * recently accessed to most recently accessed.
      */
-    public synchronized final Map<K, V> snapshot() {
-        return new LinkedHashMap<K, V>(map);
+    public final Map<K, V> snapshot() {
+        evictionLock.lock();
+        try {
+            drainReadBuffers();
+            Map<K, V> snapshot = new LinkedHashMap<K, V>(map.size());
+            for (Entry<K, V> entry = head.after; entry != head; entry = entry.after) {
+                snapshot.put(entry.key, entry.value);
+            }
+            for (Entry<K, V> entry = windowHead.after; entry != windowHead; entry = entry.after) {
+                snapshot.put(entry.key, entry.value);
+            }
+            return snapshot;
+        } finally {
+            evictionLock.unlock();
+        }
     }
 
-    public synchronized final String toString() {
+    public final String toString() {
+        int hitCount = hitCount();
+        int missCount = missCount();
         int accesses = hitCount + missCount;
         int hitPercent = accesses != 0 ? (100 * hitCount / accesses) : 0;
-        return String.format("LruMemoryCache[maxSize=%d,hits=%d,misses=%d,hitRate=%d%%]", maxSize, hitCount, missCount, hitPercent);
+        return String.format("LruMemoryCache[maxSize=%d,hits=%d,misses=%d,hitRate=%d%%]", maxSize(), hitCount, missCount, hitPercent);
     }
 }